@@ -5,17 +5,24 @@ import io.vertx.core.Future;
 import io.vertx.core.Promise;
 import io.vertx.core.Vertx;
 import net.keksipurkki.petstore.api.Api;
+import net.keksipurkki.petstore.backend.Backends;
 import net.keksipurkki.petstore.http.HttpVerticle;
-import net.keksipurkki.petstore.pet.Pets;
-import net.keksipurkki.petstore.store.Orders;
-import net.keksipurkki.petstore.user.Users;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Objects.isNull;
+
 public class Main extends AbstractVerticle {
 
     private final static Logger logger = LoggerFactory.getLogger(Main.class);
 
+    public static final String COMPACTION_INTERVAL_VARIABLE = "PETSTORE_IMAGE_COMPACTION_INTERVAL_MS";
+
+    private static final long DEFAULT_COMPACTION_INTERVAL = TimeUnit.HOURS.toMillis(1);
+
     public static void main(String... args) {
         var vertx = Vertx.vertx();
         vertx.deployVerticle(new Main(args));
@@ -42,9 +49,16 @@ public class Main extends AbstractVerticle {
         });
     }
 
+    @Override
+    public void stop() {
+        Backends.close();
+    }
+
     private void deployVerticles(Promise<Void> promise) {
         var future = Future.succeededFuture();
 
+        // The stores are restored before anything can change them
+        Backends.open(System.getenv());
 
         var api = Api.create(vertx);
         var server = new HttpVerticle();
@@ -60,10 +74,21 @@ public class Main extends AbstractVerticle {
                     var port = server.getPort();
                     logger.info("Server is now running at http://localhost:{}", port);
                     promise.complete();
+                    api.reprocessImages()
+                       .onSuccess(missing -> logger.info("Made {} missing thumbnails", missing))
+                       .onFailure(cause -> logger.warn("Reprocessing of images failed", cause));
+                    vertx.setPeriodic(compactionInterval(System.getenv()), id -> api.compactImages()
+                        .onSuccess(bytes -> logger.info("Reclaimed {} bytes of images", bytes))
+                        .onFailure(cause -> logger.warn("Compaction of images failed", cause)));
                 }
             });
     }
 
+    private static long compactionInterval(Map<String, String> environment) {
+        var interval = environment.get(COMPACTION_INTERVAL_VARIABLE);
+        return isNull(interval) ? DEFAULT_COMPACTION_INTERVAL : Long.parseLong(interval);
+    }
+
     private void abort(Throwable throwable) {
         vertx.close();
         System.exit(1);
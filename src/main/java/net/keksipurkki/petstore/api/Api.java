@@ -2,11 +2,21 @@ package net.keksipurkki.petstore.api;
 
 import io.vertx.core.Future;
 import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.streams.ReadStream;
 import io.vertx.ext.web.FileUpload;
+import net.keksipurkki.petstore.feed.ChangeFeed;
 import net.keksipurkki.petstore.http.BadRequestException;
 import net.keksipurkki.petstore.http.ForbiddenException;
+import net.keksipurkki.petstore.http.GoneException;
 import net.keksipurkki.petstore.http.NotFoundException;
 import net.keksipurkki.petstore.http.NotImplementedException;
+import net.keksipurkki.petstore.image.ImageCacheStatistics;
+import net.keksipurkki.petstore.image.ImageFile;
+import net.keksipurkki.petstore.image.ImageName;
+import net.keksipurkki.petstore.image.ImageStore;
+import net.keksipurkki.petstore.image.Thumbnails;
 import net.keksipurkki.petstore.pet.*;
 import net.keksipurkki.petstore.security.JwtPrincipal;
 import net.keksipurkki.petstore.security.SecurityContext;
@@ -14,23 +24,35 @@ import net.keksipurkki.petstore.store.NewOrder;
 import net.keksipurkki.petstore.store.Order;
 import net.keksipurkki.petstore.store.Orders;
 import net.keksipurkki.petstore.support.Futures;
+import net.keksipurkki.petstore.support.StreamingBody;
+import net.keksipurkki.petstore.support.Versioned;
 import net.keksipurkki.petstore.user.AccessToken;
 import net.keksipurkki.petstore.user.User;
 import net.keksipurkki.petstore.user.UserException;
 import net.keksipurkki.petstore.user.Users;
 
-import java.io.IOException;
+import java.net.URI;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.stream.Collectors;
 
+import static java.util.Objects.isNull;
 import static java.util.Objects.requireNonNull;
+import static java.util.Objects.requireNonNullElse;
 
 public class Api implements ApiContract {
 
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int DEFAULT_SEARCH_LIMIT = 20;
+
     private Users users;
     private SecurityContext context;
     private Orders orders;
     private Pets pets;
+    private ImageStore images;
+    private Thumbnails thumbnails;
 
     // User
 
@@ -60,23 +82,23 @@ public class Api implements ApiContract {
     }
 
     @Override
-    public Future<User> getUserByName(String username) {
-        return users.findByUsername(username)
+    public Future<Versioned<User>> getUserByName(String username) {
+        return users.findVersionedByUsername(username)
             .map(opt -> opt.orElseThrow(() -> new NotFoundException("User " + username + " does not exist")))
-            .map(User::redactCredentials);
+            .map(user -> user.map(User::redactCredentials));
     }
 
     @Override
-    public Future<User> updateUser(String username, User data) {
+    public Future<Versioned<User>> updateUser(String username, User data, String ifMatch) {
         return getUserByName(username)
-            .flatMap(existing -> users.update(username, data))
-            .map(User::redactCredentials);
+            .flatMap(existing -> users.update(username, data, Versioned.precondition(ifMatch)))
+            .map(user -> user.map(User::redactCredentials));
     }
 
     @Override
-    public Future<ApiMessage> deleteUser(String username) {
+    public Future<ApiMessage> deleteUser(String username, String ifMatch) {
         return getUserByName(username)
-            .flatMap(user -> users.delete(user))
+            .flatMap(user -> users.delete(username, Versioned.precondition(ifMatch)))
             .map(user -> {
                 var message = "User " + username + " deleted successfully";
                 return new ApiMessage(message);
@@ -87,15 +109,15 @@ public class Api implements ApiContract {
     public Future<AccessToken> login(String username, String password) {
         return this.users.findByUsername(username)
             .map(opt -> opt.orElseThrow(() -> new NotFoundException("User " + username + " does not exist")))
-            .map(user -> {
+            .flatMap(user -> users.verifyPassword(user, password).map(valid -> {
 
-                if (!user.verifyPassword(password)) {
+                if (!valid) {
                     throw new ForbiddenException("Invalid password");
                 }
 
                 return JwtPrincipal.from(user.username());
 
-            }).map(principal -> new AccessToken(principal.getToken()));
+            })).map(principal -> new AccessToken(principal.getToken()));
     }
 
     @Override
@@ -117,10 +139,6 @@ public class Api implements ApiContract {
                 throw new BadRequestException("Invalid pet id");
             }
 
-            if (!pet.get().status().equals(Status.AVAILABLE)) {
-                throw new BadRequestException("Pet " + newOrder.petId() + " is not available");
-            }
-
             return orders.place(newOrder);
         });
     }
@@ -143,40 +161,205 @@ public class Api implements ApiContract {
     }
 
     @Override
-    public Future<Pet> updatePet(int petId, Pet pet) {
+    public Future<Versioned<Pet>> updatePet(int petId, Pet pet, String ifMatch) {
+        if (pet.id() != petId) {
+            throw new BadRequestException("Pet id " + pet.id() + " does not match the path");
+        }
+
         return pets.getById(petId)
             .map(opt -> opt.orElseThrow(() -> new NotFoundException("Pet " + petId + " does not exist")))
-            .flatMap(v -> pets.update(pet));
+            .flatMap(v -> pets.update(pet, Versioned.precondition(ifMatch)));
     }
 
     @Override
-    public Future<Pet> getPetById(int petId) {
-        return pets.getById(petId)
+    public Future<Versioned<Pet>> getPetById(int petId) {
+        return pets.getVersionedById(petId)
             .map(opt -> opt.orElseThrow(() -> new NotFoundException("Pet " + petId + " does not exist")));
     }
 
     @Override
-    public Future<Pet> deletePet(int petId) {
-        return pets.delete(petId)
+    public Future<Pet> deletePet(int petId, String ifMatch) {
+        return pets.delete(petId, Versioned.precondition(ifMatch))
             .map(opt -> opt.orElseThrow(() -> new NotFoundException("Pet " + petId + " does not exist")));
     }
 
+    @Override
+    public Future<List<Pet>> findPetsByStatus(Status status) {
+        return pets.findByStatus(status);
+    }
+
+    @Override
+    public Future<List<Pet>> findPetsByTags(List<String> tags) {
+        return pets.findByTags(tags);
+    }
+
+    @Override
+    public Future<List<Pet>> findPetsByCategory(String category) {
+        return pets.findByCategory(category);
+    }
+
+    @Override
+    public Future<PetPage> listPets(String cursor, Integer limit) {
+        return pets.list(position(cursor), requireNonNullElse(limit, DEFAULT_PAGE_SIZE));
+    }
+
+    @Override
+    public Future<List<Pet>> searchPets(String query, Integer limit) {
+        return pets.search(query, requireNonNullElse(limit, DEFAULT_SEARCH_LIMIT));
+    }
+
+    @Override
+    public Future<StreamingBody> exportPets(String acceptEncoding) {
+        return pets.export().map(export -> acceptsGzip(acceptEncoding) ? StreamingBody.gzip(export) : export);
+    }
+
+    @Override
+    public Future<PetChanges> getPetChanges(String since) {
+        return pets.changes(isNull(since) ? PetChanges.LATEST : version(since));
+    }
+
+    /**
+     * Adds the pets of a newline delimited JSON body as it streams in, see PetImport
+     */
+    public Future<PetImport.Report> importPets(ReadStream<Buffer> body) {
+        return PetImport.run(pets, body);
+    }
+
+    /**
+     * Upgrades the request to a WebSocket that streams the changes to pets and orders, see ChangeFeed
+     *
+     * @param from the sequence number of the first change to stream, null to stream the changes from now on
+     */
+    public Future<Void> streamChanges(HttpServerRequest request, String from) {
+        if (!"websocket".equalsIgnoreCase(request.getHeader("upgrade"))) {
+            throw new BadRequestException("Expected a WebSocket upgrade");
+        }
+
+        var head = ChangeFeed.head();
+        var start = isNull(from) ? head : sequence(from);
+
+        if (start > head) {
+            throw new BadRequestException("Change " + start + " has not been made yet");
+        }
+
+        if (start < ChangeFeed.oldest()) {
+            throw new GoneException("Change " + start + " is no longer in the change feed");
+        }
+
+        return request.toWebSocket().map(socket -> {
+            ChangeFeed.subscribe(socket, start);
+            return null;
+        });
+    }
+
+    /**
+     * Uploads are served by uploadImage, from a route mounted before the OpenAPI routes so that the
+     * image is not buffered. The operation stays in the contract to describe that route
+     */
     @Override
     public Future<ApiMessage> uploadFile(int petId, FileUpload upload, String metadata) {
+        throw new NotImplementedException();
+    }
+
+    /**
+     * Stores an image of the pet as it streams in, see ImageStore
+     */
+    public Future<ApiMessage> uploadImage(int petId, ReadStream<Buffer> image) {
+        image.pause();
         return pets.getById(petId)
             .map(opt -> opt.orElseThrow(() -> new NotFoundException("Pet " + petId + " does not exist")))
-            .flatMap(pet -> pets.update(pet, petImage(upload, metadata)))
+            .flatMap(pet -> images.put(image).flatMap(stored -> {
+                thumbnails.enqueue(stored);
+                var names = thumbnails.names(stored.name()).stream().map(ImageName::toString).toList();
+                return pets.update(pet, new PetImage(stored.name().toString(), names));
+            }))
             .map(pet -> {
                 var message = "Pet image was uploaded successfully";
                 return new ApiMessage(message);
             });
     }
 
-    private PetImage petImage(FileUpload upload, String metadata) {
+    /**
+     * @param name the name of an image in the image store
+     */
+    public Future<ImageFile> getImage(String name) {
+        return ImageName.parse(name)
+            .map(thumbnails::find)
+            .orElse(Future.succeededFuture(Optional.empty()))
+            .map(opt -> opt.orElseThrow(() -> new NotFoundException("Image " + name + " does not exist")));
+    }
+
+    public Optional<ImageCacheStatistics> getImageCacheStatistics() {
+        return images.cacheStatistics();
+    }
+
+    /**
+     * Makes the missing thumbnails of the stored images in the background, see Thumbnails
+     */
+    public Future<Integer> reprocessImages() {
+        return thumbnails.reprocess();
+    }
+
+    /**
+     * Reclaims the space of the stored images that no pet uses anymore, see ImageStore
+     */
+    public Future<Long> compactImages() {
+        return pets.photoUrls().flatMap(photoUrls -> {
+            var hashes = photoUrls.stream()
+                .map(URI::getPath)
+                .filter(Objects::nonNull)
+                .flatMap(path -> ImageName.parse(path.substring(path.lastIndexOf('/') + 1)).stream())
+                .map(ImageName::hash)
+                .collect(Collectors.toSet());
+
+            return images.compact(name -> hashes.contains(name.hash()));
+        });
+    }
+
+    // Content codings are case-insensitive and a zero quality value refuses one
+    private boolean acceptsGzip(String acceptEncoding) {
+        if (isNull(acceptEncoding)) {
+            return false;
+        }
+
+        for (var coding : acceptEncoding.split(",")) {
+            var parts = coding.split(";");
+            var name = parts[0].trim();
+            var refused = parts.length > 1 && parts[1].replace(" ", "").matches("q=0(\\.0*)?");
+
+            if (name.equalsIgnoreCase("gzip") && !refused) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private int position(String cursor) {
+        if (isNull(cursor)) {
+            return PetPage.FIRST;
+        }
+
         try {
-            return PetImage.from(upload, metadata);
-        } catch (IOException cause) {
-            throw new UnexpectedApiException("Pet image cannot be created", cause);
+            return PetPage.position(cursor);
+        } catch (IllegalArgumentException cause) {
+            throw new BadRequestException("Invalid cursor");
+        }
+    }
+
+    private long version(String since) {
+        try {
+            return PetChanges.version(since);
+        } catch (IllegalArgumentException cause) {
+            throw new BadRequestException("Invalid version");
+        }
+    }
+
+    private long sequence(String from) {
+        try {
+            return Long.parseLong(from);
+        } catch (NumberFormatException cause) {
+            throw new BadRequestException("Invalid sequence number");
         }
     }
 
@@ -186,6 +369,8 @@ public class Api implements ApiContract {
         clone.orders = orders;
         clone.context = context;
         clone.pets = pets;
+        clone.images = images;
+        clone.thumbnails = thumbnails;
         return clone;
     }
 
@@ -195,6 +380,8 @@ public class Api implements ApiContract {
         clone.users = users;
         clone.pets = pets;
         clone.context = context;
+        clone.images = images;
+        clone.thumbnails = thumbnails;
         return clone;
     }
 
@@ -204,6 +391,30 @@ public class Api implements ApiContract {
         clone.orders = orders;
         clone.users = users;
         clone.context = context;
+        clone.images = images;
+        clone.thumbnails = thumbnails;
+        return clone;
+    }
+
+    public Api withImages(ImageStore images) {
+        var clone = new Api();
+        clone.images = requireNonNull(images, "Image store must be defined");
+        clone.thumbnails = thumbnails;
+        clone.pets = pets;
+        clone.orders = orders;
+        clone.users = users;
+        clone.context = context;
+        return clone;
+    }
+
+    public Api withThumbnails(Thumbnails thumbnails) {
+        var clone = new Api();
+        clone.thumbnails = requireNonNull(thumbnails, "Thumbnails must be defined");
+        clone.images = images;
+        clone.pets = pets;
+        clone.orders = orders;
+        clone.users = users;
+        clone.context = context;
         return clone;
     }
 
@@ -213,14 +424,19 @@ public class Api implements ApiContract {
         clone.pets = pets;
         clone.orders = orders;
         clone.context = context;
+        clone.images = images;
+        clone.thumbnails = thumbnails;
         return clone;
     }
 
     public static Api create(Vertx vertx) {
+        var images = ImageStore.create(vertx);
         return new Api()
             .withPets(Pets.create(vertx))
             .withOrders(Orders.create(vertx))
-            .withUsers(Users.create(vertx));
+            .withUsers(Users.create(vertx))
+            .withImages(images)
+            .withThumbnails(Thumbnails.create(images, System.getenv()));
     }
 
 }
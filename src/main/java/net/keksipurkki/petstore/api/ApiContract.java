@@ -3,6 +3,7 @@ package net.keksipurkki.petstore.api;
 import io.swagger.v3.oas.annotations.OpenAPIDefinition;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
+import io.swagger.v3.oas.annotations.enums.ParameterIn;
 import io.swagger.v3.oas.annotations.enums.SecuritySchemeType;
 import io.swagger.v3.oas.annotations.info.Info;
 import io.swagger.v3.oas.annotations.media.Schema;
@@ -12,13 +13,20 @@ import io.swagger.v3.oas.annotations.servers.Server;
 import io.swagger.v3.oas.annotations.tags.Tag;
 import io.vertx.core.Future;
 import io.vertx.ext.web.FileUpload;
+import jakarta.validation.constraints.Max;
 import jakarta.validation.constraints.Min;
+import jakarta.validation.constraints.NotNull;
+import jakarta.validation.constraints.Size;
 import jakarta.ws.rs.*;
 import net.keksipurkki.petstore.pet.NewPet;
 import net.keksipurkki.petstore.pet.Pet;
+import net.keksipurkki.petstore.pet.PetChanges;
+import net.keksipurkki.petstore.pet.PetPage;
 import net.keksipurkki.petstore.pet.Status;
 import net.keksipurkki.petstore.store.NewOrder;
 import net.keksipurkki.petstore.store.Order;
+import net.keksipurkki.petstore.support.StreamingBody;
+import net.keksipurkki.petstore.support.Versioned;
 import net.keksipurkki.petstore.user.AccessToken;
 import net.keksipurkki.petstore.user.User;
 
@@ -84,28 +92,32 @@ public interface ApiContract {
     @GET
     @Operation(
         operationId = "GET_USER_BY_NAME",
+        description = "Returns a single user with its version as the ETag. A request with a matching If-None-Match is answered with 304 Not Modified",
         tags = {"user"},
-        security = {@SecurityRequirement(name = "NONE")}
+        security = {@SecurityRequirement(name = "NONE")},
+        parameters = {@Parameter(name = "If-None-Match", in = ParameterIn.HEADER, schema = @Schema(type = "string"))}
     )
-    Future<User> getUserByName(@PathParam("username") String username);
+    Future<Versioned<User>> getUserByName(@PathParam("username") String username);
 
     @Path("/user/{username}")
     @PUT
     @Operation(
         operationId = "UPDATE_USER",
+        description = "Updates a user. With If-Match, the user is updated only if it still has one of the given ETags, otherwise the response is 412 Precondition Failed",
         tags = {"user"},
         security = {@SecurityRequirement(name = "LOGIN_SESSION")}
     )
-    Future<User> updateUser(@PathParam("username") String username, User user);
+    Future<Versioned<User>> updateUser(@PathParam("username") String username, User user, @HeaderParam("If-Match") String ifMatch);
 
     @Path("/user/{username}")
     @DELETE
     @Operation(
         operationId = "DELETE_USER",
+        description = "Deletes a user. With If-Match, the user is deleted only if it still has one of the given ETags, otherwise the response is 412 Precondition Failed",
         tags = {"user"},
         security = {@SecurityRequirement(name = "LOGIN_SESSION")}
     )
-    Future<ApiMessage> deleteUser(@PathParam("username") String username);
+    Future<ApiMessage> deleteUser(@PathParam("username") String username, @HeaderParam("If-Match") String ifMatch);
 
     @Path("/user/login")
     @GET
@@ -179,11 +191,11 @@ public interface ApiContract {
     @PUT
     @Operation(
         operationId = "UPDATE_PET",
-        description = "Update an existing pet",
+        description = "Update an existing pet. The id of the pet must be the petId, otherwise the response is 400 Bad Request. With If-Match, the pet is updated only if it still has one of the given ETags, otherwise the response is 412 Precondition Failed",
         tags = {"pet"},
         security = {@SecurityRequirement(name = "LOGIN_SESSION")}
     )
-    Future<Pet> updatePet(@Min(0) @PathParam("petId") int petId, Pet pet);
+    Future<Versioned<Pet>> updatePet(@Min(0) @PathParam("petId") int petId, Pet pet, @HeaderParam("If-Match") String ifMatch);
 
     @Path("/pet/{petId}/uploadImage")
     @POST
@@ -212,22 +224,92 @@ public interface ApiContract {
     @GET
     @Operation(
         operationId = "GET_PET",
-        description = "Returns a single pet",
+        description = "Returns a single pet with its version as the ETag. A request with a matching If-None-Match is answered with 304 Not Modified",
         tags = {"pet"},
-        security = {@SecurityRequirement(name = "NONE")}
-
+        security = {@SecurityRequirement(name = "NONE")},
+        parameters = {@Parameter(name = "If-None-Match", in = ParameterIn.HEADER, schema = @Schema(type = "string"))}
     )
-    Future<Pet> getPetById(@Min(0) @PathParam("petId") int petId);
+    Future<Versioned<Pet>> getPetById(@Min(0) @PathParam("petId") int petId);
 
     @Path("/pet/{petId}")
     @DELETE
     @Operation(
         operationId = "DELETE_PET",
-        description = "Deletes a pet",
+        description = "Deletes a pet. With If-Match, the pet is deleted only if it still has one of the given ETags, otherwise the response is 412 Precondition Failed",
         tags = {"pet"},
         security = {@SecurityRequirement(name = "LOGIN_SESSION")}
     )
-    Future<Pet> deletePet(@Min(0) @PathParam("petId") int petId);
+    Future<Pet> deletePet(@Min(0) @PathParam("petId") int petId, @HeaderParam("If-Match") String ifMatch);
+
+    @Path("/pet/findByStatus")
+    @GET
+    @Operation(
+        operationId = "FIND_PETS_BY_STATUS",
+        description = "Finds pets by status",
+        tags = {"pet"},
+        security = {@SecurityRequirement(name = "NONE")}
+    )
+    Future<List<Pet>> findPetsByStatus(@NotNull @QueryParam("status") Status status);
 
+    @Path("/pet/findByTags")
+    @GET
+    @Operation(
+        operationId = "FIND_PETS_BY_TAGS",
+        description = "Finds pets having any of the given tags",
+        tags = {"pet"},
+        security = {@SecurityRequirement(name = "NONE")}
+    )
+    Future<List<Pet>> findPetsByTags(@NotNull @QueryParam("tags") List<String> tags);
+
+    @Path("/pet/findByCategory")
+    @GET
+    @Operation(
+        operationId = "FIND_PETS_BY_CATEGORY",
+        description = "Finds pets by category name",
+        tags = {"pet"},
+        security = {@SecurityRequirement(name = "NONE")}
+    )
+    Future<List<Pet>> findPetsByCategory(@NotNull @QueryParam("category") String category);
+
+    @Path("/pet")
+    @GET
+    @Operation(
+        operationId = "LIST_PETS",
+        description = "Lists pets in ascending id order. Follow the next cursor of a page to fetch the next page",
+        tags = {"pet"},
+        security = {@SecurityRequirement(name = "NONE")}
+    )
+    Future<PetPage> listPets(@QueryParam("cursor") String cursor, @Min(1) @Max(10000) @QueryParam("limit") Integer limit);
+
+    @Path("/pet/changes")
+    @GET
+    @Operation(
+        operationId = "GET_PET_CHANGES",
+        description = "Returns the pets created, updated or deleted after a version of the store, and the version they were read from. Without a version, returns just the current version: take it before listing the pets. A version whose changes are no longer known is answered with 410 Gone, after which the pets have to be listed again",
+        tags = {"pet"},
+        security = {@SecurityRequirement(name = "NONE")}
+    )
+    Future<PetChanges> getPetChanges(@QueryParam("since") String since);
+
+    @Path("/pet/search")
+    @GET
+    @Operation(
+        operationId = "SEARCH_PETS",
+        description = "Searches pets by name and tags, best matches first. Words are matched by their trigrams, so partial and slightly misspelled words match too",
+        tags = {"pet"},
+        security = {@SecurityRequirement(name = "NONE")}
+    )
+    Future<List<Pet>> searchPets(@NotNull @Size(min = 2, max = 200) @QueryParam("q") String query, @Min(1) @Max(100) @QueryParam("limit") Integer limit);
+
+    @Path("/pet/export")
+    @GET
+    @Produces("application/x-ndjson")
+    @Operation(
+        operationId = "EXPORT_PETS",
+        description = "Exports all pets as newline delimited JSON in ascending id order. The export reads a single version of the store. The body is compressed with gzip if the client accepts it",
+        tags = {"pet"},
+        security = {@SecurityRequirement(name = "NONE")}
+    )
+    Future<StreamingBody> exportPets(@HeaderParam("Accept-Encoding") String acceptEncoding);
 
 }
@@ -1,16 +1,21 @@
 package net.keksipurkki.petstore.api;
 
 import io.vertx.core.Handler;
+import io.vertx.core.http.HttpMethod;
 import io.vertx.ext.web.FileUpload;
 import io.vertx.ext.web.RoutingContext;
 import io.vertx.ext.web.validation.RequestParameters;
 import io.vertx.ext.web.validation.ValidationHandler;
 import net.keksipurkki.petstore.pet.NewPet;
 import net.keksipurkki.petstore.pet.Pet;
+import net.keksipurkki.petstore.pet.Status;
 import net.keksipurkki.petstore.security.SecurityContext;
 import net.keksipurkki.petstore.security.SecurityScheme;
 import net.keksipurkki.petstore.store.NewOrder;
 import net.keksipurkki.petstore.support.Json;
+import net.keksipurkki.petstore.support.SerializedBody;
+import net.keksipurkki.petstore.support.StreamingBody;
+import net.keksipurkki.petstore.support.Versioned;
 import net.keksipurkki.petstore.user.User;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,7 +46,14 @@ public enum ApiOperation implements Handler<RoutingContext> {
     GET_PET,
     UPDATE_PET,
     UPLOAD_IMAGE,
-    DELETE_PET;
+    DELETE_PET,
+    FIND_PETS_BY_STATUS,
+    FIND_PETS_BY_TAGS,
+    FIND_PETS_BY_CATEGORY,
+    LIST_PETS,
+    SEARCH_PETS,
+    EXPORT_PETS,
+    GET_PET_CHANGES;
 
     private final static Logger logger = LoggerFactory.getLogger(ApiOperation.class);
     private Api prototype;
@@ -64,8 +76,8 @@ public enum ApiOperation implements Handler<RoutingContext> {
             case CREATE_USER -> api.createUser(userRecord(params));
             case CREATE_USER_LIST -> api.createWithList(userRecordList(params));
             case GET_USER_BY_NAME -> api.getUserByName(username(params));
-            case UPDATE_USER -> api.updateUser(username(params), userRecord(params));
-            case DELETE_USER -> api.deleteUser(username(params));
+            case UPDATE_USER -> api.updateUser(username(params), userRecord(params), rc.request().getHeader("if-match"));
+            case DELETE_USER -> api.deleteUser(username(params), rc.request().getHeader("if-match"));
             case LOGIN_USER -> api.login(queryParameter(params, "username"), queryParameter(params, "password"));
             case LOGOUT_USER -> api.logout();
             case GET_INVENTORY -> api.getInventory();
@@ -74,10 +86,17 @@ public enum ApiOperation implements Handler<RoutingContext> {
             case DELETE_ORDER -> api.deleteOrder(orderId(params));
             case ADD_PET -> api.addPet(newPetRecord(params));
             case GET_PET -> api.getPetById(petId(params));
-            case UPDATE_PET -> api.updatePet(petId(params), pet(params));
+            case UPDATE_PET -> api.updatePet(petId(params), pet(params), rc.request().getHeader("if-match"));
             case UPLOAD_IMAGE ->
                 api.uploadFile(petId(params), fileUpload(rc.fileUploads(), "file"), formData(params, "additionalMetadata"));
-            case DELETE_PET -> api.deletePet(petId(params));
+            case DELETE_PET -> api.deletePet(petId(params), rc.request().getHeader("if-match"));
+            case FIND_PETS_BY_STATUS -> api.findPetsByStatus(status(params));
+            case FIND_PETS_BY_TAGS -> api.findPetsByTags(tags(params));
+            case FIND_PETS_BY_CATEGORY -> api.findPetsByCategory(queryParameter(params, "category"));
+            case LIST_PETS -> api.listPets(optionalQueryParameter(params, "cursor"), limit(params));
+            case SEARCH_PETS -> api.searchPets(queryParameter(params, "q"), limit(params));
+            case EXPORT_PETS -> api.exportPets(rc.request().getHeader("accept-encoding"));
+            case GET_PET_CHANGES -> api.getPetChanges(optionalQueryParameter(params, "since"));
         };
 
         operation.onSuccess(respond(rc)).onFailure(rc::fail).onComplete(ar -> {
@@ -108,6 +127,19 @@ public enum ApiOperation implements Handler<RoutingContext> {
         return params.pathParameter("petId").getInteger();
     }
 
+    private Status status(RequestParameters params) {
+        return Status.valueOf(queryParameter(params, "status"));
+    }
+
+    private List<String> tags(RequestParameters params) {
+        return params.queryParameter("tags").getJsonArray().stream().map(String::valueOf).toList();
+    }
+
+    private Integer limit(RequestParameters params) {
+        var limit = params.queryParameter("limit");
+        return nonNull(limit) ? limit.getInteger() : null;
+    }
+
     private NewPet newPetRecord(RequestParameters params) {
         return Json.parse(params.body().getJsonObject(), NewPet.class);
     }
@@ -122,6 +154,24 @@ public enum ApiOperation implements Handler<RoutingContext> {
 
     private <T> Handler<T> respond(RoutingContext rc) {
         return value -> {
+            if (value instanceof StreamingBody body) {
+                body.pipeTo(rc.response().setStatusCode(200));
+                return;
+            }
+
+            if (value instanceof Versioned<?> versioned) {
+                respond(rc, versioned);
+                return;
+            }
+
+            if (value instanceof SerializedBody body) {
+                rc.response()
+                    .setStatusCode(200)
+                    .putHeader("content-type", body.contentType())
+                    .end(body.body());
+                return;
+            }
+
             rc.response()
                 .setStatusCode(200)
                 .putHeader("content-type", "application/json")
@@ -129,6 +179,23 @@ public enum ApiOperation implements Handler<RoutingContext> {
         };
     }
 
+    // A cache revalidating its copy with If-None-Match gets an empty 304 response if the copy is current
+    private void respond(RoutingContext rc, Versioned<?> versioned) {
+        var ifNoneMatch = rc.request().getHeader("if-none-match");
+
+        rc.response().putHeader("etag", versioned.etag());
+
+        if (rc.request().method() == HttpMethod.GET && nonNull(ifNoneMatch) && versioned.matches(ifNoneMatch)) {
+            rc.response().setStatusCode(304).end();
+            return;
+        }
+
+        rc.response()
+            .setStatusCode(200)
+            .putHeader("content-type", "application/json")
+            .end(Json.stringify(versioned.value(), true));
+    }
+
     public SecurityScheme getSecurityScheme() {
         return switch (this) {
 
@@ -142,7 +209,7 @@ public enum ApiOperation implements Handler<RoutingContext> {
             case PLACE_ORDER, GET_ORDER, DELETE_ORDER -> SecurityScheme.LOGIN_SESSION;
 
             // Pet operations
-            case GET_PET -> SecurityScheme.NONE;
+            case GET_PET, FIND_PETS_BY_STATUS, FIND_PETS_BY_TAGS, FIND_PETS_BY_CATEGORY, LIST_PETS, SEARCH_PETS, EXPORT_PETS, GET_PET_CHANGES -> SecurityScheme.NONE;
             case ADD_PET, DELETE_PET, UPDATE_PET, UPLOAD_IMAGE -> SecurityScheme.LOGIN_SESSION;
         };
     }
@@ -163,6 +230,11 @@ public enum ApiOperation implements Handler<RoutingContext> {
         return params.queryParameter(parameter).getString();
     }
 
+    private String optionalQueryParameter(RequestParameters params, String parameter) {
+        var value = params.queryParameter(parameter);
+        return nonNull(value) ? value.getString() : null;
+    }
+
     public static ApiOperation from(String operationId) {
         try {
             return ApiOperation.valueOf(operationId);
@@ -0,0 +1,31 @@
+package net.keksipurkki.petstore.backend;
+
+import io.vertx.core.Vertx;
+import net.keksipurkki.petstore.pet.Pets;
+import net.keksipurkki.petstore.store.Orders;
+import net.keksipurkki.petstore.user.Users;
+
+/**
+ * Storage behind the Pets, Orders and Users services
+ * <p>
+ * A backend owns the data of all three services. The services it returns must behave the same
+ * whatever the backend: that is what BackendIT checks for every backend it knows of.
+ */
+public interface Backend {
+
+    String name();
+
+    /**
+     * @return whether everything a service has completed survives closing and opening the backend
+     */
+    boolean isDurable();
+
+    Pets pets(Vertx vertx);
+
+    Orders orders(Vertx vertx);
+
+    Users users(Vertx vertx);
+
+    void close();
+
+}
@@ -0,0 +1,21 @@
+package net.keksipurkki.petstore.backend;
+
+import java.util.Map;
+
+/**
+ * Service provider of a Backend that is not built in
+ * <p>
+ * Providers are found with the ServiceLoader, so a backend is plugged in by putting a jar with a
+ * `META-INF/services/net.keksipurkki.petstore.backend.BackendProvider` entry on the class path and
+ * setting PETSTORE_BACKEND to its name.
+ */
+public interface BackendProvider {
+
+    String name();
+
+    /**
+     * Opens the backend. No other backend is open meanwhile
+     */
+    Backend open(Map<String, String> environment);
+
+}
@@ -0,0 +1,108 @@
+package net.keksipurkki.petstore.backend;
+
+import net.keksipurkki.petstore.pet.PetStore;
+import net.keksipurkki.petstore.storage.Journal;
+import net.keksipurkki.petstore.user.UsersImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * The Backend of the process
+ * <p>
+ * The backend is chosen with the environment variable PETSTORE_BACKEND:
+ * <ul>
+ *     <li>`memory`: the data is kept in memory and lost on restart</li>
+ *     <li>`off-heap`: like `memory` with PETSTORE_PET_STORAGE set to `off-heap`</li>
+ *     <li>`file`: like `memory`, but journaled to PETSTORE_DATA_DIR, see Journal</li>
+ * </ul>
+ * Any other name is looked up from the BackendProvider services. If the variable is unset, the
+ * backend is `file` when PETSTORE_DATA_DIR is set and `memory` otherwise. PETSTORE_PET_STORAGE
+ * chooses how the built-in backends keep pets in memory, see PetStore, and
+ * PETSTORE_PASSWORD_ITERATIONS how they hash passwords, see UsersImpl.
+ * <p>
+ * One backend is open at a time. Until one is opened, the services are served from the
+ * in-memory stores as they are.
+ */
+public final class Backends {
+
+    private static final Logger logger = LoggerFactory.getLogger(Backends.class);
+
+    public static final String BACKEND_VARIABLE = "PETSTORE_BACKEND";
+
+    private static final Backend DEFAULT = new StoreBackend("memory", false);
+
+    // Guarded by Backends.class
+    private static Backend current;
+
+    private Backends() {
+    }
+
+    public static synchronized Backend open(Map<String, String> environment) {
+        if (nonNull(current)) {
+            throw new IllegalStateException("Backend " + current.name() + " is open already");
+        }
+
+        var name = environment.getOrDefault(BACKEND_VARIABLE, environment.containsKey(Journal.DIRECTORY_VARIABLE) ? "file" : "memory");
+
+        current = switch (name) {
+            case "memory" -> StoreBackend.open(name, inMemory(environment, environment.getOrDefault(PetStore.STORAGE_VARIABLE, "heap")));
+            case "off-heap" -> StoreBackend.open(name, inMemory(environment, "off-heap"));
+            case "file" -> {
+                if (!environment.containsKey(Journal.DIRECTORY_VARIABLE)) {
+                    throw new IllegalArgumentException("The file backend needs " + Journal.DIRECTORY_VARIABLE);
+                }
+                yield StoreBackend.open(name, environment);
+            }
+            default -> provider(name).open(environment);
+        };
+
+        logger.info("Opened the {} backend", name);
+        return current;
+    }
+
+    public static synchronized Backend current() {
+        return isNull(current) ? DEFAULT : current;
+    }
+
+    public static synchronized void close() {
+        if (isNull(current)) {
+            return;
+        }
+
+        try {
+            current.close();
+        } finally {
+            current = null;
+        }
+    }
+
+    // The in-memory backends are not journaled, whatever the environment says
+    private static Map<String, String> inMemory(Map<String, String> environment, String storage) {
+        var settings = new HashMap<String, String>();
+        settings.put(PetStore.STORAGE_VARIABLE, storage);
+
+        var iterations = environment.get(UsersImpl.PASSWORD_ITERATIONS_VARIABLE);
+        if (nonNull(iterations)) {
+            settings.put(UsersImpl.PASSWORD_ITERATIONS_VARIABLE, iterations);
+        }
+
+        return settings;
+    }
+
+    private static BackendProvider provider(String name) {
+        return ServiceLoader.load(BackendProvider.class)
+                            .stream()
+                            .map(ServiceLoader.Provider::get)
+                            .filter(provider -> provider.name().equals(name))
+                            .findFirst()
+                            .orElseThrow(() -> new IllegalArgumentException("Unknown backend " + name));
+    }
+
+}
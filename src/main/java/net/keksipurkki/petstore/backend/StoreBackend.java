@@ -0,0 +1,77 @@
+package net.keksipurkki.petstore.backend;
+
+import io.vertx.core.Vertx;
+import net.keksipurkki.petstore.pet.PetStore;
+import net.keksipurkki.petstore.pet.Pets;
+import net.keksipurkki.petstore.pet.PetsImpl;
+import net.keksipurkki.petstore.storage.Checkpoint;
+import net.keksipurkki.petstore.storage.Journal;
+import net.keksipurkki.petstore.storage.Recovery;
+import net.keksipurkki.petstore.store.Orders;
+import net.keksipurkki.petstore.store.OrdersImpl;
+import net.keksipurkki.petstore.user.Users;
+import net.keksipurkki.petstore.user.UsersImpl;
+
+import java.util.Map;
+
+/**
+ * The built-in backends, which serve from the in-memory stores and optionally journal them
+ */
+final class StoreBackend implements Backend {
+
+    private final String name;
+    private final boolean durable;
+
+    StoreBackend(String name, boolean durable) {
+        this.name = name;
+        this.durable = durable;
+    }
+
+    /**
+     * Empties the stores and restores them from the journal if the environment configures one
+     */
+    static StoreBackend open(String name, Map<String, String> environment) {
+        PetStore.open(environment);
+        OrdersImpl.clear();
+        UsersImpl.open(environment);
+
+        Journal.open(
+            environment,
+            Recovery.of(PetStore.recovery(), OrdersImpl.recovery(), UsersImpl.recovery()),
+            Checkpoint.of(PetStore.checkpoint(), OrdersImpl.checkpoint(), UsersImpl.checkpoint())
+        );
+
+        return new StoreBackend(name, Journal.isOpen());
+    }
+
+    @Override
+    public String name() {
+        return name;
+    }
+
+    @Override
+    public boolean isDurable() {
+        return durable;
+    }
+
+    @Override
+    public Pets pets(Vertx vertx) {
+        return new PetsImpl(vertx);
+    }
+
+    @Override
+    public Orders orders(Vertx vertx) {
+        return new OrdersImpl(vertx);
+    }
+
+    @Override
+    public Users users(Vertx vertx) {
+        return new UsersImpl(vertx);
+    }
+
+    @Override
+    public void close() {
+        Journal.close();
+    }
+
+}
@@ -0,0 +1,17 @@
+package net.keksipurkki.petstore.feed;
+
+/**
+ * A change to a pet or an order as it is sent to the subscribers of the ChangeFeed
+ *
+ * @param data the pet or order after the change, or before it if it was deleted
+ */
+public record Change(long sequence, Type type, int id, Object data) {
+
+    public enum Type {
+        PET,
+        PET_DELETED,
+        ORDER,
+        ORDER_DELETED
+    }
+
+}
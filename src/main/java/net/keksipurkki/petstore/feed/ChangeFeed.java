@@ -0,0 +1,172 @@
+package net.keksipurkki.petstore.feed;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.DeliveryOptions;
+import io.vertx.core.http.ServerWebSocket;
+import net.keksipurkki.petstore.support.ConcurrentIntMap;
+import net.keksipurkki.petstore.support.Json;
+import net.keksipurkki.petstore.support.Versioned;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.ToIntFunction;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * In-memory feed of the changes to pets and orders
+ * <p>
+ * Every change gets a sequence number and is kept in a ring buffer of the last CAPACITY changes.
+ * Appending a change publishes its sequence number on the event bus at ADDRESS, which wakes up
+ * the subscribers to read on from where they are. A subscriber may start from any change that is
+ * still in the ring. One that falls further behind than that, because its connection cannot keep
+ * up, is disconnected with CLOSE_BEHIND rather than buffered for. A change is serialized once, by
+ * the first subscriber that sends it.
+ * <p>
+ * A change to a pet carries the version the pet store installed it in, and is dropped if a later
+ * version of the pet has been appended already, so the changes of a pet are in version order.
+ * Sequence numbers are reserved before the change is put in the ring, so concurrent appends may
+ * land in the ring out of order. A subscriber stops at a change that is not there yet and is woken
+ * up again when it is. The numbering starts from FIRST whenever the process starts.
+ * <p>
+ * The capacity can be configured with the environment variable PETSTORE_CHANGE_FEED_CAPACITY.
+ */
+public final class ChangeFeed {
+
+    public static final String ADDRESS = "petstore.changes";
+    public static final long FIRST = 1;
+    public static final short CLOSE_BEHIND = 4000;
+
+    private static final String CAPACITY_VARIABLE = "PETSTORE_CHANGE_FEED_CAPACITY";
+    private static final int DEFAULT_CAPACITY = 65_536;
+    private static final DeliveryOptions LOCAL = new DeliveryOptions().setLocalOnly(true);
+
+    private static final int capacity = capacity(System.getenv());
+    private static final AtomicReferenceArray<Entry> ring = new AtomicReferenceArray<>(capacity);
+    private static final AtomicLong next = new AtomicLong(FIRST);
+    private static final long NONE = FIRST - 1;
+
+    // The last appended version of each pet. Pet ids are not reused, so deleted pets are kept too
+    private static final ConcurrentIntMap<Long> versions = new ConcurrentIntMap<>();
+
+    private ChangeFeed() {
+    }
+
+    /**
+     * @return the sequence number of the next change
+     */
+    public static long head() {
+        return next.get();
+    }
+
+    /**
+     * @return the sequence number of the oldest change in the ring
+     */
+    public static long oldest() {
+        return Math.max(FIRST, next.get() - capacity);
+    }
+
+    public static void append(Vertx vertx, Change.Type type, int id, Object data) {
+        var sequence = next.getAndIncrement();
+        put(new Change(sequence, type, id, data));
+        vertx.eventBus().publish(ADDRESS, sequence, LOCAL);
+    }
+
+    /**
+     * Appends a change to a pet, unless a later version of the pet has been appended already
+     */
+    public static void append(Vertx vertx, Change.Type type, int id, Versioned<?> data) {
+        var sequence = appendVersioned(type, id, data);
+        if (sequence != NONE) {
+            vertx.eventBus().publish(ADDRESS, sequence, LOCAL);
+        }
+    }
+
+    /**
+     * Appends a change for each of the pets, unless a later version of it has been appended
+     * already. The subscribers are woken up once for all of them
+     */
+    public static <T> void appendAll(Vertx vertx, Change.Type type, List<Versioned<T>> data, ToIntFunction<T> id) {
+        var last = NONE;
+
+        for (var entity : data) {
+            last = Math.max(last, appendVersioned(type, id.applyAsInt(entity.value()), entity));
+        }
+
+        if (last != NONE) {
+            vertx.eventBus().publish(ADDRESS, last, LOCAL);
+        }
+    }
+
+    /**
+     * Sends the changes from the given sequence number on to the WebSocket until it closes
+     */
+    public static void subscribe(ServerWebSocket socket, long from) {
+        new ChangeSubscriber(Vertx.currentContext().owner(), socket, from).start();
+    }
+
+    /**
+     * @return the change with the sequence number as JSON, or null if it is not in the ring
+     */
+    static String read(long sequence) {
+        var entry = ring.get(slot(sequence));
+        return nonNull(entry) && entry.change.sequence() == sequence ? entry.json() : null;
+    }
+
+    // An append that was overtaken by a whole lap of the ring must not overwrite a later change
+    private static void put(Change change) {
+        var entry = new Entry(change);
+        ring.getAndUpdate(slot(change.sequence()), current -> isNull(current) || current.change.sequence() < change.sequence() ? entry : current);
+    }
+
+    // The store installs a version before it is appended, so the writers of a pet may get here in
+    // any order. The versions of a pet are appended one at a time, and one that was overtaken is
+    // dropped rather than sent after the later state. The sequence number is reserved only for a
+    // change that is appended, since a subscriber waits for every number in turn.
+    private static long appendVersioned(Change.Type type, int id, Versioned<?> data) {
+        var sequence = new long[]{NONE};
+
+        versions.compute(id, (key, last) -> {
+            if (nonNull(last) && last >= data.version()) {
+                return last;
+            }
+            sequence[0] = next.getAndIncrement();
+            put(new Change(sequence[0], type, id, data.value()));
+            return data.version();
+        });
+
+        return sequence[0];
+    }
+
+    private static int slot(long sequence) {
+        return (int) (sequence % capacity);
+    }
+
+    private static int capacity(Map<String, String> environment) {
+        var value = environment.get(CAPACITY_VARIABLE);
+        return isNull(value) ? DEFAULT_CAPACITY : Integer.parseInt(value);
+    }
+
+    private static final class Entry {
+        private final Change change;
+        private volatile String json;
+
+        private Entry(Change change) {
+            this.change = change;
+        }
+
+        // Racing subscribers may both serialize the change, which is harmless
+        private String json() {
+            var serialized = json;
+            if (isNull(serialized)) {
+                serialized = Json.stringify(change);
+                json = serialized;
+            }
+            return serialized;
+        }
+    }
+
+}
@@ -0,0 +1,63 @@
+package net.keksipurkki.petstore.feed;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.MessageConsumer;
+import io.vertx.core.http.ServerWebSocket;
+
+import static java.util.Objects.isNull;
+
+/**
+ * Sends the changes of the ChangeFeed to a WebSocket, one text message per change
+ * <p>
+ * The subscriber reads the ring from its own position whenever it is woken up by an append or the
+ * socket drains. It never holds on to changes itself: while the socket is full, it stays behind
+ * in the ring until the ring laps it.
+ */
+final class ChangeSubscriber {
+
+    private final Vertx vertx;
+    private final ServerWebSocket socket;
+
+    private MessageConsumer<Long> consumer;
+    private long next;
+    private boolean closed;
+
+    ChangeSubscriber(Vertx vertx, ServerWebSocket socket, long from) {
+        this.vertx = vertx;
+        this.socket = socket;
+        this.next = from;
+    }
+
+    void start() {
+        consumer = vertx.eventBus().localConsumer(ChangeFeed.ADDRESS, message -> pump());
+        socket.closeHandler(v -> stop());
+        socket.exceptionHandler(cause -> socket.close());
+        socket.drainHandler(v -> pump());
+        pump();
+    }
+
+    private void pump() {
+        while (!closed && !socket.writeQueueFull()) {
+            if (next < ChangeFeed.oldest()) {
+                closed = true;
+                socket.close(ChangeFeed.CLOSE_BEHIND, "Fell behind the change feed at " + next);
+                return;
+            }
+
+            var json = ChangeFeed.read(next);
+
+            if (isNull(json)) {
+                return;
+            }
+
+            socket.writeTextMessage(json);
+            next++;
+        }
+    }
+
+    private void stop() {
+        closed = true;
+        consumer.unregister();
+    }
+
+}
@@ -0,0 +1,20 @@
+package net.keksipurkki.petstore.http;
+
+import net.keksipurkki.petstore.api.ApiException;
+
+public class GoneException extends ApiException {
+
+    public GoneException(String message) {
+        super(message);
+    }
+
+    @Override
+    public int getStatusCode() {
+        return 410;
+    }
+
+    @Override
+    public String getDetail() {
+        return getMessage();
+    }
+}
@@ -1,18 +1,27 @@
 package net.keksipurkki.petstore.http;
 
 import io.vertx.core.*;
+import io.vertx.core.http.HttpMethod;
 import io.vertx.core.http.HttpServer;
+import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.Router;
+import io.vertx.ext.web.RoutingContext;
 import io.vertx.ext.web.openapi.RouterBuilder;
 import io.vertx.ext.web.openapi.RouterBuilderOptions;
-import io.vertx.ext.web.validation.BadRequestException;
 import net.keksipurkki.petstore.api.*;
+import net.keksipurkki.petstore.pet.CategoryRegistry;
+import net.keksipurkki.petstore.pet.PetImport;
 import net.keksipurkki.petstore.pet.Pets;
+import net.keksipurkki.petstore.security.AuthenticationHandler;
+import net.keksipurkki.petstore.security.SecurityContext;
 import net.keksipurkki.petstore.store.Orders;
+import net.keksipurkki.petstore.support.Json;
 import net.keksipurkki.petstore.user.Users;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.atomic.AtomicReference;
+
 import static java.util.Objects.isNull;
 import static java.util.Objects.requireNonNull;
 
@@ -20,6 +29,11 @@ public class HttpVerticle extends AbstractVerticle {
 
     public static String CONTEXT_PATH = "/petstore/v1";
     public static String DIAGNOSTICS_PATH = "/_diagnostics";
+    public static String IMPORT_PATH = "/pet/import";
+    public static String IMAGE_UPLOAD_PATH = "/pet/:petId/uploadImage";
+    public static String CHANGE_FEED_PATH = "/feed";
+    public static String INVENTORY_EVENTS_PATH = "/store/inventory/events";
+    public static String STATIC_PATH = "/static";
 
     private final static Logger logger = LoggerFactory.getLogger(HttpVerticle.class);
     private Api api;
@@ -77,6 +91,41 @@ public class HttpVerticle extends AbstractVerticle {
         var server = vertx.createHttpServer();
         var failureHandler = createFailureHandler();
 
+        // The OpenAPI routes buffer the whole body, which bulk operations cannot afford
+        root.post(CONTEXT_PATH + IMPORT_PATH)
+            .handler(Middlewares.defaultHeaders())
+            .handler(Middlewares.requestTracing(System.getenv()))
+            .handler(AuthenticationHandler.create())
+            .handler(this::importPets);
+
+        // Likewise for images, which are streamed into the image store. The route takes the place of
+        // the UPLOAD_IMAGE operation, which the contract still describes
+        root.post(CONTEXT_PATH + IMAGE_UPLOAD_PATH)
+            .handler(Middlewares.defaultHeaders())
+            .handler(Middlewares.requestTracing(System.getenv()))
+            .handler(AuthenticationHandler.create())
+            .handler(this::uploadImage);
+
+        // WebSocket upgrades are outside of what the OpenAPI routes can describe
+        root.get(CONTEXT_PATH + CHANGE_FEED_PATH)
+            .handler(Middlewares.defaultHeaders())
+            .handler(Middlewares.requestTracing(System.getenv()))
+            .handler(AuthenticationHandler.create())
+            .handler(this::streamChanges);
+
+        // Server-sent events never end, so they are pushed outside of the OpenAPI routes as well
+        root.get(CONTEXT_PATH + INVENTORY_EVENTS_PATH)
+            .handler(Middlewares.defaultHeaders())
+            .handler(Middlewares.requestTracing(System.getenv()))
+            .handler(InventoryEvents.create(vertx, () -> api.getInventory(), System.getenv()));
+
+        // Images are immutable, so they are not served with the default headers
+        root.route(STATIC_PATH + "/:name")
+            .method(HttpMethod.GET)
+            .method(HttpMethod.HEAD)
+            .handler(Middlewares.requestTracing(System.getenv()))
+            .handler(StaticImages.create(name -> api.getImage(name)));
+
         root.route(wildcard(CONTEXT_PATH)).subRouter(openApiRouter);
         root.route(wildcard(DIAGNOSTICS_PATH)).subRouter(diagnosticsRouter());
         root.route().handler(Middlewares.routeNotFound());
@@ -100,7 +149,7 @@ public class HttpVerticle extends AbstractVerticle {
         failureHandler.on(ApiException.class, e -> e);
 
         // OpenAPI schema violation as per Vert.x Validation Service
-        failureHandler.on(BadRequestException.class, cause -> new ApiContractException("Bad request", cause));
+        failureHandler.on(io.vertx.ext.web.validation.BadRequestException.class, cause -> new ApiContractException("Bad request", cause));
 
         // Authentication related problems
         failureHandler.on(SecurityException.class, cause -> new UnauthorizedException("Unauthorized", cause));
@@ -111,6 +160,80 @@ public class HttpVerticle extends AbstractVerticle {
         return failureHandler;
     }
 
+    private void importPets(RoutingContext rc) {
+        var contentType = rc.request().getHeader("content-type");
+
+        if (isNull(contentType) || !contentType.startsWith(PetImport.MEDIA_TYPE)) {
+            throw new UnsupportedMediaTypeException("Expected " + PetImport.MEDIA_TYPE);
+        }
+
+        api.withSecurityContext(rc.get(SecurityContext.REQUEST_CONTEXT_KEY))
+           .importPets(rc.request())
+           .map(report -> Json.stringify(report, true))
+           .onFailure(rc::fail)
+           .onSuccess(report -> {
+               rc.response()
+                 .setStatusCode(200)
+                 .putHeader("content-type", "application/json")
+                 .end(report);
+           });
+    }
+
+    // The file part is the image, the other parts are ignored
+    private void uploadImage(RoutingContext rc) {
+        var request = rc.request();
+        var contentType = request.getHeader("content-type");
+
+        if (isNull(contentType) || !contentType.startsWith("multipart/form-data")) {
+            throw new UnsupportedMediaTypeException("Expected multipart/form-data");
+        }
+
+        var petId = petId(rc.pathParam("petId"));
+        var api = this.api.withSecurityContext(rc.get(SecurityContext.REQUEST_CONTEXT_KEY));
+        var uploaded = new AtomicReference<Future<ApiMessage>>();
+
+        request.setExpectMultipart(true);
+        request.uploadHandler(upload -> {
+            if (upload.name().equals("file") && isNull(uploaded.get())) {
+                uploaded.set(api.uploadImage(petId, upload).onFailure(cause -> request.resume()));
+            }
+        });
+
+        request.end()
+               .flatMap(v -> {
+                   if (isNull(uploaded.get())) {
+                       throw new BadRequestException("Missing file");
+                   }
+                   return uploaded.get();
+               })
+               .map(message -> Json.stringify(message, true))
+               .onFailure(rc::fail)
+               .onSuccess(message -> {
+                   rc.response()
+                     .setStatusCode(200)
+                     .putHeader("content-type", "application/json")
+                     .end(message);
+               });
+    }
+
+    private int petId(String petId) {
+        try {
+            var id = Integer.parseInt(petId);
+            if (id >= 0) {
+                return id;
+            }
+        } catch (NumberFormatException cause) {
+            // Invalid
+        }
+        throw new BadRequestException("Invalid pet id");
+    }
+
+    private void streamChanges(RoutingContext rc) {
+        api.withSecurityContext(rc.get(SecurityContext.REQUEST_CONTEXT_KEY))
+           .streamChanges(rc.request(), rc.request().getParam("from"))
+           .onFailure(rc::fail);
+    }
+
     private String wildcard(String path) {
         return path + "*";
     }
@@ -119,7 +242,28 @@ public class HttpVerticle extends AbstractVerticle {
         var router = Router.router(vertx);
 
         router.route().handler(rc -> {
-            rc.response().setStatusCode(200).end("Diagnostics!");
+            var categories = new JsonObject()
+                .put("size", CategoryRegistry.size())
+                .put("capacity", CategoryRegistry.capacity());
+
+            var diagnostics = new JsonObject()
+                .put("categories", categories);
+
+            api.getImageCacheStatistics().ifPresent(cache -> diagnostics.put("imageCache", new JsonObject()
+                .put("capacity", cache.capacity())
+                .put("size", cache.size())
+                .put("entries", cache.entries())
+                .put("hits", cache.hits())
+                .put("misses", cache.misses())
+                .put("hitRate", cache.hitRate())
+                .put("evictions", cache.evictions())
+                .put("evictedBytes", cache.evictedBytes())
+                .put("rejections", cache.rejections())));
+
+            rc.response()
+              .setStatusCode(200)
+              .putHeader("content-type", "application/json")
+              .end(Json.stringify(diagnostics, true));
         });
 
         return router;
@@ -0,0 +1,120 @@
+package net.keksipurkki.petstore.http;
+
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.ext.web.RoutingContext;
+import net.keksipurkki.petstore.pet.Status;
+import net.keksipurkki.petstore.support.Json;
+
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * Pushes the inventory to its subscribers as server-sent events whenever it changes
+ * <p>
+ * The inventory is checked once per interval for as long as there are subscribers, so a burst of
+ * changes costs at most one event per interval. Each event is serialized once and the same buffer
+ * is written to every subscriber. A new subscriber gets the current inventory right away.
+ * <p>
+ * Every event carries the whole inventory, so a subscriber whose connection is still busy with an
+ * earlier event skips the events in between and gets the latest one when the connection drains.
+ * <p>
+ * All subscribers are served on the context of the verticle that created the handler. The interval
+ * can be configured with the environment variable PETSTORE_INVENTORY_PUSH_INTERVAL_MS.
+ */
+public final class InventoryEvents implements Handler<RoutingContext> {
+
+    public static final String MEDIA_TYPE = "text/event-stream";
+    public static final String INTERVAL_VARIABLE = "PETSTORE_INVENTORY_PUSH_INTERVAL_MS";
+
+    private static final long DEFAULT_INTERVAL = 1000;
+
+    private final Vertx vertx;
+    private final Supplier<Future<Map<Status, Integer>>> inventory;
+    private final long interval;
+    private final Set<Subscriber> subscribers = new LinkedHashSet<>();
+
+    private long timer = -1;
+    private Map<Status, Integer> counts;
+    private Buffer event;
+
+    private InventoryEvents(Vertx vertx, Supplier<Future<Map<Status, Integer>>> inventory, long interval) {
+        this.vertx = vertx;
+        this.inventory = inventory;
+        this.interval = interval;
+    }
+
+    public static InventoryEvents create(Vertx vertx, Supplier<Future<Map<Status, Integer>>> inventory, Map<String, String> environment) {
+        var interval = environment.get(INTERVAL_VARIABLE);
+        return new InventoryEvents(vertx, inventory, isNull(interval) ? DEFAULT_INTERVAL : Long.parseLong(interval));
+    }
+
+    @Override
+    public void handle(RoutingContext rc) {
+        var subscriber = new Subscriber(rc.response());
+
+        rc.response()
+          .setStatusCode(200)
+          .setChunked(true)
+          .putHeader("content-type", MEDIA_TYPE)
+          .closeHandler(v -> unsubscribe(subscriber))
+          .drainHandler(v -> subscriber.send(event));
+
+        subscribers.add(subscriber);
+
+        if (subscribers.size() == 1) {
+            timer = vertx.setPeriodic(interval, id -> refresh());
+            refresh();
+        } else {
+            subscriber.send(event);
+        }
+    }
+
+    private void unsubscribe(Subscriber subscriber) {
+        if (subscribers.remove(subscriber) && subscribers.isEmpty()) {
+            vertx.cancelTimer(timer);
+            counts = null;
+            event = null;
+        }
+    }
+
+    private void refresh() {
+        inventory.get().onSuccess(current -> {
+            if (subscribers.isEmpty() || current.equals(counts)) {
+                return;
+            }
+
+            counts = current;
+            event = Buffer.buffer("event: inventory\ndata: " + Json.stringify(current) + "\n\n");
+
+            for (var subscriber : subscribers) {
+                subscriber.send(event);
+            }
+        });
+    }
+
+    private static final class Subscriber {
+        private final HttpServerResponse response;
+        private Buffer sent;
+
+        private Subscriber(HttpServerResponse response) {
+            this.response = response;
+        }
+
+        private void send(Buffer event) {
+            if (nonNull(event) && event != sent && !response.writeQueueFull()) {
+                sent = event;
+                response.write(event);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,20 @@
+package net.keksipurkki.petstore.http;
+
+import net.keksipurkki.petstore.api.ApiException;
+
+public class RangeNotSatisfiableException extends ApiException {
+
+    public RangeNotSatisfiableException(String message) {
+        super(message);
+    }
+
+    @Override
+    public int getStatusCode() {
+        return 416;
+    }
+
+    @Override
+    public String getDetail() {
+        return getMessage();
+    }
+}
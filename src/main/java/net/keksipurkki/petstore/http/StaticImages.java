@@ -0,0 +1,174 @@
+package net.keksipurkki.petstore.http;
+
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.ext.web.RoutingContext;
+import net.keksipurkki.petstore.image.ImageFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.function.Function;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * Serves the images of the image store by their names
+ * <p>
+ * The name of an image is derived from the hash of its bytes, so what is served under a name never
+ * changes: responses carry the name as a strong ETag and may be cached for a year without
+ * revalidation.
+ * The bytes are sent with sendFile, which lets the kernel copy them from the file to the socket
+ * without passing them through the heap, unless the image store has them in memory already.
+ * <p>
+ * A request for a single byte range is answered with 206 Partial Content, also when conditional on
+ * If-Range with the current ETag. Requests for several ranges get the whole image, as RFC 9110
+ * allows.
+ */
+public final class StaticImages implements Handler<RoutingContext> {
+
+    private static final Logger logger = LoggerFactory.getLogger(StaticImages.class);
+
+    private static final String CACHE_CONTROL = "public, max-age=31536000, immutable";
+    private static final String BYTES = "bytes=";
+
+    private final Function<String, Future<ImageFile>> images;
+
+    private StaticImages(Function<String, Future<ImageFile>> images) {
+        this.images = images;
+    }
+
+    public static StaticImages create(Function<String, Future<ImageFile>> images) {
+        return new StaticImages(images);
+    }
+
+    @Override
+    public void handle(RoutingContext rc) {
+        images.apply(rc.pathParam("name"))
+              .map(file -> {
+                  send(rc, file);
+                  return null;
+              })
+              .onFailure(rc::fail);
+    }
+
+    private void send(RoutingContext rc, ImageFile file) {
+        var request = rc.request();
+        var response = rc.response();
+        var etag = "\"" + file.id() + "\"";
+        var size = file.length();
+
+        if (matches(request.getHeader("if-none-match"), etag)) {
+            response.setStatusCode(304)
+                    .putHeader("etag", etag)
+                    .putHeader("cache-control", CACHE_CONTROL)
+                    .end();
+            return;
+        }
+
+        var range = range(request, etag, size);
+
+        if (isNull(range)) {
+            range = new Range(0, size - 1);
+        } else {
+            response.setStatusCode(206).putHeader("content-range", "bytes " + range.first + "-" + range.last + "/" + size);
+        }
+
+        response.putHeader("content-type", file.type().mediaType())
+                .putHeader("etag", etag)
+                .putHeader("cache-control", CACHE_CONTROL)
+                .putHeader("accept-ranges", "bytes");
+
+        if (request.method() == HttpMethod.HEAD) {
+            response.putHeader("content-length", Long.toString(range.length())).end();
+            return;
+        }
+
+        if (nonNull(file.content())) {
+            response.end(file.content().slice((int) range.first, (int) range.last + 1));
+            return;
+        }
+
+        response.sendFile(file.path(), file.offset() + range.first, range.length())
+                .onFailure(cause -> logger.warn("Sending image {} failed", file.name(), cause));
+    }
+
+    // Weak comparison, as If-None-Match requires
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (isNull(ifNoneMatch)) {
+            return false;
+        }
+
+        for (var candidate : ifNoneMatch.split(",")) {
+            var tag = candidate.trim();
+            if (tag.equals("*") || tag.equals(etag) || tag.equals("W/" + etag)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return the range requested, null if the whole image is to be sent
+     * @throws RangeNotSatisfiableException if the range starts past the end of the image
+     */
+    private static Range range(HttpServerRequest request, String etag, long size) {
+        var header = request.getHeader("range");
+        var ifRange = request.getHeader("if-range");
+
+        if (isNull(header) || !header.startsWith(BYTES) || header.contains(",") || (nonNull(ifRange) && !ifRange.equals(etag))) {
+            return null;
+        }
+
+        var spec = header.substring(BYTES.length()).trim();
+        var dash = spec.indexOf('-');
+
+        try {
+            if (dash < 0) {
+                return null;
+            }
+
+            if (dash == 0) {
+                var suffix = Long.parseLong(spec.substring(1));
+                if (suffix < 0) {
+                    return null;
+                }
+                if (suffix == 0) {
+                    throw unsatisfiable(request, size);
+                }
+                return new Range(Math.max(0, size - suffix), size - 1);
+            }
+
+            var first = Long.parseLong(spec.substring(0, dash));
+            var last = dash == spec.length() - 1 ? size - 1 : Long.parseLong(spec.substring(dash + 1));
+
+            if (first >= size) {
+                throw unsatisfiable(request, size);
+            }
+
+            if (last < first) {
+                return null;
+            }
+
+            return new Range(first, Math.min(last, size - 1));
+        } catch (NumberFormatException cause) {
+            // Invalid ranges are ignored
+            return null;
+        }
+    }
+
+    private static RangeNotSatisfiableException unsatisfiable(HttpServerRequest request, long size) {
+        request.response().putHeader("content-range", "bytes */" + size);
+        return new RangeNotSatisfiableException("The image is " + size + " bytes long");
+    }
+
+    private record Range(long first, long last) {
+        long length() {
+            return last - first + 1;
+        }
+    }
+
+}
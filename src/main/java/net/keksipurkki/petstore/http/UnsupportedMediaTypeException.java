@@ -0,0 +1,20 @@
+package net.keksipurkki.petstore.http;
+
+import net.keksipurkki.petstore.api.ApiException;
+
+public class UnsupportedMediaTypeException extends ApiException {
+
+    public UnsupportedMediaTypeException(String message) {
+        super(message);
+    }
+
+    @Override
+    public int getStatusCode() {
+        return 415;
+    }
+
+    @Override
+    public String getDetail() {
+        return getMessage();
+    }
+}
@@ -0,0 +1,132 @@
+package net.keksipurkki.petstore.image;
+
+import io.netty.buffer.Unpooled;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.ReadStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * ImageStore that keeps the popular images of another store in memory, see ImageCache
+ * <p>
+ * An image found in the cache is returned with its bytes. An image that misses the cache is
+ * returned as it is in the store, and copied into a direct buffer in the background for the
+ * requests that come after. Images never change once stored, so the cache is never stale.
+ * <p>
+ * The budget of the cache is set in bytes with the environment variable PETSTORE_IMAGE_CACHE_BYTES.
+ * A budget of 0 turns the cache off.
+ */
+final class CachedImageStore implements ImageStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(CachedImageStore.class);
+
+    public static final String CAPACITY_VARIABLE = "PETSTORE_IMAGE_CACHE_BYTES";
+
+    private static final long DEFAULT_CAPACITY = 64 * 1024 * 1024;
+
+    private final Vertx vertx;
+    private final ImageStore store;
+    private final ImageCache cache;
+
+    private CachedImageStore(Vertx vertx, ImageStore store, ImageCache cache) {
+        this.vertx = vertx;
+        this.store = store;
+        this.cache = cache;
+    }
+
+    /**
+     * @return the store with a cache in front of it, or the store itself if the cache is turned off
+     */
+    static ImageStore wrap(Vertx vertx, ImageStore store, Map<String, String> environment) {
+        var value = environment.get(CAPACITY_VARIABLE);
+        var capacity = isNull(value) ? DEFAULT_CAPACITY : Long.parseLong(value);
+
+        if (capacity <= 0) {
+            return store;
+        }
+
+        logger.info("Caching images in {} bytes", capacity);
+        return new CachedImageStore(vertx, store, new ImageCache(capacity));
+    }
+
+    @Override
+    public Future<StoredImage> put(ReadStream<Buffer> image) {
+        return store.put(image);
+    }
+
+    @Override
+    public Future<Void> putThumbnail(ImageName name, Buffer thumbnail) {
+        return store.putThumbnail(name, thumbnail);
+    }
+
+    @Override
+    public Future<Optional<ImageFile>> find(ImageName name) {
+        var cached = cache.get(name);
+
+        if (cached.isPresent()) {
+            return Future.succeededFuture(cached);
+        }
+
+        return store.find(name).onSuccess(file -> file.ifPresent(found -> load(name, found)));
+    }
+
+    @Override
+    public Stream<ImageName> originals() {
+        return store.originals();
+    }
+
+    @Override
+    public ByteBuffer read(ImageFile file) throws IOException {
+        return nonNull(file.content()) ? file.content().getByteBuf().nioBuffer() : store.read(file);
+    }
+
+    @Override
+    public Future<Long> compact(Predicate<ImageName> live) {
+        return store.compact(live);
+    }
+
+    @Override
+    public Optional<ImageCacheStatistics> cacheStatistics() {
+        return Optional.of(cache.statistics());
+    }
+
+    /**
+     * @return a buffer that shares the bytes
+     */
+    static Buffer buffer(ByteBuffer bytes) {
+        return Buffer.buffer(Unpooled.wrappedBuffer(bytes.duplicate()));
+    }
+
+    private void load(ImageName name, ImageFile file) {
+        if (!cache.load(file, name)) {
+            return;
+        }
+
+        vertx.<ByteBuffer>executeBlocking(promise -> {
+            try {
+                var bytes = store.read(file);
+                promise.complete(ByteBuffer.allocateDirect(bytes.remaining()).put(bytes).flip());
+            } catch (IOException cause) {
+                promise.fail(cause);
+            }
+        }, false).onComplete(ar -> {
+            if (ar.failed()) {
+                logger.warn("Image {} cannot be cached", name, ar.cause());
+            }
+            cache.loaded(name, file, ar.result());
+        });
+    }
+
+}
@@ -0,0 +1,174 @@
+package net.keksipurkki.petstore.image;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.CopyOptions;
+import io.vertx.core.file.FileSystem;
+import io.vertx.core.file.OpenOptions;
+import io.vertx.core.streams.ReadStream;
+import net.keksipurkki.petstore.storage.Journal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * ImageStore that keeps every image in a file of its own
+ * <p>
+ * An upload is written to a file in the `incoming` directory as it streams in, see ImageWriter.
+ * Once it is complete and its hash is known, the file is renamed atomically to
+ * `<first two hex digits of the hash>/<hash>.<extension>`, or dropped if the image is there
+ * already. Thumbnails are written and renamed the same way next to their image. A file under its
+ * final name is therefore always complete.
+ * <p>
+ * The store is configured with the following environment variables:
+ * <ul>
+ *     <li>PETSTORE_IMAGE_DIR: the directory of the images. Defaults to the `images` directory in
+ *     PETSTORE_DATA_DIR if that is set, and to a directory in the temporary directory otherwise</li>
+ *     <li>PETSTORE_IMAGE_MAX_BYTES: the size of the largest image accepted</li>
+ * </ul>
+ */
+final class FileImageStore implements ImageStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileImageStore.class);
+
+    public static final String DIRECTORY_VARIABLE = "PETSTORE_IMAGE_DIR";
+    public static final String MAX_SIZE_VARIABLE = "PETSTORE_IMAGE_MAX_BYTES";
+
+    static final long DEFAULT_MAX_SIZE = 16 * 1024 * 1024;
+
+    private final FileSystem fs;
+    private final Path directory;
+    private final Path incoming;
+    private final long maxSize;
+
+    private FileImageStore(FileSystem fs, Path directory, long maxSize) {
+        this.fs = fs;
+        this.directory = directory;
+        this.incoming = directory.resolve("incoming");
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Creates the directories of the store and removes the uploads an earlier process left unfinished
+     */
+    static FileImageStore open(Vertx vertx, Map<String, String> environment) {
+        var maxSize = environment.get(MAX_SIZE_VARIABLE);
+        var store = new FileImageStore(vertx.fileSystem(), directory(environment), isNull(maxSize) ? DEFAULT_MAX_SIZE : Long.parseLong(maxSize));
+
+        try {
+            Files.createDirectories(store.incoming);
+            try (var unfinished = Files.list(store.incoming)) {
+                for (var file : unfinished.toList()) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        } catch (IOException cause) {
+            throw new UncheckedIOException("Image store cannot be opened in " + store.directory, cause);
+        }
+
+        logger.info("Storing images in {}", store.directory);
+        return store;
+    }
+
+    @Override
+    public Future<StoredImage> put(ReadStream<Buffer> image) {
+        image.pause();
+
+        var upload = incoming.resolve(UUID.randomUUID().toString()).toString();
+
+        return fs.open(upload, new OpenOptions().setWrite(true).setCreateNew(true))
+                 .flatMap(file -> {
+                     var writer = new ImageWriter(file, maxSize);
+                     return image.pipeTo(writer).map(v -> writer.image());
+                 })
+                 .flatMap(stored -> commit(upload, stored))
+                 .onFailure(cause -> fs.delete(upload));
+    }
+
+    @Override
+    public Future<Void> putThumbnail(ImageName name, Buffer thumbnail) {
+        var upload = incoming.resolve(UUID.randomUUID().toString()).toString();
+
+        return fs.writeFile(upload, thumbnail)
+                 .flatMap(v -> move(upload, path(name)))
+                 .onFailure(cause -> fs.delete(upload));
+    }
+
+    @Override
+    public Future<Optional<ImageFile>> find(ImageName name) {
+        var path = path(name).toString();
+
+        return fs.props(path)
+                 .map(props -> Optional.of(new ImageFile(name.toString(), name.type(), path, 0, props.size())))
+                 .recover(cause -> {
+                     if (cause.getCause() instanceof NoSuchFileException) {
+                         return Future.succeededFuture(Optional.empty());
+                     }
+                     return Future.failedFuture(cause);
+                 });
+    }
+
+    @Override
+    public Stream<ImageName> originals() {
+        try {
+            return Files.find(directory, 2, (path, attributes) -> attributes.isRegularFile() && !path.startsWith(incoming))
+                        .flatMap(path -> ImageName.parse(path.getFileName().toString()).stream())
+                        .filter(ImageName::isOriginal);
+        } catch (IOException cause) {
+            throw new UncheckedIOException(cause);
+        }
+    }
+
+    // Concurrent uploads of the same image rename identical files over each other
+    private Future<StoredImage> commit(String upload, StoredImage image) {
+        var target = path(image.name());
+
+        return fs.exists(target.toString()).flatMap(exists -> {
+            if (exists) {
+                return fs.delete(upload).map(image);
+            }
+            return move(upload, target).map(image);
+        });
+    }
+
+    private Future<Void> move(String upload, Path target) {
+        var options = new CopyOptions().setAtomicMove(true).setReplaceExisting(true);
+
+        return fs.mkdirs(target.getParent().toString())
+                 .flatMap(v -> fs.move(upload, target.toString(), options));
+    }
+
+    private Path path(ImageName name) {
+        return directory.resolve(name.hash().substring(0, 2)).resolve(name.toString());
+    }
+
+    static Path directory(Map<String, String> environment) {
+        var directory = environment.get(DIRECTORY_VARIABLE);
+
+        if (nonNull(directory)) {
+            return Path.of(directory);
+        }
+
+        var data = environment.get(Journal.DIRECTORY_VARIABLE);
+
+        if (nonNull(data)) {
+            return Path.of(data, "images");
+        }
+
+        return Path.of(System.getProperty("java.io.tmpdir"), "petstore-images");
+    }
+
+}
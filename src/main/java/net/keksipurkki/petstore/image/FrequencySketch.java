@@ -0,0 +1,85 @@
+package net.keksipurkki.petstore.image;
+
+/**
+ * Estimates how often keys have been seen lately, in four bits per counter
+ * <p>
+ * A count-min sketch of four counters per key, sixteen counters to a long. Once ten times as many
+ * keys have been counted as the sketch has longs, every counter is halved, so the estimates follow
+ * what is popular now rather than what has been popular since the start.
+ */
+final class FrequencySketch {
+
+    private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * @param keys the number of keys expected to be tracked at a time
+     */
+    FrequencySketch(int keys) {
+        var size = Integer.highestOneBit(Math.max(16, Math.min(keys, 1 << 24)) - 1) << 1;
+        this.table = new long[size];
+        this.mask = size - 1;
+        this.sampleSize = 10 * size;
+    }
+
+    int frequency(Object key) {
+        var hash = spread(key.hashCode());
+        var frequency = 15;
+
+        for (int i = 0; i < SEEDS.length; i++) {
+            var slot = slot(hash, i);
+            var counter = (int) ((table[slot >>> 4] >>> ((slot & 15) << 2)) & 15);
+            frequency = Math.min(frequency, counter);
+        }
+
+        return frequency;
+    }
+
+    void increment(Object key) {
+        var hash = spread(key.hashCode());
+        var added = false;
+
+        for (int i = 0; i < SEEDS.length; i++) {
+            var slot = slot(hash, i);
+            var index = slot >>> 4;
+            var shift = (slot & 15) << 2;
+
+            if (((table[index] >>> shift) & 15) < 15) {
+                table[index] += 1L << shift;
+                added = true;
+            }
+        }
+
+        if (added && ++additions == sampleSize) {
+            reset();
+        }
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+
+    // The counter of the key for the i-th hash function, as the index of its long times 16 plus its nibble
+    private int slot(int hash, int i) {
+        var h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return (int) (h & ((long) mask << 4 | 15));
+    }
+
+    private static int spread(int hash) {
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        return (hash >>> 16) ^ hash;
+    }
+
+}
@@ -0,0 +1,207 @@
+package net.keksipurkki.petstore.image;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * A cache of images in direct buffers, bounded by the bytes it holds
+ * <p>
+ * The cache follows W-TinyLFU. New images enter a small LRU window. The image the window evicts
+ * joins the main cache only if it has been asked for more often than every image it would evict
+ * there, as estimated by a FrequencySketch of recent requests, so that a burst of one-off requests
+ * does not flush the popular images. The main cache is a segmented LRU: an image that is asked for
+ * again while on probation is protected, and the protected segment demotes its least recently used
+ * images back to probation when it is full. Sizes are weighed in bytes throughout, and an image
+ * larger than a sixteenth of the budget is never cached.
+ * <p>
+ * Evicted buffers are freed by the garbage collector once the responses that were sent from them
+ * are written.
+ */
+final class ImageCache {
+
+    private static final double WINDOW_SHARE = 0.01;
+    private static final double PROTECTED_SHARE = 0.8;
+
+    // Used to size the frequency sketch
+    private static final int AVERAGE_IMAGE_SIZE = 32 * 1024;
+
+    private enum Region {
+        WINDOW, PROBATION, PROTECTED
+    }
+
+    private static final class Entry {
+        private final ImageFile file;
+        private final ByteBuffer bytes;
+        private Region region;
+
+        private Entry(ImageFile file, ByteBuffer bytes) {
+            this.file = file;
+            this.bytes = bytes;
+        }
+
+        private int size() {
+            return bytes.capacity();
+        }
+    }
+
+    private final long capacity;
+    private final long maxEntrySize;
+    private final long windowCapacity;
+    private final long protectedCapacity;
+    private final FrequencySketch sketch;
+
+    // Guarded by `this`
+    private final Map<ImageName, Entry> entries = new HashMap<>();
+    private final Map<Region, LinkedHashMap<ImageName, Entry>> regions = new HashMap<>();
+    private final Map<Region, Long> sizes = new HashMap<>();
+    private final Set<ImageName> loading = new HashSet<>();
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long evictedBytes;
+    private long rejections;
+
+    ImageCache(long capacity) {
+        this.capacity = capacity;
+        this.maxEntrySize = capacity / 16;
+        this.windowCapacity = Math.max(maxEntrySize, (long) (capacity * WINDOW_SHARE));
+        this.protectedCapacity = (long) ((capacity - windowCapacity) * PROTECTED_SHARE);
+        this.sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE, capacity / AVERAGE_IMAGE_SIZE));
+
+        for (var region : Region.values()) {
+            regions.put(region, new LinkedHashMap<>(16, 0.75f, true));
+            sizes.put(region, 0L);
+        }
+    }
+
+    /**
+     * @return the image with its bytes, if they are in the cache
+     */
+    synchronized Optional<ImageFile> get(ImageName name) {
+        sketch.increment(name);
+
+        var entry = entries.get(name);
+
+        if (entry == null) {
+            misses++;
+            return Optional.empty();
+        }
+
+        hits++;
+
+        if (entry.region == Region.PROBATION) {
+            move(entry, name, Region.PROTECTED);
+            while (sizes.get(Region.PROTECTED) > protectedCapacity) {
+                var demoted = regions.get(Region.PROTECTED).entrySet().iterator().next();
+                move(demoted.getValue(), demoted.getKey(), Region.PROBATION);
+            }
+        } else {
+            regions.get(entry.region).get(name);
+        }
+
+        return Optional.of(entry.file.withContent(CachedImageStore.buffer(entry.bytes)));
+    }
+
+    /**
+     * Claims the loading of an image that missed the cache
+     *
+     * @return false if the image is too large to be cached or is being loaded already
+     */
+    synchronized boolean load(ImageFile file, ImageName name) {
+        return file.length() <= maxEntrySize && !entries.containsKey(name) && loading.add(name);
+    }
+
+    /**
+     * Caches an image claimed with load, or gives up the claim if the bytes are null
+     */
+    synchronized void loaded(ImageName name, ImageFile file, ByteBuffer bytes) {
+        loading.remove(name);
+
+        if (bytes == null || entries.containsKey(name)) {
+            return;
+        }
+
+        var entry = new Entry(file, bytes);
+        entries.put(name, entry);
+        add(entry, name, Region.WINDOW);
+
+        while (sizes.get(Region.WINDOW) > windowCapacity) {
+            var candidate = regions.get(Region.WINDOW).entrySet().iterator().next();
+            remove(candidate.getValue(), candidate.getKey());
+            admit(candidate.getKey(), candidate.getValue());
+        }
+    }
+
+    synchronized ImageCacheStatistics statistics() {
+        var requests = hits + misses;
+
+        return new ImageCacheStatistics(
+            capacity,
+            sizes.values().stream().mapToLong(Long::longValue).sum(),
+            entries.size(),
+            hits,
+            misses,
+            requests == 0 ? 0.0 : (double) hits / requests,
+            evictions,
+            evictedBytes,
+            rejections
+        );
+    }
+
+    // Moves an image evicted from the window to the main cache, if it is more popular than the images it would evict
+    private void admit(ImageName name, Entry candidate) {
+        var main = capacity - windowCapacity;
+        var free = main - sizes.get(Region.PROBATION) - sizes.get(Region.PROTECTED);
+        var victims = new ArrayList<Map.Entry<ImageName, Entry>>();
+        var frequency = sketch.frequency(name);
+
+        for (var region : new Region[]{Region.PROBATION, Region.PROTECTED}) {
+            var lru = regions.get(region).entrySet().iterator();
+
+            while (free < candidate.size() && lru.hasNext()) {
+                var victim = lru.next();
+
+                if (sketch.frequency(victim.getKey()) >= frequency) {
+                    entries.remove(name);
+                    rejections++;
+                    return;
+                }
+
+                victims.add(victim);
+                free += victim.getValue().size();
+            }
+        }
+
+        for (var victim : victims) {
+            remove(victim.getValue(), victim.getKey());
+            entries.remove(victim.getKey());
+            evictions++;
+            evictedBytes += victim.getValue().size();
+        }
+
+        add(candidate, name, Region.PROBATION);
+    }
+
+    private void move(Entry entry, ImageName name, Region region) {
+        remove(entry, name);
+        add(entry, name, region);
+    }
+
+    private void add(Entry entry, ImageName name, Region region) {
+        entry.region = region;
+        regions.get(region).put(name, entry);
+        sizes.merge(region, (long) entry.size(), Long::sum);
+    }
+
+    private void remove(Entry entry, ImageName name) {
+        regions.get(entry.region).remove(name);
+        sizes.merge(entry.region, (long) -entry.size(), Long::sum);
+    }
+
+}
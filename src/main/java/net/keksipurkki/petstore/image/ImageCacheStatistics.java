@@ -0,0 +1,24 @@
+package net.keksipurkki.petstore.image;
+
+/**
+ * The state of the image cache and what it has done since it was created
+ *
+ * @param capacity     the budget of the cache in bytes
+ * @param size         the bytes of the images in the cache
+ * @param hitRate      the share of requests that were served from the cache
+ * @param evictions    the number of images evicted to make room for others
+ * @param rejections   the number of images that were not admitted, since the images they would
+ *                     have evicted were more popular
+ */
+public record ImageCacheStatistics(
+    long capacity,
+    long size,
+    int entries,
+    long hits,
+    long misses,
+    double hitRate,
+    long evictions,
+    long evictedBytes,
+    long rejections
+) {
+}
@@ -0,0 +1,20 @@
+package net.keksipurkki.petstore.image;
+
+import net.keksipurkki.petstore.api.ApiException;
+
+public class ImageException extends ApiException {
+
+    public ImageException(String message) {
+        super(message);
+    }
+
+    @Override
+    public int getStatusCode() {
+        return 400;
+    }
+
+    @Override
+    public String getDetail() {
+        return getMessage();
+    }
+}
@@ -0,0 +1,29 @@
+package net.keksipurkki.petstore.image;
+
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * The region of a file that holds an image
+ *
+ * @param name    the name of the image in the store
+ * @param offset  the position of the first byte of the image in the file
+ * @param content the bytes of the image if they are in memory, null otherwise
+ */
+public record ImageFile(String name, ImageType type, String path, long offset, long length, Buffer content) {
+
+    public ImageFile(String name, ImageType type, String path, long offset, long length) {
+        this(name, type, path, offset, length, null);
+    }
+
+    /**
+     * @return the name of the image without the extension, which identifies its bytes
+     */
+    public String id() {
+        return name.substring(0, name.lastIndexOf('.'));
+    }
+
+    public ImageFile withContent(Buffer content) {
+        return new ImageFile(name, type, path, offset, length, content);
+    }
+
+}
@@ -0,0 +1,50 @@
+package net.keksipurkki.petstore.image;
+
+import java.util.Optional;
+import java.util.regex.Pattern;
+
+/**
+ * The name of an image in an ImageStore
+ * <p>
+ * An uploaded image is named `<hash>.<extension>` after the SHA-256 hash of its bytes, and its
+ * thumbnails `<hash>-<size>.<extension>` after the same hash and the size of the square they fit
+ * in. The name of a thumbnail is therefore known before the thumbnail has been made.
+ *
+ * @param size the size of a thumbnail, ORIGINAL for the uploaded image
+ */
+public record ImageName(String hash, int size, ImageType type) {
+
+    public static final int ORIGINAL = 0;
+
+    private static final Pattern PATTERN = Pattern.compile("([0-9a-f]{64})(?:-([1-9][0-9]{0,4}))?\\.([a-z]+)");
+
+    public static Optional<ImageName> parse(String name) {
+        var matcher = PATTERN.matcher(name);
+
+        if (!matcher.matches()) {
+            return Optional.empty();
+        }
+
+        var size = matcher.group(2) == null ? ORIGINAL : Integer.parseInt(matcher.group(2));
+
+        return ImageType.fromExtension(matcher.group(3)).map(type -> new ImageName(matcher.group(1), size, type));
+    }
+
+    public boolean isOriginal() {
+        return size == ORIGINAL;
+    }
+
+    public ImageName original() {
+        return new ImageName(hash, ORIGINAL, type);
+    }
+
+    public ImageName thumbnail(int size) {
+        return new ImageName(hash, size, type);
+    }
+
+    @Override
+    public String toString() {
+        return hash + (isOriginal() ? "" : "-" + size) + "." + type.extension();
+    }
+
+}
@@ -0,0 +1,110 @@
+package net.keksipurkki.petstore.image;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.ReadStream;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressed store of pet images
+ * <p>
+ * An image is stored under the SHA-256 hash of its bytes, so uploading the same image again, for
+ * the same pet or another one, keeps a single copy. Images are never modified once stored, and
+ * their thumbnails are stored next to them, see ImageName.
+ * <p>
+ * The store is chosen with the environment variable PETSTORE_IMAGE_STORE:
+ * <ul>
+ *     <li>`file`: every image is a file of its own, see FileImageStore</li>
+ *     <li>`segments`: images are packed into large segment files, see SegmentImageStore</li>
+ * </ul>
+ * Both keep the images in the directory given by PETSTORE_IMAGE_DIR. The popular images are
+ * served from memory, see CachedImageStore.
+ */
+public interface ImageStore {
+
+    String STORE_VARIABLE = "PETSTORE_IMAGE_STORE";
+
+    /**
+     * Stores the image as it streams in. The stream is paused until the store is ready for it
+     *
+     * @return the stored image, failed with ImageException if the bytes are not an image of a known type
+     */
+    Future<StoredImage> put(ReadStream<Buffer> image);
+
+    /**
+     * Stores a thumbnail of an image in the store, replacing an earlier one by the same name
+     */
+    Future<Void> putThumbnail(ImageName name, Buffer thumbnail);
+
+    /**
+     * @return where the image or thumbnail is, empty if there is none by that name
+     */
+    Future<Optional<ImageFile>> find(ImageName name);
+
+    /**
+     * Lists the uploaded images, blocking the calling thread. The stream must be closed
+     */
+    Stream<ImageName> originals();
+
+    /**
+     * Reads an image or thumbnail that was found in the store, blocking the calling thread
+     */
+    default ByteBuffer read(ImageFile file) throws IOException {
+        try (var channel = FileChannel.open(Path.of(file.path()), StandardOpenOption.READ)) {
+            var buffer = ByteBuffer.allocate(Math.toIntExact(file.length()));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, file.offset() + buffer.position()) < 0) {
+                    throw new EOFException("Image " + file.name() + " is truncated");
+                }
+            }
+            return buffer.flip();
+        }
+    }
+
+    /**
+     * Reclaims the space of the images that are no longer used, and of their thumbnails. Images
+     * stored lately are kept regardless, since they may not be in use yet. Stores that cannot
+     * reclaim space keep everything
+     *
+     * @param live tells whether an image is in use
+     * @return the number of bytes reclaimed
+     */
+    default Future<Long> compact(Predicate<ImageName> live) {
+        return Future.succeededFuture(0L);
+    }
+
+    /**
+     * @return the statistics of the cache in front of the store, empty if there is none
+     */
+    default Optional<ImageCacheStatistics> cacheStatistics() {
+        return Optional.empty();
+    }
+
+    static ImageStore create(Vertx vertx) {
+        return create(vertx, System.getenv());
+    }
+
+    static ImageStore create(Vertx vertx, Map<String, String> environment) {
+        var name = environment.getOrDefault(STORE_VARIABLE, "file");
+
+        var store = switch (name) {
+            case "file" -> FileImageStore.open(vertx, environment);
+            case "segments" -> SegmentImageStore.open(vertx, environment);
+            default -> throw new IllegalArgumentException("Unknown image store " + name);
+        };
+
+        return CachedImageStore.wrap(vertx, store, environment);
+    }
+
+}
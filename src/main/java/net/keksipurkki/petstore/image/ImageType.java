@@ -0,0 +1,84 @@
+package net.keksipurkki.petstore.image;
+
+import io.vertx.core.buffer.Buffer;
+
+import java.util.Optional;
+
+/**
+ * The image formats the store accepts, recognized by their signature rather than by what the client claims
+ */
+public enum ImageType {
+
+    PNG("image/png", "png"),
+    JPEG("image/jpeg", "jpg"),
+    GIF("image/gif", "gif"),
+    WEBP("image/webp", "webp");
+
+    /**
+     * The number of leading bytes that tell the types apart
+     */
+    public static final int SIGNATURE_LENGTH = 12;
+
+    private final String mediaType;
+    private final String extension;
+
+    ImageType(String mediaType, String extension) {
+        this.mediaType = mediaType;
+        this.extension = extension;
+    }
+
+    public String mediaType() {
+        return mediaType;
+    }
+
+    public String extension() {
+        return extension;
+    }
+
+    /**
+     * @param head the first SIGNATURE_LENGTH bytes of the image, or all of them if it is shorter
+     */
+    public static Optional<ImageType> of(Buffer head) {
+        if (startsWith(head, 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n')) {
+            return Optional.of(PNG);
+        }
+
+        if (startsWith(head, 0xff, 0xd8, 0xff)) {
+            return Optional.of(JPEG);
+        }
+
+        if (startsWith(head, 'G', 'I', 'F', '8')) {
+            return Optional.of(GIF);
+        }
+
+        if (startsWith(head, 'R', 'I', 'F', 'F') && head.length() >= SIGNATURE_LENGTH && head.getString(8, 12).equals("WEBP")) {
+            return Optional.of(WEBP);
+        }
+
+        return Optional.empty();
+    }
+
+    public static Optional<ImageType> fromExtension(String extension) {
+        for (var type : values()) {
+            if (type.extension.equals(extension)) {
+                return Optional.of(type);
+            }
+        }
+        return Optional.empty();
+    }
+
+    private static boolean startsWith(Buffer head, int... signature) {
+        if (head.length() < signature.length) {
+            return false;
+        }
+
+        for (int i = 0; i < signature.length; i++) {
+            if ((head.getByte(i) & 0xff) != signature[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+}
@@ -0,0 +1,140 @@
+package net.keksipurkki.petstore.image;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.AsyncFile;
+import io.vertx.core.streams.WriteStream;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * Writes an image to a file while hashing it and recognizing its type
+ * <p>
+ * Every buffer is hashed as it passes, so the image is read once and never held in memory as a
+ * whole. A body that turns out not to be an image, or grows past the maximum size, fails the
+ * writes from then on. The file is closed when the writer is ended, which a pipe does whether it
+ * succeeds or fails.
+ */
+final class ImageWriter implements WriteStream<Buffer> {
+
+    private final AsyncFile file;
+    private final long maxSize;
+    private final MessageDigest digest = sha256();
+    private final Buffer head = Buffer.buffer(ImageType.SIGNATURE_LENGTH);
+
+    private long size;
+    private ImageType type;
+    private ImageException failure;
+
+    ImageWriter(AsyncFile file, long maxSize) {
+        this.file = file;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return the image written, once the writer has ended successfully
+     */
+    StoredImage image() {
+        return new StoredImage(HexFormat.of().formatHex(digest.digest()), type, size);
+    }
+
+    @Override
+    public ImageWriter exceptionHandler(Handler<Throwable> handler) {
+        file.exceptionHandler(handler);
+        return this;
+    }
+
+    @Override
+    public Future<Void> write(Buffer data) {
+        if (nonNull(failure)) {
+            return Future.failedFuture(failure);
+        }
+
+        size += data.length();
+
+        if (size > maxSize) {
+            return fail(new ImageException("Image is larger than " + maxSize + " bytes"));
+        }
+
+        if (head.length() < ImageType.SIGNATURE_LENGTH) {
+            head.appendBuffer(data, 0, Math.min(data.length(), ImageType.SIGNATURE_LENGTH - head.length()));
+
+            if (head.length() == ImageType.SIGNATURE_LENGTH && !recognize()) {
+                return fail(unknownType());
+            }
+        }
+
+        digest.update(data.getByteBuf().nioBuffer());
+        return file.write(data);
+    }
+
+    @Override
+    public void write(Buffer data, Handler<AsyncResult<Void>> handler) {
+        write(data).onComplete(handler);
+    }
+
+    @Override
+    public Future<Void> end() {
+        if (isNull(failure) && isNull(type) && !recognize()) {
+            failure = unknownType();
+        }
+
+        if (nonNull(failure)) {
+            return file.close().transform(ar -> Future.failedFuture(failure));
+        }
+
+        return file.flush().flatMap(v -> file.close());
+    }
+
+    @Override
+    public void end(Handler<AsyncResult<Void>> handler) {
+        end().onComplete(handler);
+    }
+
+    @Override
+    public ImageWriter setWriteQueueMaxSize(int maxSize) {
+        file.setWriteQueueMaxSize(maxSize);
+        return this;
+    }
+
+    @Override
+    public boolean writeQueueFull() {
+        return isNull(failure) && file.writeQueueFull();
+    }
+
+    @Override
+    public ImageWriter drainHandler(Handler<Void> handler) {
+        file.drainHandler(handler);
+        return this;
+    }
+
+    private boolean recognize() {
+        type = ImageType.of(head).orElse(null);
+        return nonNull(type);
+    }
+
+    private Future<Void> fail(ImageException cause) {
+        failure = cause;
+        return Future.failedFuture(cause);
+    }
+
+    private static ImageException unknownType() {
+        return new ImageException("Expected a PNG, JPEG, GIF or WebP image");
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException cause) {
+            throw new IllegalStateException("SHA-256 is not available", cause);
+        }
+    }
+
+}
@@ -0,0 +1,296 @@
+package net.keksipurkki.petstore.image;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32C;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.*;
+import static java.util.Objects.isNull;
+
+/**
+ * A segment file of a SegmentImageStore
+ * <p>
+ * A record is framed as `[magic][crc32c][name length][length][name][bytes]`, where the checksum
+ * covers everything after it. The bytes are written before the header, so a write that a crash
+ * cut short leaves no valid record behind.
+ * <p>
+ * Reads are served from a read-only mapping of the file. The mapping of the active segment is
+ * extended when a read reaches past it. Once sealed, a segment is not written to anymore and the
+ * locations of its records are saved next to it in a hint file, so the store can be opened without
+ * reading the images.
+ */
+final class Segment {
+
+    private static final Logger logger = LoggerFactory.getLogger(Segment.class);
+
+    private static final int MAGIC = 0x50494d47;
+    private static final int HEADER_SIZE = 13;
+    private static final int HINT_SIZE = 16;
+
+    private final int id;
+    private final Path path;
+    private final FileChannel channel;
+    private volatile long size;
+    private volatile MappedByteBuffer mapped;
+
+    /**
+     * Where the bytes of a record are in a segment
+     *
+     * @param start  the position of the record
+     * @param offset the position of its bytes
+     */
+    record Location(Segment segment, long start, long offset, int length) {
+
+        long size() {
+            return offset - start + length;
+        }
+    }
+
+    private Segment(int id, Path path, FileChannel channel, long size) {
+        this.id = id;
+        this.path = path;
+        this.channel = channel;
+        this.size = size;
+    }
+
+    static Segment create(Path directory, int id) throws IOException {
+        var path = path(directory, id);
+        return new Segment(id, path, FileChannel.open(path, CREATE_NEW, READ, WRITE), 0);
+    }
+
+    static Segment open(Path path, int id, boolean writable) throws IOException {
+        var channel = writable ? FileChannel.open(path, READ, WRITE) : FileChannel.open(path, READ);
+        return new Segment(id, path, channel, channel.size());
+    }
+
+    static Path path(Path directory, int id) {
+        return directory.resolve("segment-%08d.dat".formatted(id));
+    }
+
+    /**
+     * @return the id of the segment file, or -1 if the file is not one
+     */
+    static int id(Path file) {
+        var name = file.getFileName().toString();
+
+        if (!name.matches("segment-[0-9]{8}\\.dat")) {
+            return -1;
+        }
+
+        return Integer.parseInt(name.substring(8, 16));
+    }
+
+    int id() {
+        return id;
+    }
+
+    Path path() {
+        return path;
+    }
+
+    long size() {
+        return size;
+    }
+
+    /**
+     * Appends a record. Appends to a segment are serialized by its store
+     */
+    Location append(ImageName name, ByteBuffer data) throws IOException {
+        var bytes = name.toString().getBytes(StandardCharsets.US_ASCII);
+        var header = ByteBuffer.allocate(HEADER_SIZE + bytes.length)
+                               .putInt(MAGIC)
+                               .putInt(0)
+                               .put((byte) bytes.length)
+                               .putInt(data.remaining())
+                               .put(bytes);
+
+        var crc = new CRC32C();
+        crc.update(header.array(), 8, header.capacity() - 8);
+        crc.update(data.duplicate());
+        header.putInt(4, (int) crc.getValue());
+
+        var start = size;
+        var offset = start + header.capacity();
+        var length = data.remaining();
+
+        write(data.duplicate(), offset);
+        write(header.flip(), start);
+        size = offset + length;
+
+        return new Location(this, start, offset, length);
+    }
+
+    /**
+     * @return the bytes of a record, mapped from the file
+     */
+    ByteBuffer read(long offset, int length) throws IOException {
+        var mapped = this.mapped;
+
+        if (isNull(mapped) || mapped.capacity() < offset + length) {
+            mapped = map();
+        }
+
+        return mapped.slice(Math.toIntExact(offset), length);
+    }
+
+    /**
+     * Reads the records from the start of the file, and truncates the active segment at the first
+     * torn or corrupt record
+     */
+    void scan(BiConsumer<ImageName, Location> records, boolean active) throws IOException {
+        var mapped = map();
+        var end = 0;
+        var count = 0;
+
+        while (end + HEADER_SIZE <= mapped.capacity()) {
+            var nameLength = mapped.get(end + 8) & 0xff;
+            var length = mapped.getInt(end + 9);
+            var offset = end + HEADER_SIZE + nameLength;
+
+            if (mapped.getInt(end) != MAGIC || length < 0 || (long) offset + length > mapped.capacity()) {
+                break;
+            }
+
+            var crc = new CRC32C();
+            crc.update(mapped.slice(end + 8, HEADER_SIZE - 8 + nameLength + length));
+
+            if ((int) crc.getValue() != mapped.getInt(end + 4)) {
+                break;
+            }
+
+            var name = ImageName.parse(StandardCharsets.US_ASCII.decode(mapped.slice(end + HEADER_SIZE, nameLength)).toString());
+
+            if (name.isEmpty()) {
+                break;
+            }
+
+            records.accept(name.get(), new Location(this, end, offset, length));
+            end = offset + length;
+            count++;
+        }
+
+        if (end < mapped.capacity()) {
+            logger.warn("Segment {} has a torn or corrupt record at {} of {} bytes", path, end, mapped.capacity());
+            if (active) {
+                channel.truncate(end);
+                size = end;
+            }
+        }
+
+        logger.info("Read {} images from {}", count, path);
+    }
+
+    void force() throws IOException {
+        channel.force(true);
+    }
+
+    /**
+     * Flushes the segment to disk and saves the locations of the records that are still in use
+     */
+    void seal(Collection<Location> locations) throws IOException {
+        channel.force(true);
+
+        var hints = ByteBuffer.allocate(locations.size() * HINT_SIZE + 4);
+
+        for (var location : locations) {
+            hints.putLong(location.start()).putInt((int) (location.offset() - location.start())).putInt(location.length());
+        }
+
+        var crc = new CRC32C();
+        crc.update(hints.array(), 0, hints.position());
+        hints.putInt((int) crc.getValue()).flip();
+
+        var temporary = hints(path).resolveSibling(hints(path).getFileName() + ".tmp");
+
+        try (var out = FileChannel.open(temporary, CREATE, TRUNCATE_EXISTING, WRITE)) {
+            while (hints.hasRemaining()) {
+                out.write(hints);
+            }
+            out.force(true);
+        }
+
+        Files.move(temporary, hints(path), ATOMIC_MOVE, REPLACE_EXISTING);
+    }
+
+    /**
+     * Reads the records saved in the hint file of a sealed segment
+     *
+     * @return false if there is no intact hint file
+     */
+    boolean hints(BiConsumer<ImageName, Location> records) throws IOException {
+        ByteBuffer hints;
+
+        try {
+            hints = ByteBuffer.wrap(Files.readAllBytes(hints(path)));
+        } catch (NoSuchFileException cause) {
+            return false;
+        }
+
+        var crc = new CRC32C();
+        crc.update(hints.array(), 0, Math.max(0, hints.capacity() - 4));
+
+        if (hints.capacity() % HINT_SIZE != 4 || (int) crc.getValue() != hints.getInt(hints.capacity() - 4)) {
+            logger.warn("Hint file of {} is corrupt", path);
+            return false;
+        }
+
+        var mapped = map();
+
+        while (hints.remaining() > 4) {
+            var start = hints.getLong();
+            var header = hints.getInt();
+            var length = hints.getInt();
+
+            var name = ImageName.parse(StandardCharsets.US_ASCII.decode(mapped.slice(Math.toIntExact(start) + HEADER_SIZE, header - HEADER_SIZE)).toString());
+
+            if (name.isEmpty()) {
+                logger.warn("Hint file of {} does not match it", path);
+                return false;
+            }
+
+            records.accept(name.get(), new Location(this, start, start + header, length));
+        }
+
+        return true;
+    }
+
+    /**
+     * Closes the segment and deletes its files. Mapped reads stay valid until they are collected
+     */
+    void delete() throws IOException {
+        channel.close();
+        Files.deleteIfExists(hints(path));
+        Files.deleteIfExists(path);
+    }
+
+    private synchronized MappedByteBuffer map() throws IOException {
+        if (isNull(mapped) || mapped.capacity() < size) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        return mapped;
+    }
+
+    private void write(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static Path hints(Path path) {
+        return path.resolveSibling(path.getFileName().toString().replace(".dat", ".idx"));
+    }
+
+}
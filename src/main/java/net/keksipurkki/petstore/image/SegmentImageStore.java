@@ -0,0 +1,358 @@
+package net.keksipurkki.petstore.image;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.OpenOptions;
+import io.vertx.core.streams.ReadStream;
+import net.keksipurkki.petstore.image.Segment.Location;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.util.Objects.isNull;
+
+/**
+ * ImageStore that packs the images into large segment files
+ * <p>
+ * An upload is written to a file in the `incoming` directory as it streams in, see ImageWriter,
+ * and then appended to the active segment unless the image is there already. Thumbnails are
+ * appended the same way. The index of where every image is lives in memory, and is rebuilt when
+ * the store is opened from the hint files of the sealed segments and by reading the active one,
+ * see Segment. A segment is sealed, and the next one started, once it has grown past the segment
+ * size. Images are served from the segment files directly, and read from memory mappings of them.
+ * <p>
+ * Compaction rewrites the sealed segments in which at least the garbage ratio of the bytes belong
+ * to images no longer used. The images still in use are appended to the active segment, and the
+ * old segment is deleted a while later, so that reads that found an image in it can complete.
+ * <p>
+ * The store is configured with the following environment variables, in addition to
+ * PETSTORE_IMAGE_DIR and PETSTORE_IMAGE_MAX_BYTES, see FileImageStore:
+ * <ul>
+ *     <li>PETSTORE_IMAGE_SEGMENT_BYTES: the size at which a segment is sealed</li>
+ *     <li>PETSTORE_IMAGE_GARBAGE_RATIO: the share of garbage at which a segment is compacted</li>
+ * </ul>
+ */
+final class SegmentImageStore implements ImageStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(SegmentImageStore.class);
+
+    public static final String SEGMENT_SIZE_VARIABLE = "PETSTORE_IMAGE_SEGMENT_BYTES";
+    public static final String GARBAGE_RATIO_VARIABLE = "PETSTORE_IMAGE_GARBAGE_RATIO";
+
+    private static final long DEFAULT_SEGMENT_SIZE = 256 * 1024 * 1024;
+    private static final double DEFAULT_GARBAGE_RATIO = 0.5;
+
+    // Long enough for an upload to be added to its pet, and for a read to be served
+    private static final long RECENT_NANOS = TimeUnit.MINUTES.toNanos(10);
+    private static final long RETIRE_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final Vertx vertx;
+    private final Path directory;
+    private final Path incoming;
+    private final long maxSize;
+    private final long segmentSize;
+    private final double garbageRatio;
+    private final Map<ImageName, Location> index = new ConcurrentHashMap<>();
+    private final Map<String, Segment> byPath = new ConcurrentHashMap<>();
+    private final Map<String, Long> recent = new ConcurrentHashMap<>();
+    private final AtomicBoolean compacting = new AtomicBoolean();
+
+    // Guarded by `this`
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private Segment active;
+
+    private SegmentImageStore(Vertx vertx, Path directory, long maxSize, long segmentSize, double garbageRatio) {
+        this.vertx = vertx;
+        this.directory = directory;
+        this.incoming = directory.resolve("incoming");
+        this.maxSize = maxSize;
+        this.segmentSize = segmentSize;
+        this.garbageRatio = garbageRatio;
+    }
+
+    /**
+     * Rebuilds the index from the segments and removes the uploads an earlier process left unfinished
+     */
+    static SegmentImageStore open(Vertx vertx, Map<String, String> environment) {
+        var maxSize = environment.get(FileImageStore.MAX_SIZE_VARIABLE);
+        var segmentSize = environment.get(SEGMENT_SIZE_VARIABLE);
+        var garbageRatio = environment.get(GARBAGE_RATIO_VARIABLE);
+
+        var store = new SegmentImageStore(
+            vertx,
+            FileImageStore.directory(environment),
+            isNull(maxSize) ? FileImageStore.DEFAULT_MAX_SIZE : Long.parseLong(maxSize),
+            isNull(segmentSize) ? DEFAULT_SEGMENT_SIZE : Long.parseLong(segmentSize),
+            isNull(garbageRatio) ? DEFAULT_GARBAGE_RATIO : Double.parseDouble(garbageRatio)
+        );
+
+        // A segment is mapped as a whole, and the image that seals it may start just below the size
+        if (store.segmentSize + store.maxSize > Integer.MAX_VALUE - 1024) {
+            throw new IllegalArgumentException("Segments of " + store.segmentSize + " bytes with images of " + store.maxSize + " bytes are too large to be mapped");
+        }
+
+        try {
+            Files.createDirectories(store.incoming);
+            try (var unfinished = Files.list(store.incoming)) {
+                for (var file : unfinished.toList()) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            store.load();
+        } catch (IOException cause) {
+            throw new UncheckedIOException("Image store cannot be opened in " + store.directory, cause);
+        }
+
+        logger.info("Storing {} images in {} segments in {}", store.index.size(), store.segments.size(), store.directory);
+        return store;
+    }
+
+    @Override
+    public Future<StoredImage> put(ReadStream<Buffer> image) {
+        image.pause();
+
+        var fs = vertx.fileSystem();
+        var upload = incoming.resolve(UUID.randomUUID().toString());
+
+        return fs.open(upload.toString(), new OpenOptions().setWrite(true).setCreateNew(true))
+                 .flatMap(file -> {
+                     var writer = new ImageWriter(file, maxSize);
+                     return image.pipeTo(writer).map(v -> writer.image());
+                 })
+                 .flatMap(stored -> blocking(() -> {
+                     try (var channel = FileChannel.open(upload, READ)) {
+                         add(stored.name(), channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), false);
+                     }
+                     return stored;
+                 }))
+                 .flatMap(stored -> fs.delete(upload.toString()).map(stored))
+                 .onFailure(cause -> fs.delete(upload.toString()));
+    }
+
+    @Override
+    public Future<Void> putThumbnail(ImageName name, Buffer thumbnail) {
+        return blocking(() -> {
+            add(name, thumbnail.getByteBuf().nioBuffer(), true);
+            return null;
+        });
+    }
+
+    @Override
+    public Future<Optional<ImageFile>> find(ImageName name) {
+        var location = Optional.ofNullable(index.get(name));
+
+        return Future.succeededFuture(location.map(at -> new ImageFile(
+            name.toString(),
+            name.type(),
+            at.segment().path().toString(),
+            at.offset(),
+            at.length()
+        )));
+    }
+
+    @Override
+    public Stream<ImageName> originals() {
+        return List.copyOf(index.keySet()).stream().filter(ImageName::isOriginal);
+    }
+
+    @Override
+    public ByteBuffer read(ImageFile file) throws IOException {
+        var segment = byPath.get(file.path());
+
+        if (isNull(segment)) {
+            return ImageStore.super.read(file);
+        }
+
+        return segment.read(file.offset(), Math.toIntExact(file.length()));
+    }
+
+    @Override
+    public Future<Long> compact(Predicate<ImageName> live) {
+        if (!compacting.compareAndSet(false, true)) {
+            return Future.succeededFuture(0L);
+        }
+
+        return blocking(() -> compactSegments(live)).onComplete(ar -> compacting.set(false));
+    }
+
+    private synchronized void add(ImageName name, ByteBuffer data, boolean replace) throws IOException {
+        // Compaction tests whether an image is recent and drops it under the same lock
+        recent.put(name.hash(), System.nanoTime());
+
+        if (replace || !index.containsKey(name)) {
+            index.put(name, append(name, data));
+        }
+    }
+
+    // Guarded by `this`
+    private Location append(ImageName name, ByteBuffer data) throws IOException {
+        if (active.size() > 0 && active.size() + data.remaining() > segmentSize) {
+            var sealed = active;
+            sealed.seal(locations(sealed));
+            active = Segment.create(directory, sealed.id() + 1);
+            segments.put(active.id(), active);
+            byPath.put(active.path().toString(), active);
+            logger.info("Sealed {} at {} bytes", sealed.path(), sealed.size());
+        }
+
+        return active.append(name, data);
+    }
+
+    private long compactSegments(Predicate<ImageName> live) throws IOException {
+        var horizon = System.nanoTime() - RECENT_NANOS;
+        recent.values().removeIf(time -> time - horizon < 0);
+
+        Predicate<ImageName> used = name -> live.test(name.original()) || recent.containsKey(name.hash());
+
+        var usedBytes = new HashMap<Segment, Long>();
+        index.forEach((name, location) -> {
+            if (used.test(name)) {
+                usedBytes.merge(location.segment(), location.size(), Long::sum);
+            }
+        });
+
+        List<Segment> sealed;
+        synchronized (this) {
+            sealed = segments.values().stream().filter(segment -> segment != active).toList();
+        }
+
+        var reclaimed = 0L;
+
+        for (var segment : sealed) {
+            var garbage = segment.size() - usedBytes.getOrDefault(segment, 0L);
+
+            if (garbage < segment.size() * garbageRatio) {
+                continue;
+            }
+
+            var moved = rewrite(segment, used);
+            reclaimed += segment.size() - moved;
+            logger.info("Compacted {}, moving {} of its {} bytes", segment.path(), moved, segment.size());
+        }
+
+        return reclaimed;
+    }
+
+    // @return the number of bytes moved to the active segment
+    private long rewrite(Segment segment, Predicate<ImageName> used) throws IOException {
+        var records = index.entrySet()
+                           .stream()
+                           .filter(entry -> entry.getValue().segment() == segment)
+                           .sorted(Comparator.comparingLong(entry -> entry.getValue().start()))
+                           .toList();
+
+        var moved = 0L;
+
+        for (var record : records) {
+            var name = record.getKey();
+            var location = record.getValue();
+
+            synchronized (this) {
+                if (!location.equals(index.get(name))) {
+                    continue;
+                }
+
+                if (used.test(name)) {
+                    index.put(name, append(name, segment.read(location.offset(), location.length())));
+                    moved += location.size();
+                } else {
+                    index.remove(name);
+                }
+            }
+        }
+
+        synchronized (this) {
+            // The moved images are on disk before their old copies are deleted
+            active.force();
+            segments.remove(segment.id());
+        }
+
+        vertx.setTimer(RETIRE_DELAY_MILLIS, id -> blocking(() -> {
+            byPath.remove(segment.path().toString());
+            segment.delete();
+            return null;
+        }).onFailure(cause -> logger.warn("Segment {} cannot be deleted", segment.path(), cause)));
+
+        return moved;
+    }
+
+    // Guarded by `this`
+    private List<Location> locations(Segment segment) {
+        var locations = new ArrayList<Location>();
+
+        for (var location : index.values()) {
+            if (location.segment() == segment) {
+                locations.add(location);
+            }
+        }
+
+        return locations;
+    }
+
+    private synchronized void load() throws IOException {
+        var files = new TreeMap<Integer, Path>();
+
+        try (var listing = Files.list(directory)) {
+            listing.forEach(file -> {
+                var id = Segment.id(file);
+                if (id >= 0) {
+                    files.put(id, file);
+                }
+            });
+        }
+
+        // Later segments have the later copies of an image
+        for (var file : files.entrySet()) {
+            var last = file.getKey().equals(files.lastKey());
+            var segment = Segment.open(file.getValue(), file.getKey(), last);
+
+            if (last || !segment.hints(index::put)) {
+                segment.scan(index::put, last);
+            }
+
+            segments.put(segment.id(), segment);
+            byPath.put(segment.path().toString(), segment);
+        }
+
+        if (segments.isEmpty()) {
+            active = Segment.create(directory, 1);
+            segments.put(active.id(), active);
+            byPath.put(active.path().toString(), active);
+        } else {
+            active = segments.lastEntry().getValue();
+        }
+    }
+
+    private <T> Future<T> blocking(Callable<T> task) {
+        return vertx.executeBlocking(promise -> {
+            try {
+                promise.complete(task.call());
+            } catch (Exception cause) {
+                promise.fail(cause);
+            }
+        }, false);
+    }
+
+}
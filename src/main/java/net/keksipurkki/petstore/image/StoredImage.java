@@ -0,0 +1,14 @@
+package net.keksipurkki.petstore.image;
+
+/**
+ * An image uploaded to an ImageStore
+ *
+ * @param hash the hex encoded SHA-256 hash of the bytes of the image
+ */
+public record StoredImage(String hash, ImageType type, long size) {
+
+    public ImageName name() {
+        return new ImageName(hash, ImageName.ORIGINAL, type);
+    }
+
+}
@@ -0,0 +1,20 @@
+package net.keksipurkki.petstore.image;
+
+import net.keksipurkki.petstore.api.ApiException;
+
+public class ThumbnailException extends ApiException {
+
+    public ThumbnailException(String message) {
+        super(message);
+    }
+
+    @Override
+    public int getStatusCode() {
+        return 503;
+    }
+
+    @Override
+    public String getDetail() {
+        return getMessage();
+    }
+}
@@ -0,0 +1,372 @@
+package net.keksipurkki.petstore.image;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.ImageIO;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.Objects.isNull;
+
+/**
+ * Makes the thumbnails of the images in an ImageStore
+ * <p>
+ * An image gets a thumbnail for every configured size, scaled with ImageIO to fit in a square of
+ * that size. Thumbnails are made by a pool of worker threads from a bounded priority queue:
+ * thumbnails requested by clients go first, then those of new uploads, then those of the bulk
+ * reprocessing of the store. When the queue is full, the thumbnails of an upload are left to be
+ * made when first requested, and requests fail with ThumbnailException. Bulk reprocessing waits for
+ * room instead, and never takes more than half of the queue: a bulk job holds a permit of the
+ * queue and one of the bulk half of it.
+ * <p>
+ * A thumbnail is made once however many ask for it meanwhile: a request for a thumbnail that is
+ * queued already queues it again at its own priority, and whichever job runs first makes it for
+ * all of them.
+ * <p>
+ * ImageIO reads and writes PNG, JPEG and GIF, so WebP images get no thumbnails. The thumbnails are
+ * configured with the following environment variables:
+ * <ul>
+ *     <li>PETSTORE_THUMBNAIL_SIZES: the comma separated sizes of the thumbnails in pixels</li>
+ *     <li>PETSTORE_THUMBNAIL_WORKERS: the number of worker threads</li>
+ *     <li>PETSTORE_THUMBNAIL_QUEUE: the number of thumbnails that can be queued</li>
+ * </ul>
+ */
+public final class Thumbnails {
+
+    private static final Logger logger = LoggerFactory.getLogger(Thumbnails.class);
+
+    public static final String SIZES_VARIABLE = "PETSTORE_THUMBNAIL_SIZES";
+    public static final String WORKERS_VARIABLE = "PETSTORE_THUMBNAIL_WORKERS";
+    public static final String QUEUE_VARIABLE = "PETSTORE_THUMBNAIL_QUEUE";
+
+    private static final String DEFAULT_SIZES = "160,640";
+    private static final int DEFAULT_QUEUE = 256;
+
+    private static final Set<ImageType> SUPPORTED = supported();
+
+    private enum Priority {
+        REQUEST, UPLOAD, BULK
+    }
+
+    private final ImageStore store;
+    private final List<Integer> sizes;
+    private final ThreadPoolExecutor workers;
+    private final Semaphore queue;
+    private final Semaphore bulk;
+    private final int bulkCapacity;
+    private final AtomicLong sequence = new AtomicLong();
+    private final Map<ImageName, Flight> flights = new ConcurrentHashMap<>();
+
+    private Thumbnails(ImageStore store, List<Integer> sizes, int workers, int capacity) {
+        var threads = new AtomicInteger();
+
+        this.store = store;
+        this.sizes = sizes;
+        this.queue = new Semaphore(capacity);
+        this.bulkCapacity = Math.max(1, capacity / 2);
+        this.bulk = new Semaphore(bulkCapacity);
+        this.workers = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS, new PriorityBlockingQueue<>(), runnable -> {
+            var thread = new Thread(runnable, "petstore-thumbnail-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.workers.allowCoreThreadTimeOut(true);
+    }
+
+    public static Thumbnails create(ImageStore store, Map<String, String> environment) {
+        var sizes = Arrays.stream(environment.getOrDefault(SIZES_VARIABLE, DEFAULT_SIZES).split(","))
+                          .map(String::trim)
+                          .map(Integer::parseInt)
+                          .distinct()
+                          .sorted()
+                          .toList();
+
+        var workers = environment.get(WORKERS_VARIABLE);
+        var capacity = environment.get(QUEUE_VARIABLE);
+
+        return new Thumbnails(
+            store,
+            sizes,
+            isNull(workers) ? Math.max(1, Runtime.getRuntime().availableProcessors() / 2) : Integer.parseInt(workers),
+            isNull(capacity) ? DEFAULT_QUEUE : Integer.parseInt(capacity)
+        );
+    }
+
+    /**
+     * @return the names of the thumbnails of the image, whether they have been made yet or not
+     */
+    public List<ImageName> names(ImageName image) {
+        if (!SUPPORTED.contains(image.type())) {
+            return List.of();
+        }
+        return sizes.stream().map(image::thumbnail).toList();
+    }
+
+    /**
+     * Queues the thumbnails of a new image
+     */
+    public void enqueue(StoredImage image) {
+        for (var name : names(image.name())) {
+            if (!queue.tryAcquire()) {
+                logger.warn("Thumbnail queue is full, {} will be made when first requested", name);
+                return;
+            }
+            submit(name, Priority.UPLOAD, queue);
+        }
+    }
+
+    /**
+     * Finds an image or a thumbnail, making the thumbnail first if it has not been made yet
+     */
+    public Future<Optional<ImageFile>> find(ImageName name) {
+        return store.find(name).flatMap(file -> {
+            if (file.isPresent() || !names(name.original()).contains(name)) {
+                return Future.succeededFuture(file);
+            }
+
+            return store.find(name.original()).flatMap(original -> {
+                if (original.isEmpty()) {
+                    return Future.succeededFuture(Optional.empty());
+                }
+
+                if (!queue.tryAcquire()) {
+                    return Future.failedFuture(new ThumbnailException("Too many thumbnails are being made, try again later"));
+                }
+
+                return onCurrentContext(submit(name, Priority.REQUEST, queue)).map(Optional::of);
+            });
+        });
+    }
+
+    /**
+     * Makes the missing thumbnails of every image in the store in the background
+     *
+     * @return the number of thumbnails that were missing, once they have been made
+     */
+    public Future<Integer> reprocess() {
+        Promise<Integer> promise = Promise.promise();
+
+        var thread = new Thread(() -> {
+            var missing = 0;
+
+            try (var originals = store.originals()) {
+                for (var original : (Iterable<ImageName>) originals::iterator) {
+                    for (var name : names(original)) {
+                        if (join(store.find(name)).isEmpty()) {
+                            bulk.acquireUninterruptibly();
+                            queue.acquireUninterruptibly();
+                            submit(name, Priority.BULK, bulk, queue);
+                            missing++;
+                        }
+                    }
+                }
+
+                // Every job has released its permit once it has run
+                bulk.acquireUninterruptibly(bulkCapacity);
+                bulk.release(bulkCapacity);
+                promise.complete(missing);
+            } catch (RuntimeException cause) {
+                promise.fail(cause);
+            }
+        }, "petstore-thumbnail-reprocess");
+
+        thread.setDaemon(true);
+        thread.start();
+
+        return onCurrentContext(promise.future());
+    }
+
+    private Future<ImageFile> submit(ImageName name, Priority priority, Semaphore... permits) {
+        var flight = flights.computeIfAbsent(name, Flight::new);
+        workers.execute(new Job(flight, priority, sequence.getAndIncrement(), permits));
+        return flight.promise.future();
+    }
+
+    // Runs on a worker thread
+    private void make(Flight flight) {
+        try {
+            var original = join(store.find(flight.name.original()))
+                .orElseThrow(() -> new IllegalStateException("Image " + flight.name.original() + " does not exist"));
+
+            var bytes = store.read(original);
+            var image = new byte[bytes.remaining()];
+            bytes.get(image);
+
+            var thumbnail = thumbnail(image, flight.name.size(), flight.name.type());
+
+            join(store.putThumbnail(flight.name, Buffer.buffer(thumbnail)));
+            flight.promise.complete(join(store.find(flight.name)).orElseThrow());
+        } catch (Exception cause) {
+            logger.warn("Thumbnail {} cannot be made", flight.name, cause);
+            flight.promise.fail(cause instanceof CompletionException ? cause.getCause() : cause);
+        } finally {
+            flights.remove(flight.name, flight);
+        }
+    }
+
+    /**
+     * Decodes the image subsampled to no less than twice the size of the thumbnail, so that a large
+     * image is never decoded in full, and scales it down the rest of the way by halves
+     */
+    static byte[] thumbnail(byte[] image, int size, ImageType type) throws IOException {
+        try (var input = ImageIO.createImageInputStream(new ByteArrayInputStream(image))) {
+            var readers = ImageIO.getImageReaders(input);
+
+            if (!readers.hasNext()) {
+                throw new IOException("No reader for " + type);
+            }
+
+            var reader = readers.next();
+
+            try {
+                reader.setInput(input, true, true);
+
+                var subsampling = Math.max(1, Math.max(reader.getWidth(0), reader.getHeight(0)) / (2 * size));
+                var param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+
+                var decoded = reader.read(0, param);
+                var output = new ByteArrayOutputStream();
+
+                if (!ImageIO.write(scale(decoded, size, type), type.extension(), output)) {
+                    throw new IOException("No writer for " + type);
+                }
+
+                return output.toByteArray();
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static BufferedImage scale(BufferedImage image, int size, ImageType type) {
+        var ratio = Math.min(1.0, (double) size / Math.max(image.getWidth(), image.getHeight()));
+        var width = Math.max(1, (int) Math.round(image.getWidth() * ratio));
+        var height = Math.max(1, (int) Math.round(image.getHeight() * ratio));
+        var imageType = type == ImageType.JPEG ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB;
+
+        // Bilinear filtering skips pixels when scaling down by more than a half at once
+        while (image.getWidth() / 2 >= width && image.getHeight() / 2 >= height) {
+            image = draw(image, image.getWidth() / 2, image.getHeight() / 2, imageType);
+        }
+
+        if (image.getWidth() != width || image.getHeight() != height || image.getType() != imageType) {
+            image = draw(image, width, height, imageType);
+        }
+
+        return image;
+    }
+
+    private static BufferedImage draw(BufferedImage image, int width, int height, int imageType) {
+        var scaled = new BufferedImage(width, height, imageType);
+        var graphics = scaled.createGraphics();
+
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+
+        return scaled;
+    }
+
+    private static <T> T join(Future<T> future) {
+        return future.toCompletionStage().toCompletableFuture().join();
+    }
+
+    // Completions come from worker threads, callers continue on their own context
+    private static <T> Future<T> onCurrentContext(Future<T> future) {
+        var context = Vertx.currentContext();
+
+        if (isNull(context)) {
+            return future;
+        }
+
+        Promise<T> promise = Promise.promise();
+        future.onComplete(ar -> context.runOnContext(v -> promise.handle(ar)));
+        return promise.future();
+    }
+
+    private static Set<ImageType> supported() {
+        ImageIO.setUseCache(false);
+
+        var supported = EnumSet.noneOf(ImageType.class);
+
+        for (var type : ImageType.values()) {
+            var extension = type.extension();
+            if (ImageIO.getImageReadersBySuffix(extension).hasNext() && ImageIO.getImageWritersBySuffix(extension).hasNext()) {
+                supported.add(type);
+            }
+        }
+
+        return supported;
+    }
+
+    private static final class Flight {
+        private final ImageName name;
+        private final Promise<ImageFile> promise = Promise.promise();
+        private final AtomicBoolean started = new AtomicBoolean();
+
+        private Flight(ImageName name) {
+            this.name = name;
+        }
+    }
+
+    private final class Job implements Runnable, Comparable<Job> {
+        private final Flight flight;
+        private final Priority priority;
+        private final long sequence;
+        private final Semaphore[] permits;
+
+        private Job(Flight flight, Priority priority, long sequence, Semaphore[] permits) {
+            this.flight = flight;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.permits = permits;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (flight.started.compareAndSet(false, true)) {
+                    make(flight);
+                }
+            } finally {
+                for (var semaphore : permits) {
+                    semaphore.release();
+                }
+            }
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            var byPriority = priority.compareTo(other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+        }
+    }
+
+}
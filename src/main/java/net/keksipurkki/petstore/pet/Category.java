@@ -1,17 +1,14 @@
 package net.keksipurkki.petstore.pet;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ThreadLocalRandom;
-
 public record Category(int id, String name) {
 
-    private static final Map<String, Category> categories = new ConcurrentHashMap<>();
+    // The id of a category that has not been registered yet
+    public static final int UNREGISTERED = 0;
 
+    /**
+     * A reference to a category by name. The id is resolved by the CategoryRegistry when the pet is stored
+     */
     public static Category from(String name) {
-        return categories.computeIfAbsent(name, k -> {
-            var id = ThreadLocalRandom.current().nextInt() & Integer.MAX_VALUE;
-            return new Category(id, k);
-        });
+        return new Category(UNREGISTERED, name);
     }
 }
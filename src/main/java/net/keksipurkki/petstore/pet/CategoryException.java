@@ -0,0 +1,20 @@
+package net.keksipurkki.petstore.pet;
+
+import net.keksipurkki.petstore.api.ApiException;
+
+public class CategoryException extends ApiException {
+
+    public CategoryException(String message) {
+        super(message);
+    }
+
+    @Override
+    public int getStatusCode() {
+        return 400;
+    }
+
+    @Override
+    public String getDetail() {
+        return getMessage();
+    }
+}
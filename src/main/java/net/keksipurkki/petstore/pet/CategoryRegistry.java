@@ -0,0 +1,168 @@
+package net.keksipurkki.petstore.pet;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static java.util.Objects.isNull;
+
+/**
+ * Bounded registry of the categories in use
+ * <p>
+ * Categories are reference counted by the pets that belong to them. A category no pet refers to
+ * anymore is evicted and its id is recycled, so ids stay small and dense and an id to category
+ * lookup is a single array read. The number of live categories is capped, which stops clients
+ * from growing the heap without bounds by inventing category names.
+ * <p>
+ * The capacity can be configured with the environment variable PETSTORE_CATEGORY_CAPACITY.
+ */
+final public class CategoryRegistry {
+
+    private static final String CAPACITY_VARIABLE = "PETSTORE_CATEGORY_CAPACITY";
+    private static final int DEFAULT_CAPACITY = 10_000;
+
+    private static final int capacity = capacity(System.getenv());
+    private static final Map<String, Entry> byName = new ConcurrentHashMap<>();
+    private static final AtomicReferenceArray<Category> byId = new AtomicReferenceArray<>(capacity);
+    private static final Queue<Integer> freeIds = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger nextId = new AtomicInteger(1);
+    private static final AtomicInteger size = new AtomicInteger();
+
+    private CategoryRegistry() {
+    }
+
+    public static int size() {
+        return size.get();
+    }
+
+    public static int capacity() {
+        return capacity;
+    }
+
+    public static Optional<Category> get(int categoryId) {
+        if (categoryId < 1 || categoryId > capacity) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(byId.get(categoryId - 1));
+    }
+
+    static Optional<Category> find(String name) {
+        var entry = byName.get(name);
+        return isNull(entry) ? Optional.empty() : Optional.of(entry.category);
+    }
+
+    /**
+     * Takes a reference to the named category, registering it if needed
+     *
+     * @throws CategoryException if registering the category would exceed the capacity
+     */
+    static Category acquire(String name) {
+        return byName.compute(name, (k, entry) -> {
+            if (isNull(entry)) {
+                entry = new Entry(register(name));
+            }
+            entry.references++;
+            return entry;
+        }).category;
+    }
+
+    /**
+     * Drops a reference to the category, evicting it once it is no longer used
+     */
+    static void release(Category category) {
+        byName.computeIfPresent(category.name(), (k, entry) -> {
+            if (--entry.references > 0) {
+                return entry;
+            }
+            unregister(entry.category);
+            return null;
+        });
+    }
+
+    /**
+     * Registers the categories of a snapshot with their ids and reference counts. The registry
+     * must be empty
+     */
+    static void restore(Map<Category, Integer> references) {
+        if (size() > 0) {
+            throw new IllegalStateException("Categories can only be restored into an empty registry");
+        }
+
+        var maxId = 0;
+
+        for (var restored : references.entrySet()) {
+            var category = restored.getKey();
+
+            if (category.id() > capacity) {
+                throw new CategoryException("Category " + category.name() + " exceeds the category limit of " + capacity);
+            }
+
+            var entry = new Entry(category);
+            entry.references = restored.getValue();
+            byName.put(category.name(), entry);
+            byId.set(category.id() - 1, category);
+            size.incrementAndGet();
+            maxId = Math.max(maxId, category.id());
+        }
+
+        for (int id = 1; id <= maxId; id++) {
+            if (isNull(byId.get(id - 1))) {
+                freeIds.add(id);
+            }
+        }
+
+        nextId.set(maxId + 1);
+    }
+
+    /**
+     * Unregisters every category. Must not run concurrently with anything else
+     */
+    static void clear() {
+        byName.clear();
+        freeIds.clear();
+        for (int i = 0; i < capacity; i++) {
+            byId.set(i, null);
+        }
+        nextId.set(1);
+        size.set(0);
+    }
+
+    private static Category register(String name) {
+        if (size.incrementAndGet() > capacity) {
+            size.decrementAndGet();
+            throw new CategoryException("Category limit of " + capacity + " has been reached");
+        }
+
+        var id = freeIds.poll();
+        var category = new Category(isNull(id) ? nextId.getAndIncrement() : id, name);
+
+        byId.set(category.id() - 1, category);
+        return category;
+    }
+
+    private static void unregister(Category category) {
+        byId.set(category.id() - 1, null);
+        // Recycle the id before freeing capacity so that id allocation never runs past the capacity
+        freeIds.add(category.id());
+        size.decrementAndGet();
+    }
+
+    private static int capacity(Map<String, String> environment) {
+        var value = environment.get(CAPACITY_VARIABLE);
+        return isNull(value) ? DEFAULT_CAPACITY : Integer.parseInt(value);
+    }
+
+    private static final class Entry {
+        private final Category category;
+        private int references;
+
+        private Entry(Category category) {
+            this.category = category;
+        }
+    }
+
+}
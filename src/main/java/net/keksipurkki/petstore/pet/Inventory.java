@@ -0,0 +1,52 @@
+package net.keksipurkki.petstore.pet;
+
+import io.vertx.core.buffer.Buffer;
+import net.keksipurkki.petstore.support.Json;
+import net.keksipurkki.petstore.support.SerializedBody;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Pet counts by status together with their serialized form
+ * <p>
+ * An inventory is created only when the counts change, so polling clients get the same
+ * pre-serialized buffer until then.
+ */
+public final class Inventory extends AbstractMap<Status, Integer> implements SerializedBody {
+
+    private final int[] totals;
+    private final Map<Status, Integer> counts = new EnumMap<>(Status.class);
+    private final Buffer body;
+
+    Inventory(int[] totals) {
+        for (var status : Status.values()) {
+            counts.put(status, totals[status.ordinal()]);
+        }
+        this.totals = totals;
+        this.body = Buffer.buffer(Json.stringify(counts, true));
+    }
+
+    @Override
+    public Set<Entry<Status, Integer>> entrySet() {
+        return Collections.unmodifiableMap(counts).entrySet();
+    }
+
+    @Override
+    public String contentType() {
+        return "application/json";
+    }
+
+    @Override
+    public Buffer body() {
+        return body;
+    }
+
+    boolean counts(int[] totals) {
+        return this.totals == totals;
+    }
+
+}
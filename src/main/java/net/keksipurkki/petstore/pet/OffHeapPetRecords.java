@@ -0,0 +1,140 @@
+package net.keksipurkki.petstore.pet;
+
+import net.keksipurkki.petstore.storage.RecordWriter;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.Objects.isNull;
+
+/**
+ * Pet records encoded into direct byte buffers outside the Java heap
+ * <p>
+ * A record is its length followed by the pet as encoded by PetCodec. Snapshots hold a handle to
+ * the record, which is the only on-heap state per pet.
+ * <p>
+ * Records are immutable once written, so any number of snapshots can share them and readers need
+ * no locks. They are appended to 256 KiB chunks, and a chunk is freed by the garbage collector
+ * once no snapshot refers to it anymore. When less than a quarter of a full chunk is live, the
+ * pets in it are relocated so that a few long-lived pets do not pin mostly dead chunks.
+ * <p>
+ * Direct buffers count against -XX:MaxDirectMemorySize, which defaults to the maximum heap size.
+ */
+final class OffHeapPetRecords implements PetRecords<OffHeapPetRecords.Handle> {
+
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final int SPARSENESS = 4;
+
+    private final Queue<Integer> relocations = new ConcurrentLinkedQueue<>();
+    private Chunk current;
+
+    record Handle(Chunk chunk, int offset) {
+    }
+
+    static final class Chunk {
+        private final ByteBuffer buffer;
+        private final AtomicInteger live = new AtomicInteger();
+        private final AtomicBoolean relocating = new AtomicBoolean();
+        private volatile boolean sealed;
+        private int position;
+
+        private Chunk(int capacity) {
+            this.buffer = ByteBuffer.allocateDirect(capacity);
+        }
+    }
+
+    @Override
+    public Handle encode(Pet pet) {
+        return append(PetCodec.frame(pet));
+    }
+
+    @Override
+    public Pet decode(Handle handle) {
+        return PetCodec.unframe(handle.chunk.buffer, handle.offset);
+    }
+
+    @Override
+    public void write(Handle handle, RecordWriter out) {
+        var buffer = handle.chunk.buffer;
+        var record = new byte[PetCodec.length(buffer, handle.offset)];
+        buffer.get(handle.offset, record);
+        out.writeBytes(record);
+    }
+
+    /**
+     * Copies the whole block into a sealed chunk of its own
+     */
+    @Override
+    public List<Handle> restore(ByteBuffer block, int count) {
+        var chunk = new Chunk(block.remaining());
+        chunk.buffer.put(0, block, block.position(), block.remaining());
+        chunk.position = block.remaining();
+        chunk.live.set(block.remaining());
+        chunk.sealed = true;
+
+        var handles = new ArrayList<Handle>(count);
+        for (int offset = 0; offset < chunk.position; offset += PetCodec.length(chunk.buffer, offset)) {
+            handles.add(new Handle(chunk, offset));
+        }
+        return handles;
+    }
+
+    @Override
+    public void discard(Handle handle) {
+        var chunk = handle.chunk;
+        chunk.live.addAndGet(-PetCodec.length(chunk.buffer, handle.offset));
+        if (chunk.sealed) {
+            reclaim(chunk);
+        }
+    }
+
+    @Override
+    public List<Integer> relocations() {
+        var ids = new ArrayList<Integer>();
+        for (var id = relocations.poll(); id != null; id = relocations.poll()) {
+            ids.add(id);
+        }
+        return ids;
+    }
+
+    @Override
+    public boolean isRelocating(Handle handle) {
+        return handle.chunk.relocating.get();
+    }
+
+    private synchronized Handle append(byte[] record) {
+        if (isNull(current) || current.position + record.length > current.buffer.capacity()) {
+            var full = current;
+            current = new Chunk(Math.max(CHUNK_SIZE, record.length));
+            if (full != null) {
+                full.sealed = true;
+                reclaim(full);
+            }
+        }
+
+        var offset = current.position;
+        current.buffer.put(offset, record);
+        current.position += record.length;
+        current.live.addAndGet(record.length);
+        return new Handle(current, offset);
+    }
+
+    // The records of a sealed chunk never change, so scanning it races with nothing
+    private void reclaim(Chunk chunk) {
+        var live = chunk.live.get();
+
+        if (live == 0 || live * SPARSENESS > chunk.buffer.capacity() || !chunk.relocating.compareAndSet(false, true)) {
+            return;
+        }
+
+        for (int offset = 0; offset < chunk.position; offset += PetCodec.length(chunk.buffer, offset)) {
+            relocations.add(PetCodec.id(chunk.buffer, offset));
+        }
+    }
+
+}
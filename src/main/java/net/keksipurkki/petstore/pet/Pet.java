@@ -1,16 +1,36 @@
 package net.keksipurkki.petstore.pet;
 
+import net.keksipurkki.petstore.support.IdAllocator;
+
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ThreadLocalRandom;
 
 public record Pet(int id, Category category, String name, List<URI> photoUrls, List<String> tags, Status status) {
 
+    private static final IdAllocator ids = new IdAllocator(1024);
+
     public static Pet from(NewPet input) {
-        var petId = ThreadLocalRandom.current().nextInt() & Integer.MAX_VALUE;
+        var petId = ids.next();
         var category = Category.from(input.category());
         return new Pet(petId, category, input.name(), new ArrayList<>(), new ArrayList<>(), Status.AVAILABLE);
     }
 
+    // Restored pets keep their ids
+    static void restored(int petId) {
+        ids.advancePast(petId);
+    }
+
+    public Pet withStatus(Status status) {
+        return new Pet(id, category, name, photoUrls, tags, status);
+    }
+
+    public Pet withCategory(Category category) {
+        return new Pet(id, category, name, photoUrls, tags, status);
+    }
+
+    public Pet withPhotoUrls(List<URI> photoUrls) {
+        return new Pet(id, category, name, photoUrls, tags, status);
+    }
+
 }
@@ -0,0 +1,134 @@
+package net.keksipurkki.petstore.pet;
+
+import net.keksipurkki.petstore.support.PersistentIntMap;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+
+import static java.util.Objects.isNull;
+
+/**
+ * Immutable index of the pets by the version that last changed them
+ * <p>
+ * Every live pet that changed after the origin of the index is keyed by its version, and every
+ * deletion after the origin leaves a tombstone keyed by the version that deleted the pet. Both are
+ * kept relative to the origin in persistent tries, so the changes after a version are a range in
+ * each of them and the index lives in the snapshot of the PetStore like the other indexes.
+ * <p>
+ * Live pets are bounded by the store, but tombstones are not: only the newest RETENTION of them are
+ * kept. The horizon is the version of the newest tombstone that has been dropped, or the origin if
+ * there is none. The changes after a version before the horizon are no longer known. Keys are ints,
+ * so an index that would span more than 2^31 versions starts over after the previous version.
+ * <p>
+ * The retention can be configured with the environment variable PETSTORE_TOMBSTONE_RETENTION.
+ */
+final class PetChangeIndex {
+
+    private static final String RETENTION_VARIABLE = "PETSTORE_TOMBSTONE_RETENTION";
+    private static final int DEFAULT_RETENTION = 100_000;
+
+    private static final int retention = retention(System.getenv());
+
+    private final long origin;
+    private final long horizon;
+    private final PersistentIntMap<Integer> changed;
+    private final PersistentIntMap<Integer> deleted;
+
+    private PetChangeIndex(long origin, long horizon, PersistentIntMap<Integer> changed, PersistentIntMap<Integer> deleted) {
+        this.origin = origin;
+        this.horizon = horizon;
+        this.changed = changed;
+        this.deleted = deleted;
+    }
+
+    /**
+     * @return an index that knows of no changes up to and including the version
+     */
+    static PetChangeIndex after(long version) {
+        return new PetChangeIndex(version, version, PersistentIntMap.empty(), PersistentIntMap.empty());
+    }
+
+    long horizon() {
+        return horizon;
+    }
+
+    /**
+     * @param previous the version that last changed the pet, null if it did not exist
+     */
+    PetChangeIndex changed(int petId, Long previous, long version) {
+        if (version - origin >= Integer.MAX_VALUE) {
+            return after(version - 1).changed(petId, null, version);
+        }
+        return new PetChangeIndex(origin, horizon, without(previous).put(key(version), petId), deleted);
+    }
+
+    /**
+     * @param previous the version that last changed the pet
+     */
+    PetChangeIndex deleted(int petId, Long previous, long version) {
+        if (version - origin >= Integer.MAX_VALUE) {
+            return after(version - 1).deleted(petId, null, version);
+        }
+
+        var deleted = this.deleted.put(key(version), petId);
+        var horizon = this.horizon;
+
+        if (deleted.size() > retention) {
+            var oldest = deleted.keys().nextInt();
+            deleted = deleted.remove(oldest);
+            horizon = origin + oldest;
+        }
+
+        return new PetChangeIndex(origin, horizon, without(previous), deleted);
+    }
+
+    /**
+     * @return the index with new pets that got consecutive versions from the given one on
+     */
+    PetChangeIndex added(int[] ids, long first) {
+        if (ids.length == 0) {
+            return this;
+        }
+
+        if (first + ids.length - 1 - origin >= Integer.MAX_VALUE) {
+            return after(first - 1).added(ids, first);
+        }
+
+        var keys = new int[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            keys[i] = key(first + i);
+        }
+
+        return new PetChangeIndex(origin, horizon, changed.putAll(keys, keys.length, i -> ids[i]), deleted);
+    }
+
+    /**
+     * @return the ids of the live pets that changed after the version in the order they changed
+     */
+    Iterator<Integer> changedAfter(long version) {
+        return version < origin ? Collections.emptyIterator() : changed.values(key(version) + 1);
+    }
+
+    /**
+     * @return the ids of the pets deleted after the version in the order they were deleted
+     */
+    Iterator<Integer> deletedAfter(long version) {
+        return version < origin ? Collections.emptyIterator() : deleted.values(key(version) + 1);
+    }
+
+    // Pets that have not changed since the origin are not in the index
+    private PersistentIntMap<Integer> without(Long previous) {
+        return isNull(previous) || previous <= origin ? changed : changed.remove(key(previous));
+    }
+
+    private int key(long version) {
+        return (int) (version - origin);
+    }
+
+    private static int retention(Map<String, String> environment) {
+        var value = environment.get(RETENTION_VARIABLE);
+        return isNull(value) ? DEFAULT_RETENTION : Integer.parseInt(value);
+    }
+
+}
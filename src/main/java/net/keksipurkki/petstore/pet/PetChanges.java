@@ -0,0 +1,111 @@
+package net.keksipurkki.petstore.pet;
+
+import io.vertx.core.buffer.Buffer;
+import net.keksipurkki.petstore.support.Json;
+import net.keksipurkki.petstore.support.StreamingBody;
+import net.keksipurkki.petstore.support.Versioned;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The pets created, updated or deleted after a version of the store
+ * <p>
+ * Serializes to `{"pets": [...], "deleted": [...], "version": "..."}`, where `pets` are the
+ * current pets that changed in the order they last changed and `deleted` the ids of the pets
+ * that no longer exist in the order they were deleted. An id is listed once per deletion. The
+ * `version` is the version of the store the changes were read from: the client passes it as is
+ * to get the next changes.
+ * <p>
+ * Versions carry the epoch of the process, see Versioned, so a version of an earlier process is
+ * not mistaken for one of the current process. Such a version, like one older than what the
+ * store remembers of deletions, needs a full resync, see PetChangesException.
+ */
+public final class PetChanges implements StreamingBody {
+
+    /**
+     * The version of the store when the changes are read. There are no changes after it
+     */
+    public static final long LATEST = -1;
+
+    private final Iterator<Pet> pets;
+    private final Iterator<Integer> deleted;
+    private final long version;
+
+    PetChanges(Iterator<Pet> pets, Iterator<Integer> deleted, long version) {
+        this.pets = pets;
+        this.deleted = deleted;
+        this.version = version;
+    }
+
+    @Override
+    public String contentType() {
+        return "application/json";
+    }
+
+    @Override
+    public Iterator<Buffer> chunks() {
+        return new Iterator<>() {
+
+            private int stage;
+            private int count;
+
+            @Override
+            public boolean hasNext() {
+                return stage < 3;
+            }
+
+            @Override
+            public Buffer next() {
+                switch (stage) {
+                    case 0 -> {
+                        stage++;
+                        return Buffer.buffer("{\"pets\":[");
+                    }
+                    case 1 -> {
+                        if (pets.hasNext()) {
+                            return Buffer.buffer((count++ > 0 ? "," : "") + Json.stringify(pets.next()));
+                        }
+                        stage++;
+                        count = 0;
+                        return Buffer.buffer("],\"deleted\":[");
+                    }
+                    case 2 -> {
+                        if (deleted.hasNext()) {
+                            return Buffer.buffer((count++ > 0 ? "," : "") + deleted.next());
+                        }
+                        stage++;
+                        return Buffer.buffer("],\"version\":\"" + version(version) + "\"}");
+                    }
+                    default -> throw new NoSuchElementException();
+                }
+            }
+        };
+    }
+
+    public static String version(long version) {
+        return Versioned.EPOCH + "-" + Long.toString(version, 36);
+    }
+
+    /**
+     * @return the version of the store
+     * @throws IllegalArgumentException if the version is malformed
+     * @throws PetChangesException if the version is of an earlier process
+     */
+    public static long version(String version) {
+        var separator = version.lastIndexOf('-');
+
+        if (separator < 0) {
+            throw new IllegalArgumentException("Not a version");
+        }
+
+        var parsed = Long.parseLong(version.substring(separator + 1), 36);
+
+        if (!version.substring(0, separator).equals(Versioned.EPOCH)) {
+            throw new PetChangesException("Version " + version + " is of an earlier run of the store, a full resync is required");
+        }
+
+        return parsed;
+    }
+
+}
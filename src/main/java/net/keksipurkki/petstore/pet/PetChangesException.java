@@ -0,0 +1,23 @@
+package net.keksipurkki.petstore.pet;
+
+import net.keksipurkki.petstore.api.ApiException;
+
+/**
+ * The changes after a version are no longer known, so the client has to list all pets again
+ */
+public class PetChangesException extends ApiException {
+
+    public PetChangesException(String message) {
+        super(message);
+    }
+
+    @Override
+    public int getStatusCode() {
+        return 410;
+    }
+
+    @Override
+    public String getDetail() {
+        return getMessage();
+    }
+}
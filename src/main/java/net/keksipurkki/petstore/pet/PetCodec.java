@@ -0,0 +1,81 @@
+package net.keksipurkki.petstore.pet;
+
+import net.keksipurkki.petstore.storage.RecordReader;
+import net.keksipurkki.petstore.storage.RecordWriter;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.function.Function;
+
+import static java.util.Objects.isNull;
+
+/**
+ * The binary encoding of a pet shared by off-heap records and the journal
+ * <p>
+ * The id, the status and a category flag come first, each as an `int`, followed by the name, the
+ * category, the photo URLs and the tags. The category is stored with its name, since category ids
+ * are recycled once a category has no pets left.
+ * <p>
+ * Off-heap records and snapshots frame a pet with its length in bytes, including the length.
+ */
+final class PetCodec {
+
+    // Framed record
+    static final int LENGTH = 0;
+    static final int ID = 4;
+
+    private static final int NULL = -1;
+    private static final Status[] STATUSES = Status.values();
+
+    private PetCodec() {
+    }
+
+    static void write(RecordWriter out, Pet pet) {
+        out.writeInt(pet.id())
+           .writeInt(isNull(pet.status()) ? NULL : pet.status().ordinal())
+           .writeInt(isNull(pet.category()) ? NULL : 0)
+           .writeString(pet.name());
+
+        if (!isNull(pet.category())) {
+            out.writeInt(pet.category().id())
+               .writeString(pet.category().name());
+        }
+
+        out.writeList(pet.photoUrls(), URI::toString)
+           .writeList(pet.tags(), Function.identity());
+    }
+
+    static byte[] frame(Pet pet) {
+        var out = new RecordWriter().writeInt(0); // patched below
+        write(out, pet);
+        var record = out.toByteArray();
+        ByteBuffer.wrap(record).putInt(LENGTH, record.length);
+        return record;
+    }
+
+    static Pet unframe(ByteBuffer buffer, int offset) {
+        return read(new RecordReader(buffer.slice(offset + ID, length(buffer, offset) - ID)));
+    }
+
+    static int length(ByteBuffer buffer, int offset) {
+        return buffer.getInt(offset + LENGTH);
+    }
+
+    static int id(ByteBuffer buffer, int offset) {
+        return buffer.getInt(offset + ID);
+    }
+
+    static Pet read(RecordReader in) {
+        var id = in.readInt();
+        var status = in.readInt();
+        var hasCategory = in.readInt() != NULL;
+
+        var name = in.readString();
+        var category = hasCategory ? new Category(in.readInt(), in.readString()) : null;
+        var photoUrls = in.readList(URI::create);
+        var tags = in.readList(Function.identity());
+
+        return new Pet(id, category, name, photoUrls, tags, status == NULL ? null : STATUSES[status]);
+    }
+
+}
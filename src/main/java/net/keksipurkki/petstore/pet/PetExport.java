@@ -0,0 +1,52 @@
+package net.keksipurkki.petstore.pet;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerResponse;
+import net.keksipurkki.petstore.support.Json;
+import net.keksipurkki.petstore.support.StreamingBody;
+
+import java.util.Iterator;
+
+/**
+ * All pets as newline delimited JSON in ascending id order
+ * <p>
+ * The pets are read from the snapshot of the store that was current when the export was created,
+ * so the export is consistent however long writing it takes and concurrent writers are not held
+ * up. Pets are serialized one at a time as the response drains, see StreamingBody.
+ */
+public final class PetExport implements StreamingBody {
+
+    private final Iterator<Pet> pets;
+
+    public PetExport(Iterator<Pet> pets) {
+        this.pets = pets;
+    }
+
+    @Override
+    public String contentType() {
+        return PetImport.MEDIA_TYPE;
+    }
+
+    @Override
+    public Iterator<Buffer> chunks() {
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return pets.hasNext();
+            }
+
+            @Override
+            public Buffer next() {
+                return Buffer.buffer(Json.stringify(pets.next())).appendByte((byte) '\n');
+            }
+        };
+    }
+
+    // The export is compressed if the client accepts it, see StreamingBody.gzip
+    @Override
+    public void pipeTo(HttpServerResponse response) {
+        response.putHeader("vary", "accept-encoding");
+        StreamingBody.super.pipeTo(response);
+    }
+
+}
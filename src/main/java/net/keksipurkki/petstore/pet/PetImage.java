@@ -1,27 +1,40 @@
 package net.keksipurkki.petstore.pet;
 
-import io.vertx.core.buffer.Buffer;
-import io.vertx.ext.web.FileUpload;
-
-import java.io.IOException;
 import java.net.URI;
-import java.nio.file.Files;
-import java.nio.file.Path;
-
-public record PetImage(Buffer bytes, String filename, String contentType, String metadata) {
-
-    public static PetImage from(FileUpload upload, String metadata) throws IOException {
-        var bytes = Files.readAllBytes(Path.of(upload.uploadedFileName()));
-        return new PetImage(
-            Buffer.buffer(bytes),
-            upload.fileName(),
-            upload.contentType(),
-            metadata
-        );
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static java.util.Objects.isNull;
+
+/**
+ * An image of a pet and its thumbnails
+ * <p>
+ * Images are served under `/static` of the server. The URL of the server as the clients see it
+ * can be configured with the environment variable PETSTORE_PUBLIC_URL.
+ *
+ * @param name       the name of the image in the image store
+ * @param thumbnails the names of its thumbnails, from the smallest up
+ */
+public record PetImage(String name, List<String> thumbnails) {
+
+    public static final String PUBLIC_URL_VARIABLE = "PETSTORE_PUBLIC_URL";
+
+    private static final String DEFAULT_PUBLIC_URL = "http://localhost:8080";
+
+    private static final String publicUrl = publicUrl(System.getenv());
+
+    /**
+     * @return the URL of the image followed by the URLs of its thumbnails
+     */
+    public List<URI> toUris() {
+        return Stream.concat(Stream.of(name), thumbnails.stream())
+                     .map(file -> URI.create(publicUrl + "/static/" + file))
+                     .toList();
     }
 
-    public URI toUri() {
-        var str = String.format("http://localhost:%d/static/%s", 3000, filename);
-        return URI.create(str);
+    private static String publicUrl(Map<String, String> environment) {
+        var value = environment.get(PUBLIC_URL_VARIABLE);
+        return isNull(value) ? DEFAULT_PUBLIC_URL : value.replaceAll("/+$", "");
     }
 }
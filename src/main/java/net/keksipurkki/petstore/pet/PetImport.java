@@ -0,0 +1,196 @@
+package net.keksipurkki.petstore.pet;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.parsetools.RecordParser;
+import io.vertx.core.streams.ReadStream;
+import net.keksipurkki.petstore.api.ApiException;
+import net.keksipurkki.petstore.support.Json;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Imports pets from newline delimited JSON
+ * <p>
+ * Every line of the body is a NewPet. The body is parsed line by line as it arrives and the valid
+ * pets are added in batches of BATCH_SIZE with Pets.addAll. The body is paused while a batch is
+ * being stored, so an import holds on to one batch at a time however long the body is.
+ * <p>
+ * Lines that are not valid pets are skipped and reported by line number, the first
+ * MAX_REPORTED_FAILURES of them in detail. If a batch is rejected as a whole, its pets are retried
+ * one by one so that only the offending lines fail. Blank lines are ignored.
+ */
+public final class PetImport {
+
+    public static final String MEDIA_TYPE = "application/x-ndjson";
+
+    public static final int BATCH_SIZE = 1024;
+    public static final int MAX_LINE_LENGTH = 64 * 1024;
+    public static final int MAX_REPORTED_FAILURES = 100;
+
+    private final Pets pets;
+    private final ReadStream<Buffer> body;
+    private final RecordParser lines;
+    private final Promise<Report> promise = Promise.promise();
+
+    private final List<NewPet> batch = new ArrayList<>(BATCH_SIZE);
+    private final long[] batchLines = new long[BATCH_SIZE];
+    private final List<Failure> failures = new ArrayList<>();
+
+    private long line;
+    private long imported;
+    private long failed;
+    private boolean storing;
+    private boolean ended;
+
+    private PetImport(Pets pets, ReadStream<Buffer> body) {
+        this.pets = pets;
+        this.body = body;
+        this.lines = RecordParser.newDelimited("\n", body).maxRecordSize(MAX_LINE_LENGTH);
+    }
+
+    public static Future<Report> run(Pets pets, ReadStream<Buffer> body) {
+        var petImport = new PetImport(pets, body);
+        body.exceptionHandler(petImport::abort);
+        petImport.lines.exceptionHandler(petImport::failed);
+        petImport.lines.endHandler(v -> petImport.ended());
+        petImport.lines.handler(petImport::line);
+        return petImport.promise.future();
+    }
+
+    private void line(Buffer buffer) {
+        line++;
+
+        var length = buffer.length();
+        if (length > 0 && buffer.getByte(length - 1) == '\r') {
+            length--;
+        }
+
+        if (isBlank(buffer, length)) {
+            return;
+        }
+
+        try {
+            batchLines[batch.size()] = line;
+            batch.add(Json.parse(buffer.getBuffer(0, length), NewPet.class));
+        } catch (ApiException cause) {
+            failure(line, cause);
+        }
+
+        if (batch.size() == BATCH_SIZE) {
+            store();
+        }
+    }
+
+    private void ended() {
+        ended = true;
+        if (!storing) {
+            complete();
+        }
+    }
+
+    private void complete() {
+        if (batch.isEmpty()) {
+            promise.tryComplete(new Report(imported, failed, failures));
+        } else {
+            store();
+        }
+    }
+
+    private void store() {
+        var stored = List.copyOf(batch);
+        var storedLines = batchLines.clone();
+
+        batch.clear();
+        storing = true;
+        lines.pause();
+
+        add(stored, storedLines).onSuccess(v -> {
+            storing = false;
+            if (ended) {
+                complete();
+            } else {
+                lines.resume();
+            }
+        }).onFailure(this::abort);
+    }
+
+    private Future<Void> add(List<NewPet> stored, long[] storedLines) {
+        return addAll(stored).recover(cause -> {
+            if (!(cause instanceof ApiException)) {
+                return Future.failedFuture(cause);
+            }
+
+            var future = Future.<Void>succeededFuture();
+            for (int i = 0; i < stored.size(); i++) {
+                var pet = stored.get(i);
+                var petLine = storedLines[i];
+                future = future.flatMap(v -> addOne(pet, petLine));
+            }
+            return future;
+        });
+    }
+
+    private Future<Void> addAll(List<NewPet> stored) {
+        try {
+            return pets.addAll(stored).map(added -> {
+                imported += added.size();
+                return null;
+            });
+        } catch (RuntimeException cause) {
+            return Future.failedFuture(cause);
+        }
+    }
+
+    private Future<Void> addOne(NewPet pet, long petLine) {
+        return addAll(List.of(pet)).recover(cause -> {
+            if (!(cause instanceof ApiException problem)) {
+                return Future.failedFuture(cause);
+            }
+            failure(petLine, problem);
+            return Future.succeededFuture();
+        });
+    }
+
+    private void failure(long line, ApiException cause) {
+        failed++;
+        if (failures.size() < MAX_REPORTED_FAILURES) {
+            failures.add(new Failure(line, cause));
+        }
+    }
+
+    // The parser gives up on a line longer than MAX_LINE_LENGTH and cannot skip to the next one
+    private void failed(Throwable cause) {
+        var message = "Line " + (line + 1) + " is longer than " + MAX_LINE_LENGTH + " bytes";
+        abort(cause instanceof IllegalStateException ? new PetImportException(message) : cause);
+    }
+
+    // The rest of the body is drained, so that the connection can carry the error response
+    private void abort(Throwable cause) {
+        if (promise.tryFail(cause)) {
+            body.handler(null);
+            body.resume();
+        }
+    }
+
+    private static boolean isBlank(Buffer buffer, int length) {
+        for (int i = 0; i < length; i++) {
+            if (!Character.isWhitespace(buffer.getByte(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param failures the first failed lines, see MAX_REPORTED_FAILURES
+     */
+    public record Report(long imported, long failed, List<Failure> failures) {
+    }
+
+    public record Failure(long line, ApiException problem) {
+    }
+
+}
@@ -0,0 +1,23 @@
+package net.keksipurkki.petstore.pet;
+
+import net.keksipurkki.petstore.api.ApiException;
+
+/**
+ * The pet to update does not exist. Pets are only created with the ids the store allocates
+ */
+public class PetNotFoundException extends ApiException {
+
+    public PetNotFoundException(String message) {
+        super(message);
+    }
+
+    @Override
+    public int getStatusCode() {
+        return 404;
+    }
+
+    @Override
+    public String getDetail() {
+        return getMessage();
+    }
+}
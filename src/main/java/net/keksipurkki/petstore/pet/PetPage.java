@@ -0,0 +1,99 @@
+package net.keksipurkki.petstore.pet;
+
+import io.vertx.core.buffer.Buffer;
+import net.keksipurkki.petstore.support.Json;
+import net.keksipurkki.petstore.support.StreamingBody;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A page of pets in ascending id order
+ * <p>
+ * Serializes to `{"pets": [...], "next": "..."}` while the store is being iterated. The `next`
+ * cursor resumes the listing after the last pet of the page and is absent on the last page.
+ * Cursors are positions in the id space, so they stay valid under concurrent inserts and deletes.
+ */
+public final class PetPage implements StreamingBody {
+
+    public static final int FIRST = -1;
+
+    private static final String CURSOR_PREFIX = "pet:";
+
+    private final Iterator<Pet> pets;
+    private final int limit;
+
+    public PetPage(Iterator<Pet> pets, int limit) {
+        this.pets = pets;
+        this.limit = limit;
+    }
+
+    @Override
+    public String contentType() {
+        return "application/json";
+    }
+
+    @Override
+    public Iterator<Buffer> chunks() {
+        return new Iterator<>() {
+
+            private boolean started;
+            private boolean done;
+            private int count;
+            private Pet last;
+
+            @Override
+            public boolean hasNext() {
+                return !done;
+            }
+
+            @Override
+            public Buffer next() {
+                if (done) {
+                    throw new NoSuchElementException();
+                }
+
+                if (!started) {
+                    started = true;
+                    return Buffer.buffer("{\"pets\":[");
+                }
+
+                if (count < limit && pets.hasNext()) {
+                    var separator = count++ > 0 ? "," : "";
+                    last = pets.next();
+                    return Buffer.buffer(separator + Json.stringify(last));
+                }
+
+                done = true;
+
+                if (count == limit && pets.hasNext()) {
+                    return Buffer.buffer("],\"next\":\"" + cursor(last.id()) + "\"}");
+                }
+
+                return Buffer.buffer("]}");
+            }
+        };
+    }
+
+    public static String cursor(int petId) {
+        var position = CURSOR_PREFIX + petId;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(position.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the id after which the page resumes
+     * @throws IllegalArgumentException if the cursor is malformed
+     */
+    public static int position(String cursor) {
+        var position = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+
+        if (!position.startsWith(CURSOR_PREFIX)) {
+            throw new IllegalArgumentException("Not a pet cursor");
+        }
+
+        return Integer.parseInt(position.substring(CURSOR_PREFIX.length()));
+    }
+
+}
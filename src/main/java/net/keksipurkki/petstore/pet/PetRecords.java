@@ -0,0 +1,92 @@
+package net.keksipurkki.petstore.pet;
+
+import net.keksipurkki.petstore.storage.RecordWriter;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Representation of the pets held in PetStore snapshots
+ * <p>
+ * The representation is chosen with the environment variable PETSTORE_PET_STORAGE: `heap` (the
+ * default) keeps pet objects as they are, `off-heap` keeps encoded pets outside the Java heap and
+ * only a small handle in the snapshot.
+ * <p>
+ * Every encoded record is discarded exactly once: when a snapshot without it is installed, or
+ * when the snapshot it was encoded for loses the race to another writer. Records may still be
+ * decoded after they have been discarded by readers of older snapshots.
+ */
+interface PetRecords<R> {
+
+    String STORAGE_VARIABLE = "PETSTORE_PET_STORAGE";
+
+    R encode(Pet pet);
+
+    Pet decode(R record);
+
+    /**
+     * Appends the record framed as by PetCodec.frame
+     */
+    void write(R record, RecordWriter out);
+
+    /**
+     * Restores a block of framed records read from a snapshot. Blocks may be restored concurrently
+     *
+     * @return the records in block order
+     */
+    List<R> restore(ByteBuffer block, int count);
+
+    default void discard(R record) {
+    }
+
+    /**
+     * Drains the ids of the pets whose records should be encoded again to reclaim memory
+     */
+    default List<Integer> relocations() {
+        return List.of();
+    }
+
+    default boolean isRelocating(R record) {
+        return false;
+    }
+
+    static PetRecords<?> create(Map<String, String> environment) {
+        var storage = environment.getOrDefault(STORAGE_VARIABLE, "heap");
+        return switch (storage) {
+            case "heap" -> heap();
+            case "off-heap" -> new OffHeapPetRecords();
+            default -> throw new IllegalArgumentException("Unknown pet storage " + storage);
+        };
+    }
+
+    private static PetRecords<Pet> heap() {
+        return new PetRecords<>() {
+            @Override
+            public Pet encode(Pet pet) {
+                return pet;
+            }
+
+            @Override
+            public Pet decode(Pet record) {
+                return record;
+            }
+
+            @Override
+            public void write(Pet record, RecordWriter out) {
+                out.writeBytes(PetCodec.frame(record));
+            }
+
+            @Override
+            public List<Pet> restore(ByteBuffer block, int count) {
+                var pets = new ArrayList<Pet>(count);
+                for (int offset = block.position(); offset < block.limit(); offset += PetCodec.length(block, offset)) {
+                    pets.add(PetCodec.unframe(block, offset));
+                }
+                return pets;
+            }
+        };
+    }
+
+}
@@ -0,0 +1,171 @@
+package net.keksipurkki.petstore.pet;
+
+import net.keksipurkki.petstore.support.PersistentIntMap;
+import net.keksipurkki.petstore.support.PersistentIntSet;
+
+import java.util.*;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.requireNonNullElse;
+
+/**
+ * Trigram search over pet names and tags
+ * <p>
+ * Text is lower-cased and split into words, and each word is indexed by the trigrams of the word
+ * with a leading space: "Snoopy" yields " sn", "sno", "noo", "oop" and "opy". The leading space
+ * lets a two letter query find the words it starts. Trigrams of characters below U+0400 are packed
+ * into an `int` as they are, other trigrams are hashed into a disjoint range.
+ * <p>
+ * A pet matches a query if it has at least three quarters of the trigrams of the query, which
+ * tolerates a typo in a longer query. Matches are ranked by the number of trigrams they have,
+ * then by id. A query of n trigrams that requires m of them can only match pets in one of its
+ * n - m + 1 smallest posting lists, so only those are scanned and each candidate is scored with
+ * membership tests on the rest. The scan stops early once the results are all full matches, since
+ * later candidates have larger ids, and in any case after MAX_SCANNED postings, in which case
+ * partial matches are ranked among the candidates seen so far.
+ */
+final class PetSearch {
+
+    static final int MAX_SCANNED = 64 * 1024;
+
+    private static final int PACKED_BITS = 10;
+    private static final int HASHED = 1 << 30;
+
+    private PetSearch() {
+    }
+
+    static Collection<Integer> trigrams(Pet pet) {
+        var trigrams = new HashSet<Integer>();
+        trigrams(pet.name(), trigrams);
+        for (var tag : requireNonNullElse(pet.tags(), List.<String>of())) {
+            trigrams(tag, trigrams);
+        }
+        return trigrams;
+    }
+
+    /**
+     * @return the ids of the best matches, best first
+     */
+    static int[] search(PersistentIntMap<PersistentIntSet> index, String query, int limit) {
+        var trigrams = new HashSet<Integer>();
+        trigrams(query, trigrams);
+
+        if (trigrams.isEmpty() || limit < 1) {
+            return new int[0];
+        }
+
+        var postings = trigrams.stream()
+                               .map(trigram -> requireNonNullElse(index.get(trigram), PersistentIntSet.empty()))
+                               .sorted(Comparator.comparingInt(PersistentIntSet::size))
+                               .toArray(PersistentIntSet[]::new);
+
+        var n = postings.length;
+        var threshold = n - n / 4;
+        var budget = MAX_SCANNED;
+
+        // The worst of the results is at the head
+        var results = new PriorityQueue<Long>(limit + 1);
+
+        scan:
+        for (int i = 0; i < n - threshold + 1; i++) {
+            var members = postings[i].members();
+
+            candidates:
+            while (members.hasNext()) {
+                if (budget-- == 0) {
+                    break scan;
+                }
+
+                var petId = members.nextInt();
+                var score = 1;
+
+                for (int j = 0; j < n; j++) {
+                    if (j == i) {
+                        continue;
+                    }
+                    if (postings[j].contains(petId)) {
+                        // Scored already while scanning an earlier list
+                        if (j < i) {
+                            continue candidates;
+                        }
+                        score++;
+                    } else if (score + n - 1 - j < threshold) {
+                        continue candidates;
+                    }
+                }
+
+                results.add(rank(score, petId));
+
+                if (results.size() > limit) {
+                    results.poll();
+                }
+
+                // A full page raises the bar, which leaves fewer lists to scan
+                if (results.size() == limit) {
+                    threshold = Math.max(threshold, score(results.peek()));
+                }
+
+                if (threshold == n && results.size() == limit) {
+                    break scan;
+                }
+            }
+        }
+
+        var ids = new int[results.size()];
+        for (int i = ids.length - 1; i >= 0; i--) {
+            ids[i] = petId(results.poll());
+        }
+        return ids;
+    }
+
+    private static void trigrams(String text, Set<Integer> trigrams) {
+        if (isNull(text)) {
+            return;
+        }
+
+        var normalized = text.toLowerCase(Locale.ROOT);
+        var previous = ' ';
+        var current = ' ';
+        var length = 0;
+
+        // Every word starts with a space
+        for (int i = 0; i < normalized.length(); i++) {
+            var c = normalized.charAt(i);
+
+            if (!Character.isLetterOrDigit(c)) {
+                previous = ' ';
+                current = ' ';
+                length = 0;
+                continue;
+            }
+
+            if (++length >= 2) {
+                trigrams.add(trigram(previous, current, c));
+            }
+
+            previous = current;
+            current = c;
+        }
+    }
+
+    private static int trigram(char a, char b, char c) {
+        if ((a | b | c) >>> PACKED_BITS == 0) {
+            return a << 2 * PACKED_BITS | b << PACKED_BITS | c;
+        }
+        return HASHED | ((31 * (31 * a + b) + c) & (HASHED - 1));
+    }
+
+    // Higher scores first, then lower ids
+    private static long rank(int score, int petId) {
+        return (long) score << 32 | Integer.MAX_VALUE - petId;
+    }
+
+    private static int score(long rank) {
+        return (int) (rank >>> 32);
+    }
+
+    private static int petId(long rank) {
+        return Integer.MAX_VALUE - (int) rank;
+    }
+
+}
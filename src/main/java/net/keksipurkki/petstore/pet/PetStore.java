@@ -1,64 +1,1012 @@
 package net.keksipurkki.petstore.pet;
 
-import java.util.Collection;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import net.keksipurkki.petstore.storage.*;
+import net.keksipurkki.petstore.support.PersistentIntMap;
+import net.keksipurkki.petstore.support.PersistentIntSet;
+import net.keksipurkki.petstore.support.VersionMismatchException;
+import net.keksipurkki.petstore.support.Versioned;
 
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.LongPredicate;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+import static java.util.Objects.requireNonNull;
+import static java.util.Objects.requireNonNullElse;
+
+/**
+ * In-memory pet inventory
+ * <p>
+ * The whole inventory is an immutable snapshot: the pets by id, the per status counts, the
+ * secondary indexes by status, category and tag and the trigram index of PetSearch, all kept in
+ * persistent tries. A reader takes the
+ * current snapshot with a single volatile read and sees one consistent version of everything
+ * without locking, however long it holds on to it. A writer derives the next snapshot from the
+ * current one, sharing all untouched nodes, and installs it with a compare-and-set. A writer
+ * that loses the race retries on top of the winner.
+ * <p>
+ * How pets are represented in the snapshot is up to PetRecords.
+ * <p>
+ * Stored pets refer to the canonical category from the CategoryRegistry, which counts the pets
+ * of each category. References are taken before and dropped after the snapshot is installed.
+ * <p>
+ * Every installed version is appended to the Journal with its version number. Writers to the same
+ * pet may append in a different order than they installed their versions, so recovery keeps the
+ * highest version of each pet rather than the last one in the log.
+ * <p>
+ * The snapshot also maps every pet to the version that installed it, which is what clients see as
+ * the version of the pet. Conditional writes test it in the same compare-and-set loop that installs
+ * the write, so a write that expects a version either sees that version replaced or fails. The
+ * PetChangeIndex of the snapshot orders the pets and their deletions by version for delta syncs.
+ * It starts over when the store is opened or recovered, as versions are not kept.
+ * <p>
+ * A checkpoint writes a single snapshot, records and indexes included, so restoring it needs no
+ * decoding beyond what PetRecords does and the tries are built in bulk. Logged versions up to the
+ * version of the snapshot are already part of it and are skipped.
+ */
 final public class PetStore {
 
-    private static final Map<Status, Map<Integer, Pet>> store = Map.of(
-        Status.AVAILABLE, new ConcurrentHashMap<>(),
-        Status.PENDING, new ConcurrentHashMap<>(),
-        Status.SOLD, new ConcurrentHashMap<>()
+    public static final String STORAGE_VARIABLE = PetRecords.STORAGE_VARIABLE;
+
+    private static final int STATUS_INDEX = 0;
+    private static final int CATEGORY_INDEX = 1;
+    private static final int TAG_INDEX = 2;
+    private static final int TEXT_INDEX = 3;
+    private static final int INDEX_ENTRY_SIZE = 64 * 1024;
+
+    private static final Snapshot EMPTY = new Snapshot(
+        0,
+        PersistentIntMap.empty(),
+        PersistentIntMap.empty(),
+        PetChangeIndex.after(0),
+        new int[Status.values().length],
+        PersistentIntMap.empty(),
+        PersistentIntMap.empty(),
+        PersistentIntMap.empty(),
+        PersistentIntMap.empty()
     );
 
-    static public Map<Status, Integer> counts() {
-        return Map.of(
-            Status.AVAILABLE, store.get(Status.AVAILABLE).size(),
-            Status.PENDING, store.get(Status.PENDING).size(),
-            Status.SOLD, store.get(Status.SOLD).size()
-        );
+    private static volatile PetRecords<Object> records = records(System.getenv());
+    private static final AtomicReference<Snapshot> root = new AtomicReference<>(EMPTY);
+    private static final AtomicReference<Inventory> inventory = new AtomicReference<>(new Inventory(EMPTY.totals));
+
+    /**
+     * @return the pet counts by status. The same instance is returned until the counts change
+     */
+    static public Inventory counts() {
+        var totals = root.get().totals;
+        var cached = inventory.get();
+
+        if (cached.counts(totals)) {
+            return cached;
+        }
+
+        // Losing the race to another reader is harmless, the next call creates a fresh inventory
+        var fresh = new Inventory(totals);
+        inventory.compareAndSet(cached, fresh);
+        return fresh;
     }
 
     static public Collection<Pet> getInventory() {
-        var result = new HashSet<Pet>();
-        store.forEach((k, v) -> result.addAll(v.values()));
-        return result;
+        var snapshot = root.get();
+        return new AbstractCollection<>() {
+            @Override
+            public Iterator<Pet> iterator() {
+                return decoding(snapshot.pets.iterator());
+            }
+
+            @Override
+            public int size() {
+                return snapshot.pets.size();
+            }
+        };
+    }
+
+    public static Optional<Pet> get(int petId) {
+        return Optional.ofNullable(root.get().pets.get(petId)).map(records::decode);
+    }
+
+    public static Optional<Versioned<Pet>> getVersioned(int petId) {
+        var snapshot = root.get();
+        var record = snapshot.pets.get(petId);
+
+        if (isNull(record)) {
+            return Optional.empty();
+        }
+
+        return Optional.of(new Versioned<>(records.decode(record), snapshot.versions.get(petId)));
+    }
+
+    /**
+     * @param since a version of the store, or PetChanges.LATEST
+     * @return the pets changed and deleted after the version, read from a single snapshot
+     * @throws PetChangesException if the changes after the version are not known
+     */
+    public static PetChanges changes(long since) {
+        var snapshot = root.get();
+        var version = since == PetChanges.LATEST ? snapshot.version : since;
+
+        if (version < snapshot.changes.horizon() || version > snapshot.version) {
+            throw new PetChangesException("Changes after version " + version + " are not known, a full resync is required");
+        }
+
+        var changed = snapshot.changes.changedAfter(version);
+        var deleted = filtered(snapshot.changes.deletedAfter(version), petId -> !snapshot.pets.containsKey(petId));
+
+        return new PetChanges(decoding(resolving(snapshot, changed)), deleted, snapshot.version);
+    }
+
+    /**
+     * Iterates pets in ascending id order starting after the given id
+     * <p>
+     * The iteration reads a single snapshot. Resuming from the last seen id in a later snapshot never
+     * skips a pet that existed in both.
+     */
+    public static Iterator<Pet> list(int after) {
+        if (after == Integer.MAX_VALUE) {
+            return Collections.emptyIterator();
+        }
+        return decoding(root.get().pets.values(after + 1));
+    }
+
+    public static List<Pet> findByStatus(Status status) {
+        return lookup(Snapshot::byStatus, status.ordinal(), pet -> pet.status() == status);
+    }
+
+    public static List<Pet> findByCategory(String category) {
+        return CategoryRegistry.find(category)
+            .map(c -> lookup(Snapshot::byCategory, c.id(), pet -> nonNull(pet.category()) && category.equals(pet.category().name())))
+            .orElse(List.of());
+    }
+
+    public static List<Pet> findByTags(Collection<String> tags) {
+        var snapshot = root.get();
+        var ids = new TreeSet<Integer>();
+
+        for (var tag : tags) {
+            var index = snapshot.byTag.get(hash(tag));
+            if (nonNull(index)) {
+                index.members().forEachRemaining((int id) -> ids.add(id));
+            }
+        }
+
+        return resolve(snapshot, ids.iterator(), pet -> requireNonNullElse(pet.tags(), List.<String>of()).stream().anyMatch(tags::contains));
+    }
+
+    /**
+     * @return the pets whose names and tags best match the query, best first, see PetSearch
+     */
+    public static List<Pet> search(String query, int limit) {
+        var snapshot = root.get();
+        return Arrays.stream(PetSearch.search(snapshot.byText, query, limit))
+                     .mapToObj(petId -> records.decode(snapshot.pets.get(petId)))
+                     .toList();
+    }
+
+    /**
+     * @return the added pet and the version it was added in
+     * @throws IllegalArgumentException if there is a pet by the id already
+     */
+    public static Versioned<Pet> add(Pet pet) {
+        var added = acquire(pet.withStatus(Status.AVAILABLE));
+        var record = records.encode(added);
+
+        while (true) {
+            var current = root.get();
+
+            if (current.pets.containsKey(added.id())) {
+                release(added);
+                records.discard(record);
+                throw new IllegalArgumentException("Pet " + added.id() + " is not new");
+            }
+
+            var next = current.with(null, added, record);
+
+            if (root.compareAndSet(current, next)) {
+                journal(next.version, added.id(), added);
+                relocate();
+                return new Versioned<>(added, next.version);
+            }
+        }
+    }
+
+    /**
+     * Adds new pets with a single compare-and-set. Every pet still gets a version of its own,
+     * but the tries are updated in bulk, so each node on the way to the pets and their index keys
+     * is copied once per call rather than once per pet
+     *
+     * @return the added pets and their versions in ascending id order
+     */
+    public static List<Versioned<Pet>> addAll(Collection<Pet> pets) {
+        var added = pets.stream()
+                        .map(pet -> acquire(pet.withStatus(Status.AVAILABLE)))
+                        .sorted(Comparator.comparingInt(Pet::id))
+                        .toList();
+
+        var ids = new int[added.size()];
+        var encoded = new Object[added.size()];
+
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = added.get(i).id();
+            encoded[i] = records.encode(added.get(i));
+        }
+
+        while (true) {
+            var current = root.get();
+
+            for (int i = 0; i < ids.length; i++) {
+                if ((i > 0 && ids[i] == ids[i - 1]) || current.pets.containsKey(ids[i])) {
+                    added.forEach(PetStore::release);
+                    Arrays.stream(encoded).forEach(records::discard);
+                    throw new IllegalArgumentException("Pet " + ids[i] + " is not new");
+                }
+            }
+
+            var next = current.withAll(added, ids, encoded);
+
+            if (root.compareAndSet(current, next)) {
+                var versioned = new ArrayList<Versioned<Pet>>(ids.length);
+                for (int i = 0; i < ids.length; i++) {
+                    journal(current.version + i + 1, ids[i], added.get(i));
+                    versioned.add(new Versioned<>(added.get(i), current.version + i + 1));
+                }
+                relocate();
+                return versioned;
+            }
+        }
+    }
+
+    public static Optional<Versioned<Pet>> delete(int petId) {
+        return delete(petId, null);
+    }
+
+    /**
+     * @param precondition tested with the version of the pet, null to delete unconditionally
+     * @return the pet as it was, and the version it was deleted in
+     * @throws VersionMismatchException if the pet does not exist or the precondition does not hold
+     */
+    public static Optional<Versioned<Pet>> delete(int petId, LongPredicate precondition) {
+        while (true) {
+            var current = root.get();
+            var previous = current.pets.get(petId);
+
+            if (nonNull(precondition) && (isNull(previous) || !precondition.test(current.versions.get(petId)))) {
+                throw new VersionMismatchException("Pet " + petId + " is not in the expected version");
+            }
+
+            if (isNull(previous)) {
+                return Optional.empty();
+            }
+
+            var existing = records.decode(previous);
+            var next = current.with(existing, null, null);
+
+            if (root.compareAndSet(current, next)) {
+                journal(next.version, petId, null);
+                release(existing);
+                records.discard(previous);
+                relocate();
+                return Optional.of(new Versioned<>(existing, next.version));
+            }
+        }
+    }
+
+    public static Versioned<Pet> update(Pet pet) {
+        return update(pet, null);
+    }
+
+    /**
+     * Pets are added with add, so that only the ids the store allocates are ever taken
+     *
+     * @param precondition tested with the version of the pet, null to update unconditionally
+     * @throws PetNotFoundException     if the pet does not exist and there is no precondition
+     * @throws VersionMismatchException if the pet does not exist or the precondition does not hold
+     */
+    public static Versioned<Pet> update(Pet pet, LongPredicate precondition) {
+        requireNonNull(pet.status(), "Pet status must be defined");
+
+        var updated = acquire(pet);
+        var record = records.encode(updated);
+
+        while (true) {
+            var current = root.get();
+            var previous = current.pets.get(updated.id());
+
+            if (nonNull(precondition) && (isNull(previous) || !precondition.test(current.versions.get(updated.id())))) {
+                release(updated);
+                records.discard(record);
+                throw new VersionMismatchException("Pet " + updated.id() + " is not in the expected version");
+            }
+
+            if (isNull(previous)) {
+                release(updated);
+                records.discard(record);
+                throw new PetNotFoundException("Pet " + updated.id() + " does not exist");
+            }
+
+            var existing = records.decode(previous);
+            var next = current.with(existing, updated, record);
+
+            if (root.compareAndSet(current, next)) {
+                journal(next.version, updated.id(), updated);
+                release(existing);
+                records.discard(previous);
+                relocate();
+                return new Versioned<>(updated, next.version);
+            }
+        }
+    }
+
+    /**
+     * Moves an available pet to pending
+     *
+     * @return the pet as it was moved, and the version it was moved in, if and only if this call made
+     * the transition
+     */
+    public static Optional<Versioned<Pet>> reserve(int petId) {
+        return compareAndSetStatus(petId, Status.AVAILABLE, Status.PENDING);
+    }
+
+    /**
+     * Moves a pending pet back to available
+     *
+     * @return the pet as it was moved, and the version it was moved in, if and only if this call made
+     * the transition
+     */
+    public static Optional<Versioned<Pet>> release(int petId) {
+        return compareAndSetStatus(petId, Status.PENDING, Status.AVAILABLE);
+    }
+
+    /**
+     * Moves a pending pet to sold
+     *
+     * @return the pet as it was moved, and the version it was moved in, if and only if this call made
+     * the transition
+     */
+    public static Optional<Versioned<Pet>> sell(int petId) {
+        return compareAndSetStatus(petId, Status.PENDING, Status.SOLD);
+    }
+
+    // The compare-and-set of the snapshot is the linearization point of the transition
+    private static Optional<Versioned<Pet>> compareAndSetStatus(int petId, Status from, Status to) {
+        while (true) {
+            var current = root.get();
+            var previous = current.pets.get(petId);
+
+            if (isNull(previous)) {
+                return Optional.empty();
+            }
+
+            var existing = records.decode(previous);
+
+            if (existing.status() != from) {
+                return Optional.empty();
+            }
+
+            var updated = existing.withStatus(to);
+            var record = records.encode(updated);
+            var next = current.with(existing, updated, record);
+
+            if (root.compareAndSet(current, next)) {
+                journal(next.version, petId, updated);
+                records.discard(previous);
+                relocate();
+                return Optional.of(new Versioned<>(updated, next.version));
+            }
+
+            records.discard(record);
+        }
+    }
+
+    /**
+     * Empties the store and switches to the pet representation configured in the environment, see
+     * PetRecords. Must not run concurrently with anything else
+     */
+    public static synchronized void open(Map<String, String> environment) {
+        root.set(EMPTY);
+        CategoryRegistry.clear();
+        records = records(environment);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static PetRecords<Object> records(Map<String, String> environment) {
+        return (PetRecords<Object>) PetRecords.create(environment);
+    }
+
+    /**
+     * Restores the pets from the journal. Must run before the store is used
+     */
+    public static Recovery recovery() {
+        var latest = new HashMap<Integer, Restored>();
+
+        return new Recovery() {
+            @Override
+            public void restore(SnapshotReader snapshot) {
+                PetStore.restore(snapshot);
+            }
+
+            @Override
+            public void replay(RecordType type, ByteBuffer payload) {
+                var in = new RecordReader(payload);
+                var restored = switch (type) {
+                    case PET -> {
+                        var version = in.readLong();
+                        var pet = PetCodec.read(in);
+                        yield new Restored(version, pet.id(), pet);
+                    }
+                    case PET_DELETED -> new Restored(in.readLong(), in.readInt(), null);
+                    default -> null;
+                };
+
+                if (nonNull(restored)) {
+                    latest.merge(restored.petId, restored, (a, b) -> a.version > b.version ? a : b);
+                }
+            }
+
+            @Override
+            public void completed() {
+                replayed(latest.values());
+            }
+        };
+    }
+
+    private record Restored(long version, int petId, Pet pet) {
+    }
+
+    // Applies the logged versions newer than the restored snapshot
+    private static void replayed(Collection<Restored> restored) {
+        var snapshot = root.get();
+        var base = snapshot.version;
+        var version = base;
+
+        for (var r : restored) {
+            if (r.version <= base) {
+                continue;
+            }
+
+            var previous = snapshot.pets.get(r.petId);
+            var existing = isNull(previous) ? null : records.decode(previous);
+            var pet = isNull(r.pet) ? null : acquire(r.pet);
+
+            version = Math.max(version, r.version);
+
+            if (isNull(existing) && isNull(pet)) {
+                continue;
+            }
+
+            snapshot = snapshot.with(r.version, existing, pet, isNull(pet) ? null : records.encode(pet));
+            release(existing);
+
+            if (nonNull(previous)) {
+                records.discard(previous);
+            }
+            if (nonNull(pet)) {
+                Pet.restored(pet.id());
+            }
+        }
+
+        root.set(snapshot.at(version));
+    }
+
+    /**
+     * Writes the current snapshot of the pets
+     */
+    public static Checkpoint checkpoint() {
+        return out -> {
+            var snapshot = root.get();
+
+            out.write(BlockType.PET_STORE, entry -> {
+                entry.writeLong(snapshot.version).writeInt(snapshot.totals.length);
+                for (var total : snapshot.totals) {
+                    entry.writeInt(total);
+                }
+            });
+
+            for (var record : snapshot.pets) {
+                out.write(BlockType.PETS, entry -> records.write(record, entry));
+            }
+
+            save(out, STATUS_INDEX, snapshot.byStatus);
+            save(out, CATEGORY_INDEX, snapshot.byCategory);
+            save(out, TAG_INDEX, snapshot.byTag);
+            save(out, TEXT_INDEX, snapshot.byText);
+
+            // Category ids are recycled, so the names are taken from the snapshot rather than the registry
+            var categories = snapshot.byCategory.keys();
+            while (categories.hasNext()) {
+                var categoryId = categories.nextInt();
+                var petId = snapshot.byCategory.get(categoryId).members().nextInt();
+                var category = records.decode(snapshot.pets.get(petId)).category();
+                out.write(BlockType.CATEGORIES, entry -> entry.writeInt(category.id()).writeString(category.name()));
+            }
+        };
+    }
+
+    private static void save(SnapshotWriter out, int index, PersistentIntMap<PersistentIntSet> ids) {
+        var keys = ids.keys();
+
+        while (keys.hasNext()) {
+            var key = keys.nextInt();
+            var values = ids.get(key).members();
+
+            // Long lists are split so that no entry gets near the block size
+            while (values.hasNext()) {
+                var list = new IdList();
+                while (values.hasNext() && list.size < INDEX_ENTRY_SIZE) {
+                    list.add(values.nextInt());
+                }
+                out.write(BlockType.PET_INDEX, entry -> {
+                    entry.writeInt(index).writeInt(key).writeInt(list.size);
+                    for (int i = 0; i < list.size; i++) {
+                        entry.writeInt(list.ids[i]);
+                    }
+                });
+            }
+        }
+    }
+
+    // Decodes the blocks of pets in parallel and builds the tries in bulk
+    private static void restore(SnapshotReader snapshot) {
+        var meta = snapshot.blocks(BlockType.PET_STORE);
+
+        if (meta.isEmpty()) {
+            return;
+        }
+
+        if (root.get() != EMPTY) {
+            throw new IllegalStateException("Pets can only be restored into an empty store");
+        }
+
+        var in = new RecordReader(meta.get(0).payload());
+        var version = in.readLong();
+        var totals = new int[in.readInt()];
+        for (int i = 0; i < totals.length; i++) {
+            totals[i] = in.readInt();
+        }
+
+        var blocks = snapshot.blocks(BlockType.PETS).parallelStream().map(block -> {
+            var payload = block.payload();
+            var ids = new int[block.count()];
+            for (int i = 0, offset = 0; i < ids.length; i++, offset += PetCodec.length(payload, offset)) {
+                ids[i] = PetCodec.id(payload, offset);
+            }
+            return new RestoredBlock(ids, records.restore(payload, block.count()));
+        }).toList();
+
+        var size = blocks.stream().mapToInt(block -> block.ids.length).sum();
+        var ids = new int[size];
+        var values = new Object[size];
+        var position = 0;
+
+        for (var block : blocks) {
+            System.arraycopy(block.ids, 0, ids, position, block.ids.length);
+            System.arraycopy(block.records.toArray(), 0, values, position, block.ids.length);
+            position += block.ids.length;
+        }
+
+        var indexes = List.<Map<Integer, IdList>>of(new HashMap<>(), new HashMap<>(), new HashMap<>(), new HashMap<>());
+
+        for (var block : snapshot.blocks(BlockType.PET_INDEX)) {
+            var entries = new RecordReader(block.payload());
+            for (int i = 0; i < block.count(); i++) {
+                var list = indexes.get(entries.readInt()).computeIfAbsent(entries.readInt(), key -> new IdList());
+                var count = entries.readInt();
+                for (int j = 0; j < count; j++) {
+                    list.add(entries.readInt());
+                }
+            }
+        }
+
+        var references = new HashMap<Category, Integer>();
+
+        for (var block : snapshot.blocks(BlockType.CATEGORIES)) {
+            var entries = new RecordReader(block.payload());
+            for (int i = 0; i < block.count(); i++) {
+                var category = new Category(entries.readInt(), entries.readString());
+                references.put(category, indexes.get(CATEGORY_INDEX).get(category.id()).size);
+            }
+        }
+
+        CategoryRegistry.restore(references);
+
+        // Snapshots taken before pets could be searched have no text index
+        if (size > 0 && indexes.get(TEXT_INDEX).isEmpty()) {
+            indexes.get(TEXT_INDEX).putAll(textIndex(ids, values, size));
+        }
+
+        // The versions of the pets are not saved. Restored pets get the version of the snapshot
+        var restored = Long.valueOf(version);
+
+        root.set(new Snapshot(
+            version,
+            PersistentIntMap.ofSorted(ids, size, i -> values[i]),
+            PersistentIntMap.ofSorted(ids, size, i -> restored),
+            PetChangeIndex.after(version),
+            totals,
+            index(indexes.get(STATUS_INDEX)),
+            index(indexes.get(CATEGORY_INDEX)),
+            index(indexes.get(TAG_INDEX)),
+            index(indexes.get(TEXT_INDEX))
+        ));
+
+        if (size > 0) {
+            Pet.restored(ids[size - 1]);
+        }
+    }
+
+    private static PersistentIntMap<PersistentIntSet> index(Map<Integer, IdList> lists) {
+        var keys = lists.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+        var ids = Arrays.stream(keys)
+                        .parallel()
+                        .mapToObj(key -> lists.get(key))
+                        .map(list -> PersistentIntSet.ofSorted(list.ids, list.size))
+                        .toArray();
+        return PersistentIntMap.ofSorted(keys, keys.length, i -> (PersistentIntSet) ids[i]);
+    }
+
+    // Indexes slices of the pets in parallel. The slices are merged in order, which keeps the lists sorted
+    private static Map<Integer, IdList> textIndex(int[] ids, Object[] values, int size) {
+        var slices = IntStream.range(0, (size + INDEX_ENTRY_SIZE - 1) / INDEX_ENTRY_SIZE).parallel().mapToObj(slice -> {
+            var lists = new HashMap<Integer, IdList>();
+            for (int i = slice * INDEX_ENTRY_SIZE; i < Math.min(size, (slice + 1) * INDEX_ENTRY_SIZE); i++) {
+                for (var trigram : PetSearch.trigrams(records.decode(values[i]))) {
+                    lists.computeIfAbsent(trigram, key -> new IdList()).add(ids[i]);
+                }
+            }
+            return lists;
+        }).toList();
+
+        var merged = new HashMap<Integer, IdList>();
+        for (var lists : slices) {
+            lists.forEach((trigram, list) -> merged.computeIfAbsent(trigram, key -> new IdList()).addAll(list));
+        }
+        return merged;
+    }
+
+    private record RestoredBlock(int[] ids, List<?> records) {
     }
 
-    public static void add(Pet pet) {
-        store.get(Status.AVAILABLE).put(pet.id(), pet);
+    private static final class IdList {
+        private int[] ids = new int[16];
+        private int size;
+
+        void add(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size << 1);
+            }
+            ids[size++] = id;
+        }
+
+        void addAll(IdList list) {
+            if (size + list.size > ids.length) {
+                ids = Arrays.copyOf(ids, Math.max(size + list.size, size << 1));
+            }
+            System.arraycopy(list.ids, 0, ids, size, list.size);
+            size += list.size;
+        }
     }
 
-    public static Pet delete(Pet pet) {
-        return store.get(pet.status()).remove(pet.id());
+    private static void journal(long version, int petId, Pet pet) {
+        if (isNull(pet)) {
+            Journal.append(RecordType.PET_DELETED, out -> out.writeLong(version).writeInt(petId));
+        } else {
+            Journal.append(RecordType.PET, out -> {
+                out.writeLong(version);
+                PetCodec.write(out, pet);
+            });
+        }
     }
 
-    public static Pet update(Pet pet) {
-        var inventory = store.get(pet.status());
-        inventory.put(pet.id(), pet);
-        return pet;
+    // Encodes again the pets whose records are in memory that PetRecords wants to reclaim
+    private static void relocate() {
+        for (var petId : records.relocations()) {
+            while (true) {
+                var current = root.get();
+                var previous = current.pets.get(petId);
+
+                if (isNull(previous) || !records.isRelocating(previous)) {
+                    break;
+                }
+
+                var record = records.encode(records.decode(previous));
+
+                if (root.compareAndSet(current, current.relocate(petId, record))) {
+                    records.discard(previous);
+                    break;
+                }
+
+                records.discard(record);
+            }
+        }
     }
 
-    public static void reserve(int petId) {
-        var pet = store.get(Status.AVAILABLE).remove(petId);
+    private static List<Pet> lookup(Function<Snapshot, PersistentIntMap<PersistentIntSet>> index, int key, Predicate<Pet> predicate) {
+        var snapshot = root.get();
+        var ids = index.apply(snapshot).get(key);
 
-        if (pet == null) {
-            throw new UnsupportedOperationException("Pet is not available for reservation");
+        if (isNull(ids)) {
+            return List.of();
         }
 
-        store.get(Status.PENDING).put(petId, pet);
+        return resolve(snapshot, ids.members(), predicate);
     }
 
-    public static void sell(int petId) {
-        var pet = store.get(Status.PENDING).remove(petId);
+    // Index keys may collide or be recycled, so candidates are checked against the predicate
+    private static List<Pet> resolve(Snapshot snapshot, Iterator<Integer> ids, Predicate<Pet> predicate) {
+        var pets = new ArrayList<Pet>();
 
-        if (pet == null) {
-            throw new UnsupportedOperationException("Pet is not available for selling");
+        while (ids.hasNext()) {
+            var record = snapshot.pets.get(ids.next());
+            if (nonNull(record)) {
+                var pet = records.decode(record);
+                if (predicate.test(pet)) {
+                    pets.add(pet);
+                }
+            }
         }
 
-        store.get(Status.SOLD).put(petId, pet);
+        return pets;
+    }
+
+    private static Iterator<Object> resolving(Snapshot snapshot, Iterator<Integer> ids) {
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return ids.hasNext();
+            }
+
+            @Override
+            public Object next() {
+                return snapshot.pets.get(ids.next());
+            }
+        };
+    }
+
+    private static Iterator<Integer> filtered(Iterator<Integer> ids, Predicate<Integer> predicate) {
+        return new Iterator<>() {
+
+            private Integer next = advance();
+
+            @Override
+            public boolean hasNext() {
+                return nonNull(next);
+            }
+
+            @Override
+            public Integer next() {
+                if (isNull(next)) {
+                    throw new NoSuchElementException();
+                }
+                var current = next;
+                next = advance();
+                return current;
+            }
+
+            private Integer advance() {
+                while (ids.hasNext()) {
+                    var id = ids.next();
+                    if (predicate.test(id)) {
+                        return id;
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    private static Iterator<Pet> decoding(Iterator<Object> iterator) {
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public Pet next() {
+                return records.decode(iterator.next());
+            }
+        };
+    }
+
+    // The category reference of the new version is taken before the old one is dropped to avoid needless eviction
+    private static Pet acquire(Pet pet) {
+        var category = pet.category();
+        if (isNull(category) || isNull(category.name())) {
+            return pet;
+        }
+        return pet.withCategory(CategoryRegistry.acquire(category.name()));
+    }
+
+    private static void release(Pet pet) {
+        if (nonNull(pet) && nonNull(pet.category()) && nonNull(pet.category().name())) {
+            CategoryRegistry.release(pet.category());
+        }
+    }
+
+    private static Collection<Integer> statuses(Pet pet) {
+        return Set.of(pet.status().ordinal());
+    }
+
+    private static Collection<Integer> categories(Pet pet) {
+        var category = pet.category();
+        return nonNull(category) && nonNull(category.name()) ? Set.of(category.id()) : Set.of();
+    }
+
+    private static Collection<Integer> tags(Pet pet) {
+        var tags = new HashSet<Integer>();
+        for (var tag : requireNonNullElse(pet.tags(), List.<String>of())) {
+            tags.add(hash(tag));
+        }
+        return tags;
+    }
+
+    private static int hash(String tag) {
+        return tag.hashCode() & Integer.MAX_VALUE;
+    }
+
+    private record Snapshot(long version,
+                            PersistentIntMap<Object> pets,
+                            PersistentIntMap<Long> versions,
+                            PetChangeIndex changes,
+                            int[] totals,
+                            PersistentIntMap<PersistentIntSet> byStatus,
+                            PersistentIntMap<PersistentIntSet> byCategory,
+                            PersistentIntMap<PersistentIntSet> byTag,
+                            PersistentIntMap<PersistentIntSet> byText) {
+
+        /**
+         * @return the next version with the existing pet replaced by the updated one. Either may be null
+         */
+        Snapshot with(Pet existing, Pet updated, Object record) {
+            return with(version + 1, existing, updated, record);
+        }
+
+        /**
+         * @return the given version with the existing pet replaced by the updated one. Either may be null
+         */
+        Snapshot with(long version, Pet existing, Pet updated, Object record) {
+            var petId = nonNull(updated) ? updated.id() : existing.id();
+            var from = nonNull(existing) ? existing.status() : null;
+            var to = nonNull(updated) ? updated.status() : null;
+
+            // The totals are shared by versions with equal counts, which makes them cheap to compare
+            var totals = this.totals;
+
+            if (from != to) {
+                totals = totals.clone();
+                if (nonNull(from)) {
+                    totals[from.ordinal()]--;
+                }
+                if (nonNull(to)) {
+                    totals[to.ordinal()]++;
+                }
+            }
+
+            return new Snapshot(
+                version,
+                isNull(updated) ? pets.remove(petId) : pets.put(petId, record),
+                isNull(updated) ? versions.remove(petId) : versions.put(petId, version),
+                isNull(updated) ? changes.deleted(petId, versions.get(petId), version) : changes.changed(petId, versions.get(petId), version),
+                totals,
+                reindex(byStatus, petId, existing, updated, PetStore::statuses),
+                reindex(byCategory, petId, existing, updated, PetStore::categories),
+                reindex(byTag, petId, existing, updated, PetStore::tags),
+                sameText(existing, updated) ? byText : reindex(byText, petId, existing, updated, PetSearch::trigrams)
+            );
+        }
+
+        /**
+         * @return the next versions with the new pets added, one version per pet
+         */
+        Snapshot withAll(List<Pet> added, int[] ids, Object[] records) {
+            var totals = this.totals.clone();
+            totals[Status.AVAILABLE.ordinal()] += added.size();
+
+            return new Snapshot(
+                version + added.size(),
+                pets.putAll(ids, ids.length, i -> records[i]),
+                versions.putAll(ids, ids.length, i -> version + i + 1),
+                changes.added(ids, version + 1),
+                totals,
+                indexAll(byStatus, added, PetStore::statuses),
+                indexAll(byCategory, added, PetStore::categories),
+                indexAll(byTag, added, PetStore::tags),
+                indexAll(byText, added, PetSearch::trigrams)
+            );
+        }
+
+        /**
+         * @return the given version with no changes known up to it
+         */
+        Snapshot at(long version) {
+            return new Snapshot(version, pets, versions, PetChangeIndex.after(version), totals, byStatus, byCategory, byTag, byText);
+        }
+
+        /**
+         * @return the same version with the record of the pet replaced
+         */
+        Snapshot relocate(int petId, Object record) {
+            return new Snapshot(version, pets.put(petId, record), versions, changes, totals, byStatus, byCategory, byTag, byText);
+        }
+
+        // Status changes are the most common updates and leave the text alone
+        private static boolean sameText(Pet existing, Pet updated) {
+            return nonNull(existing) && nonNull(updated)
+                && Objects.equals(existing.name(), updated.name())
+                && Objects.equals(existing.tags(), updated.tags());
+        }
+
+        // Sorting the key and id pairs groups them by key with the ids of each key in ascending order
+        private static PersistentIntMap<PersistentIntSet> indexAll(PersistentIntMap<PersistentIntSet> index,
+                                                                    List<Pet> added,
+                                                                    Function<Pet, Collection<Integer>> keys) {
+            var pairs = new long[added.size()];
+            var size = 0;
+
+            for (var pet : added) {
+                for (var key : keys.apply(pet)) {
+                    if (size == pairs.length) {
+                        pairs = Arrays.copyOf(pairs, size << 1);
+                    }
+                    pairs[size++] = (long) key << 32 | pet.id();
+                }
+            }
+
+            Arrays.sort(pairs, 0, size);
+
+            var distinct = new int[size];
+            var bounds = new int[size + 1];
+            var count = 0;
+
+            for (int i = 0; i < size; i++) {
+                var key = (int) (pairs[i] >>> 32);
+                if (count == 0 || distinct[count - 1] != key) {
+                    distinct[count] = key;
+                    bounds[count++] = i;
+                }
+            }
+            bounds[count] = size;
+
+            var ids = new int[size];
+            for (int i = 0; i < size; i++) {
+                ids[i] = (int) pairs[i];
+            }
+
+            return index.putAll(distinct, count, i -> {
+                var from = bounds[i];
+                var members = Arrays.copyOfRange(ids, from, bounds[i + 1]);
+                return requireNonNullElse(index.get(distinct[i]), PersistentIntSet.empty()).addAll(members, members.length);
+            });
+        }
+
+        private static PersistentIntMap<PersistentIntSet> reindex(PersistentIntMap<PersistentIntSet> index,
+                                                                   int petId,
+                                                                   Pet existing,
+                                                                   Pet updated,
+                                                                   Function<Pet, Collection<Integer>> keys) {
+            var added = nonNull(updated) ? keys.apply(updated) : Set.<Integer>of();
+            var removed = nonNull(existing) ? keys.apply(existing) : Set.<Integer>of();
+
+            for (var key : removed) {
+                if (added.contains(key)) {
+                    continue;
+                }
+                var ids = index.get(key).remove(petId);
+                index = ids.isEmpty() ? index.remove(key) : index.put(key, ids);
+            }
+
+            for (var key : added) {
+                var ids = requireNonNullElse(index.get(key), PersistentIntSet.empty());
+                index = index.put(key, ids.add(petId));
+            }
+
+            return index;
+        }
     }
 
 }
@@ -2,23 +2,65 @@ package net.keksipurkki.petstore.pet;
 
 import io.vertx.core.Future;
 import io.vertx.core.Vertx;
+import net.keksipurkki.petstore.backend.Backends;
+import net.keksipurkki.petstore.support.Versioned;
 
+import java.net.URI;
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.function.LongPredicate;
 
 public interface Pets {
 
     Future<Pet> add(NewPet input);
 
+    Future<List<Pet>> addAll(List<NewPet> inputs);
+
     Future<Pet> update(Pet pet, PetImage image);
 
     Future<Pet> update(Pet pet);
 
+    /**
+     * @param precondition tested with the current version of the pet, null to update unconditionally
+     */
+    Future<Versioned<Pet>> update(Pet pet, LongPredicate precondition);
+
     Future<Optional<Pet>> getById(int petId);
 
+    Future<Optional<Versioned<Pet>>> getVersionedById(int petId);
+
     Future<Optional<Pet>> delete(int petId);
 
+    /**
+     * @param precondition tested with the current version of the pet, null to delete unconditionally
+     */
+    Future<Optional<Pet>> delete(int petId, LongPredicate precondition);
+
+    Future<List<Pet>> findByStatus(Status status);
+
+    Future<List<Pet>> findByTags(List<String> tags);
+
+    Future<List<Pet>> findByCategory(String category);
+
+    Future<PetPage> list(int after, int limit);
+
+    Future<PetExport> export();
+
+    /**
+     * @return the photo URLs of every pet, read from a single snapshot of the store
+     */
+    Future<Set<URI>> photoUrls();
+
+    Future<List<Pet>> search(String query, int limit);
+
+    /**
+     * @param since a version of the store, or PetChanges.LATEST
+     */
+    Future<PetChanges> changes(long since);
+
     static Pets create(Vertx vertx) {
-        return new PetsImpl(vertx);
+        return Backends.current().pets(vertx);
     }
 
 }
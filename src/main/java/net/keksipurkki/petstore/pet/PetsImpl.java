@@ -2,47 +2,144 @@ package net.keksipurkki.petstore.pet;
 
 import io.vertx.core.Future;
 import io.vertx.core.Vertx;
+import net.keksipurkki.petstore.feed.Change;
+import net.keksipurkki.petstore.feed.ChangeFeed;
+import net.keksipurkki.petstore.storage.Journal;
+import net.keksipurkki.petstore.support.VersionMismatchException;
+import net.keksipurkki.petstore.support.Versioned;
 
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.function.LongPredicate;
 
-class PetsImpl implements Pets {
+public class PetsImpl implements Pets {
     private final Vertx vertx;
 
-    protected PetsImpl(Vertx vertx) {
+    public PetsImpl(Vertx vertx) {
         this.vertx = vertx;
     }
 
     @Override
     public Future<Pet> add(NewPet input) {
-        var pet = Pet.from(input);
-        PetStore.add(pet);
-        return Future.succeededFuture(pet);
+        var added = PetStore.add(Pet.from(input));
+        ChangeFeed.append(vertx, Change.Type.PET, added.value().id(), added);
+        return Journal.sync().map(added.value());
+    }
+
+    @Override
+    public Future<List<Pet>> addAll(List<NewPet> inputs) {
+        var added = PetStore.addAll(inputs.stream().map(Pet::from).toList());
+        ChangeFeed.appendAll(vertx, Change.Type.PET, added, Pet::id);
+        return Journal.sync().map(added.stream().map(Versioned::value).toList());
     }
 
     @Override
     public Future<Pet> update(Pet pet, PetImage image) {
-        // Store image
-        System.out.println(image.filename());
-        System.out.println(image.contentType());
-        System.out.println(image.metadata());
+        // The image is added to the pet as it is now, which is not necessarily as it was when the upload started
+        while (true) {
+            var current = PetStore.getVersioned(pet.id())
+                                  .orElseThrow(() -> new VersionMismatchException("Pet " + pet.id() + " no longer exists"));
+
+            var photoUrls = new ArrayList<>(current.value().photoUrls());
+            image.toUris().stream().filter(uri -> !photoUrls.contains(uri)).forEach(photoUrls::add);
+
+            if (photoUrls.size() == current.value().photoUrls().size()) {
+                return Future.succeededFuture(current.value());
+            }
 
-        // Update photoUrls
-        pet.photoUrls().add(image.toUri());
-        return Future.succeededFuture(pet);
+            try {
+                var updated = PetStore.update(current.value().withPhotoUrls(photoUrls), version -> version == current.version());
+                ChangeFeed.append(vertx, Change.Type.PET, pet.id(), updated);
+                return Journal.sync().map(updated.value());
+            } catch (VersionMismatchException cause) {
+                // Changed meanwhile
+            }
+        }
     }
 
     @Override
     public Future<Pet> update(Pet pet) {
-        return Future.succeededFuture(PetStore.update(pet));
+        var updated = PetStore.update(pet);
+        ChangeFeed.append(vertx, Change.Type.PET, pet.id(), updated);
+        return Journal.sync().map(updated.value());
+    }
+
+    @Override
+    public Future<Versioned<Pet>> update(Pet pet, LongPredicate precondition) {
+        var updated = PetStore.update(pet, precondition);
+        ChangeFeed.append(vertx, Change.Type.PET, pet.id(), updated);
+        return Journal.sync().map(updated);
     }
 
     @Override
     public Future<Optional<Pet>> getById(int petId) {
-        return Future.succeededFuture(PetStore.getInventory().stream().filter(p -> p.id() == petId).findFirst());
+        return Future.succeededFuture(PetStore.get(petId));
+    }
+
+    @Override
+    public Future<Optional<Versioned<Pet>>> getVersionedById(int petId) {
+        return Future.succeededFuture(PetStore.getVersioned(petId));
     }
 
     @Override
     public Future<Optional<Pet>> delete(int petId) {
-        return getById(petId).map(opt -> opt.map(PetStore::delete));
+        var deleted = PetStore.delete(petId);
+        deleted.ifPresent(pet -> ChangeFeed.append(vertx, Change.Type.PET_DELETED, petId, pet));
+        return Journal.sync().map(deleted.map(Versioned::value));
+    }
+
+    @Override
+    public Future<Optional<Pet>> delete(int petId, LongPredicate precondition) {
+        var deleted = PetStore.delete(petId, precondition);
+        deleted.ifPresent(pet -> ChangeFeed.append(vertx, Change.Type.PET_DELETED, petId, pet));
+        return Journal.sync().map(deleted.map(Versioned::value));
+    }
+
+    @Override
+    public Future<List<Pet>> findByStatus(Status status) {
+        return Future.succeededFuture(PetStore.findByStatus(status));
+    }
+
+    @Override
+    public Future<List<Pet>> findByTags(List<String> tags) {
+        return Future.succeededFuture(PetStore.findByTags(tags));
+    }
+
+    @Override
+    public Future<List<Pet>> findByCategory(String category) {
+        return Future.succeededFuture(PetStore.findByCategory(category));
+    }
+
+    @Override
+    public Future<PetPage> list(int after, int limit) {
+        return Future.succeededFuture(new PetPage(PetStore.list(after), limit));
+    }
+
+    @Override
+    public Future<PetExport> export() {
+        return Future.succeededFuture(new PetExport(PetStore.list(PetPage.FIRST)));
+    }
+
+    @Override
+    public Future<Set<URI>> photoUrls() {
+        return vertx.executeBlocking(promise -> {
+            var photoUrls = new HashSet<URI>();
+            PetStore.list(PetPage.FIRST).forEachRemaining(pet -> photoUrls.addAll(pet.photoUrls()));
+            promise.complete(photoUrls);
+        }, false);
+    }
+
+    @Override
+    public Future<List<Pet>> search(String query, int limit) {
+        return Future.succeededFuture(PetStore.search(query, limit));
+    }
+
+    @Override
+    public Future<PetChanges> changes(long since) {
+        return Future.succeededFuture(PetStore.changes(since));
     }
 }
@@ -0,0 +1,57 @@
+package net.keksipurkki.petstore.storage;
+
+/**
+ * Kinds of snapshot blocks. The codes are part of the file format and must never change
+ */
+public enum BlockType {
+
+    /**
+     * Log records, replayed like the records of the log
+     */
+    RECORDS(1),
+
+    /**
+     * The version and the status counts of the pet store
+     */
+    PET_STORE(2),
+
+    /**
+     * Pet records in ascending id order
+     */
+    PETS(3),
+
+    /**
+     * Pet ids by status, category and tag
+     */
+    PET_INDEX(4),
+
+    /**
+     * Categories in use
+     */
+    CATEGORIES(5),
+
+    /**
+     * The last block of a complete snapshot
+     */
+    END(127);
+
+    private final int code;
+
+    BlockType(int code) {
+        this.code = code;
+    }
+
+    public int code() {
+        return code;
+    }
+
+    public static BlockType from(int code) {
+        for (var type : values()) {
+            if (type.code == code) {
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("Unknown block type " + code);
+    }
+
+}
@@ -0,0 +1,22 @@
+package net.keksipurkki.petstore.storage;
+
+import java.util.List;
+
+/**
+ * Writes the state of a store into a snapshot
+ * <p>
+ * Snapshots are written by a background thread while the store keeps changing. A store must
+ * write a state that includes every change made before the call, and may include any change made
+ * during it: the changes made since the log was rotated are replayed on top of the snapshot.
+ */
+@FunctionalInterface
+public interface Checkpoint {
+
+    void save(SnapshotWriter snapshot);
+
+    static Checkpoint of(Checkpoint... stores) {
+        var checkpoints = List.of(stores);
+        return snapshot -> checkpoints.forEach(checkpoint -> checkpoint.save(snapshot));
+    }
+
+}
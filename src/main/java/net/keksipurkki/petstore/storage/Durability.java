@@ -0,0 +1,30 @@
+package net.keksipurkki.petstore.storage;
+
+/**
+ * When a logged mutation counts as done
+ */
+public enum Durability {
+
+    /**
+     * Every request waits for its records to be forced to disk. Records that arrive while the
+     * disk is busy are forced together in the next group commit
+     */
+    REQUEST,
+
+    /**
+     * Like REQUEST, but a group commit waits up to the maximum delay for more records to arrive.
+     * Trades latency for fewer forces under load
+     */
+    BATCH,
+
+    /**
+     * Requests complete right away and the log is forced in the background at the maximum delay.
+     * A crash loses at most the last interval of writes
+     */
+    ASYNC;
+
+    public static Durability from(String value) {
+        return valueOf(value.toUpperCase());
+    }
+
+}
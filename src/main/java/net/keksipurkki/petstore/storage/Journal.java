@@ -0,0 +1,399 @@
+package net.keksipurkki.petstore.storage;
+
+import io.vertx.core.Future;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardOpenOption.*;
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * Write-ahead log and snapshots of the pet, order and user stores
+ * <p>
+ * The journal is configured with environment variables:
+ * <ul>
+ *     <li>PETSTORE_DATA_DIR: the directory of the log and the snapshots. The journal is disabled if unset</li>
+ *     <li>PETSTORE_WAL_DURABILITY: `request` (the default), `batch` or `async`, see Durability</li>
+ *     <li>PETSTORE_WAL_MAX_DELAY_MS: how long a batch may wait for more records, 5 by default</li>
+ *     <li>PETSTORE_SNAPSHOT_INTERVAL_S: how often a snapshot is taken, 60 by default. 0 disables snapshots</li>
+ * </ul>
+ * <p>
+ * A store appends a record while it applies a mutation, in the same order as it applies
+ * mutations to the same key, and the API completes the response once `sync` completes. A
+ * mutation is visible to other requests before it is durable, but nobody is told it succeeded
+ * before it is.
+ * <p>
+ * The log is split into numbered segments. A snapshot rotates the log to a new segment N and
+ * then writes `snapshot-N.bin` in the background while the stores keep changing, so it includes
+ * everything in the segments before N and possibly some of what follows. Once the snapshot is on
+ * disk, the older segments and snapshots are deleted. Recovery restores the latest snapshot and
+ * replays the segments from N on.
+ */
+public final class Journal {
+
+    private static final Logger logger = LoggerFactory.getLogger(Journal.class);
+
+    public static final String DIRECTORY_VARIABLE = "PETSTORE_DATA_DIR";
+    public static final String DURABILITY_VARIABLE = "PETSTORE_WAL_DURABILITY";
+    public static final String MAX_DELAY_VARIABLE = "PETSTORE_WAL_MAX_DELAY_MS";
+    public static final String SNAPSHOT_INTERVAL_VARIABLE = "PETSTORE_SNAPSHOT_INTERVAL_S";
+
+    private static final Pattern SEGMENT = Pattern.compile("journal-(\\d+)\\.log");
+    private static final Pattern SNAPSHOT = Pattern.compile("snapshot-(\\d+)\\.bin");
+
+    private static volatile WriteAheadLog log;
+
+    // The records appended by the calling thread inside atomically
+    private static final ThreadLocal<RecordWriter> batch = new ThreadLocal<>();
+
+    // Guarded by Journal.class
+    private static Path directory;
+    private static Checkpoint checkpoint;
+    private static ScheduledExecutorService scheduler;
+
+    // Guarded by SNAPSHOTS
+    private static final Object SNAPSHOTS = new Object();
+    private static long segment;
+    private static volatile long snapshotted;
+
+    private Journal() {
+    }
+
+    /**
+     * Restores the stores from the latest snapshot and the log and opens the log for appending
+     */
+    public static synchronized void open(Map<String, String> environment, Recovery recovery, Checkpoint checkpoint) {
+        var directory = environment.get(DIRECTORY_VARIABLE);
+
+        if (isNull(directory)) {
+            return;
+        }
+
+        var durability = Durability.from(environment.getOrDefault(DURABILITY_VARIABLE, "request"));
+        var maxDelay = Long.parseLong(environment.getOrDefault(MAX_DELAY_VARIABLE, "5"));
+        var interval = Long.parseLong(environment.getOrDefault(SNAPSHOT_INTERVAL_VARIABLE, "60"));
+
+        open(Path.of(directory), durability, maxDelay, recovery, checkpoint);
+
+        if (interval > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                var thread = new Thread(runnable, "petstore-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(Journal::snapshotIfChanged, interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    public static synchronized void open(Path directory, Durability durability, long maxDelayMillis, Recovery recovery, Checkpoint checkpoint) {
+        if (nonNull(log)) {
+            throw new IllegalStateException("Journal is open already");
+        }
+
+        try {
+            Files.createDirectories(directory);
+
+            for (var file : files(directory, Pattern.compile(".*\\.tmp"))) {
+                Files.delete(file);
+            }
+
+            var start = System.nanoTime();
+            var last = recover(directory, recovery, true);
+            var log = WriteAheadLog.open(segment(directory, last), durability, maxDelayMillis, recovery);
+            force(directory);
+            recovery.completed();
+
+            logger.info("Recovered from {} in {} ms", directory, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+            Journal.directory = directory;
+            Journal.checkpoint = checkpoint;
+            synchronized (SNAPSHOTS) {
+                Journal.segment = last;
+                Journal.snapshotted = log.appended();
+            }
+            Journal.log = log;
+
+            delete(directory, last);
+        } catch (IOException cause) {
+            throw new UncheckedIOException(cause);
+        }
+    }
+
+    /**
+     * Restores the stores from the latest snapshot and the log without opening it
+     */
+    public static void read(Path directory, Recovery recovery) {
+        try {
+            recover(directory, recovery, false);
+            recovery.completed();
+        } catch (IOException cause) {
+            throw new UncheckedIOException(cause);
+        }
+    }
+
+    public static boolean isOpen() {
+        return nonNull(log);
+    }
+
+    /**
+     * Appends a record if the journal is open. The payload is only encoded then
+     */
+    public static void append(RecordType type, Consumer<RecordWriter> payload) {
+        var log = Journal.log;
+
+        if (isNull(log)) {
+            return;
+        }
+
+        var writer = new RecordWriter();
+        payload.accept(writer);
+
+        var records = batch.get();
+
+        if (nonNull(records)) {
+            records.writeByte(type.code()).writeInt(writer.size()).writeBytes(writer.toByteArray());
+        } else {
+            log.append(type, writer.toByteArray());
+        }
+    }
+
+    /**
+     * Runs mutations whose records must survive a crash together. The records the action appends
+     * are held back and appended as one record once it returns, or dropped if it throws, in which
+     * case the caller undoes what the action did in memory. A nested call joins the outer one
+     */
+    public static <T> T atomically(Supplier<T> action) {
+        if (isNull(log) || nonNull(batch.get())) {
+            return action.get();
+        }
+
+        var records = new RecordWriter();
+        T result;
+
+        batch.set(records);
+        try {
+            result = action.get();
+        } finally {
+            batch.remove();
+        }
+
+        var log = Journal.log;
+
+        if (records.size() > 0 && nonNull(log)) {
+            log.append(RecordType.BATCH, records.toByteArray());
+        }
+
+        return result;
+    }
+
+    /**
+     * @return a future completed once everything appended before the call is durable
+     */
+    public static Future<Void> sync() {
+        var log = Journal.log;
+        return isNull(log) ? Future.succeededFuture() : log.sync();
+    }
+
+    /**
+     * Takes a snapshot on the calling thread, which must not be an event loop. Appending carries
+     * on meanwhile
+     *
+     * @return the snapshot file
+     */
+    public static Path snapshot() {
+        synchronized (SNAPSHOTS) {
+            var log = Journal.log;
+
+            if (isNull(log)) {
+                throw new IllegalStateException("Journal is not open");
+            }
+
+            var start = System.nanoTime();
+            var next = segment + 1;
+            var file = directory.resolve("snapshot-%d.bin".formatted(next));
+            var temporary = directory.resolve(file.getFileName() + ".tmp");
+
+            try {
+                var sequence = log.appended();
+                log.rotate(segment(directory, next));
+                segment = next;
+                force(directory);
+
+                try (var channel = WriteAheadLog.create(temporary, CREATE, TRUNCATE_EXISTING, WRITE)) {
+                    var writer = new SnapshotWriter(channel, next);
+                    checkpoint.save(writer);
+                    writer.finish();
+                    channel.force(true);
+                }
+
+                Files.move(temporary, file, ATOMIC_MOVE);
+                force(directory);
+                snapshotted = sequence;
+
+                delete(directory, next);
+            } catch (IOException cause) {
+                throw new UncheckedIOException(cause);
+            } finally {
+                try {
+                    Files.deleteIfExists(temporary);
+                } catch (IOException cause) {
+                    logger.warn("Could not delete {}", temporary, cause);
+                }
+            }
+
+            logger.info("Wrote {} in {} ms", file, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            return file;
+        }
+    }
+
+    public static synchronized void close() {
+        if (isNull(log)) {
+            return;
+        }
+
+        if (nonNull(scheduler)) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+
+        synchronized (SNAPSHOTS) {
+            try {
+                log.close();
+            } catch (IOException cause) {
+                throw new UncheckedIOException(cause);
+            } finally {
+                log = null;
+            }
+        }
+    }
+
+    private static void snapshotIfChanged() {
+        var log = Journal.log;
+
+        if (isNull(log) || log.appended() == snapshotted) {
+            return;
+        }
+
+        try {
+            snapshot();
+        } catch (RuntimeException cause) {
+            // The log still has everything, so the next attempt can pick up from here
+            logger.error("Snapshot failed", cause);
+        }
+    }
+
+    // @return the number of the last segment
+    private static long recover(Path directory, Recovery recovery, boolean skipLast) throws IOException {
+        var snapshots = numbers(directory, SNAPSHOT);
+        var first = 1L;
+
+        if (!snapshots.isEmpty()) {
+            var latest = snapshots.get(snapshots.size() - 1);
+            var snapshot = SnapshotReader.open(directory.resolve("snapshot-%d.bin".formatted(latest)));
+            recovery.restore(snapshot);
+            first = snapshot.segment();
+            logger.info("Restored {}", snapshot.path());
+        }
+
+        var segments = numbers(directory, SEGMENT);
+        var base = first;
+        segments.removeIf(n -> n < base);
+
+        var last = segments.isEmpty() ? first : segments.get(segments.size() - 1);
+
+        for (int i = 0; i < segments.size(); i++) {
+            var n = segments.get(i);
+            var file = segment(directory, n);
+
+            if (skipLast && n == last) {
+                break;
+            }
+
+            var end = WriteAheadLog.read(file, recovery);
+
+            if (end == Files.size(file)) {
+                continue;
+            }
+
+            // Only the segment being written when the process stopped can end with a torn record.
+            // A crash during a rotation leaves it followed by empty segments
+            for (var later : segments.subList(i + 1, segments.size())) {
+                if (Files.size(segment(directory, later)) > 0) {
+                    throw new IOException("Log segment " + file + " is corrupt");
+                }
+            }
+
+            if (skipLast) {
+                try (var channel = FileChannel.open(file, WRITE)) {
+                    channel.truncate(end);
+                    channel.force(true);
+                }
+            }
+        }
+
+        return last;
+    }
+
+    // Deletes the segments and snapshots that the snapshot of the segment makes obsolete
+    private static void delete(Path directory, long segment) throws IOException {
+        if (!Files.exists(directory.resolve("snapshot-%d.bin".formatted(segment)))) {
+            return;
+        }
+        for (var n : numbers(directory, SEGMENT)) {
+            if (n < segment) {
+                Files.deleteIfExists(segment(directory, n));
+            }
+        }
+        for (var n : numbers(directory, SNAPSHOT)) {
+            if (n < segment) {
+                Files.deleteIfExists(directory.resolve("snapshot-%d.bin".formatted(n)));
+            }
+        }
+    }
+
+    private static Path segment(Path directory, long n) {
+        return directory.resolve("journal-%d.log".formatted(n));
+    }
+
+    private static List<Long> numbers(Path directory, Pattern pattern) throws IOException {
+        try (var files = Files.list(directory)) {
+            return files.map(file -> pattern.matcher(file.getFileName().toString()))
+                        .filter(Matcher::matches)
+                        .map(matcher -> Long.parseLong(matcher.group(1)))
+                        .sorted()
+                        .collect(Collectors.toList());
+        }
+    }
+
+    private static List<Path> files(Path directory, Pattern pattern) throws IOException {
+        try (var files = Files.list(directory)) {
+            return files.filter(file -> pattern.matcher(file.getFileName().toString()).matches()).toList();
+        }
+    }
+
+    // Makes the creation, renaming and deletion of files in the directory durable
+    private static void force(Path directory) throws IOException {
+        try (var channel = FileChannel.open(directory, READ)) {
+            channel.force(true);
+        }
+    }
+
+}
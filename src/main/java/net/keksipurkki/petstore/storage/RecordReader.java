@@ -0,0 +1,64 @@
+package net.keksipurkki.petstore.storage;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import static net.keksipurkki.petstore.storage.RecordWriter.NULL;
+
+/**
+ * Reads what RecordWriter wrote
+ */
+public final class RecordReader {
+
+    private final ByteBuffer buffer;
+
+    public RecordReader(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    public RecordReader(byte[] bytes) {
+        this(ByteBuffer.wrap(bytes));
+    }
+
+    public int readByte() {
+        return buffer.get();
+    }
+
+    public int readInt() {
+        return buffer.getInt();
+    }
+
+    public long readLong() {
+        return buffer.getLong();
+    }
+
+    public String readString() {
+        var length = buffer.getInt();
+        if (length == NULL) {
+            return null;
+        }
+        var utf8 = new byte[length];
+        buffer.get(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    public <T> List<T> readList(Function<String, T> mapper) {
+        var size = buffer.getInt();
+        if (size == NULL) {
+            return null;
+        }
+        var values = new ArrayList<T>(size);
+        for (int i = 0; i < size; i++) {
+            values.add(mapper.apply(readString()));
+        }
+        return values;
+    }
+
+    public boolean hasRemaining() {
+        return buffer.hasRemaining();
+    }
+
+}
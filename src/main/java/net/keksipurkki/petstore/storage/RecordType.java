@@ -0,0 +1,37 @@
+package net.keksipurkki.petstore.storage;
+
+/**
+ * Kinds of logged mutations. The codes are part of the file format and must never change
+ */
+public enum RecordType {
+
+    PET(1),
+    PET_DELETED(2),
+    ORDER(3),
+    ORDER_DELETED(4),
+    USER(5),
+    USER_DELETED(6),
+
+    // Records appended together, see Journal.atomically. The payload is `[type][length][payload]` repeated
+    BATCH(7);
+
+    private final int code;
+
+    RecordType(int code) {
+        this.code = code;
+    }
+
+    public int code() {
+        return code;
+    }
+
+    public static RecordType from(int code) {
+        for (var type : values()) {
+            if (type.code == code) {
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("Unknown record type " + code);
+    }
+
+}
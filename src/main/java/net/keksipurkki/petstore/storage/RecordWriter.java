@@ -0,0 +1,98 @@
+package net.keksipurkki.petstore.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.function.Function;
+
+import static java.util.Objects.isNull;
+
+/**
+ * Writes the compact binary encoding shared by the log, snapshots and off-heap records
+ * <p>
+ * Integers are big endian. Strings are UTF-8 prefixed with their length in bytes and lists are
+ * prefixed with their size. A length of -1 encodes `null`.
+ */
+public final class RecordWriter {
+
+    static final int NULL = -1;
+
+    private final ByteArrayOutputStream bytes;
+    private final DataOutputStream out;
+
+    public RecordWriter() {
+        this(64);
+    }
+
+    public RecordWriter(int size) {
+        this.bytes = new ByteArrayOutputStream(size);
+        this.out = new DataOutputStream(bytes);
+    }
+
+    public RecordWriter writeByte(int value) {
+        try {
+            out.writeByte(value);
+            return this;
+        } catch (IOException cause) {
+            throw new UncheckedIOException(cause);
+        }
+    }
+
+    public RecordWriter writeInt(int value) {
+        try {
+            out.writeInt(value);
+            return this;
+        } catch (IOException cause) {
+            throw new UncheckedIOException(cause);
+        }
+    }
+
+    public RecordWriter writeLong(long value) {
+        try {
+            out.writeLong(value);
+            return this;
+        } catch (IOException cause) {
+            throw new UncheckedIOException(cause);
+        }
+    }
+
+    public RecordWriter writeBytes(byte[] value) {
+        try {
+            out.write(value);
+            return this;
+        } catch (IOException cause) {
+            throw new UncheckedIOException(cause);
+        }
+    }
+
+    public RecordWriter writeString(String value) {
+        if (isNull(value)) {
+            return writeInt(NULL);
+        }
+        var utf8 = value.getBytes(StandardCharsets.UTF_8);
+        return writeInt(utf8.length).writeBytes(utf8);
+    }
+
+    public <T> RecordWriter writeList(List<T> values, Function<T, String> mapper) {
+        if (isNull(values)) {
+            return writeInt(NULL);
+        }
+        writeInt(values.size());
+        for (var value : values) {
+            writeString(mapper.apply(value));
+        }
+        return this;
+    }
+
+    public int size() {
+        return bytes.size();
+    }
+
+    public byte[] toByteArray() {
+        return bytes.toByteArray();
+    }
+
+}
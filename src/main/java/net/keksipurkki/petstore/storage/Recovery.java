@@ -0,0 +1,53 @@
+package net.keksipurkki.petstore.storage;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Rebuilds a store from the latest snapshot and the records of the log
+ * <p>
+ * The snapshot is restored first, then the records appended since it was taken are replayed in
+ * log order. A store ignores the record and block types it does not own.
+ */
+public interface Recovery {
+
+    void replay(RecordType type, ByteBuffer payload);
+
+    /**
+     * Restores the store from a snapshot. By default the records of the snapshot are replayed
+     */
+    default void restore(SnapshotReader snapshot) {
+        snapshot.replay(this);
+    }
+
+    /**
+     * Called once all records have been replayed
+     */
+    default void completed() {
+    }
+
+    static Recovery of(Recovery... stores) {
+        var recoveries = List.of(stores);
+        return new Recovery() {
+            @Override
+            public void replay(RecordType type, ByteBuffer payload) {
+                for (var recovery : recoveries) {
+                    recovery.replay(type, payload.duplicate());
+                }
+            }
+
+            @Override
+            public void restore(SnapshotReader snapshot) {
+                for (var recovery : recoveries) {
+                    recovery.restore(snapshot);
+                }
+            }
+
+            @Override
+            public void completed() {
+                recoveries.forEach(Recovery::completed);
+            }
+        };
+    }
+
+}
@@ -0,0 +1,149 @@
+package net.keksipurkki.petstore.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32C;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static net.keksipurkki.petstore.storage.SnapshotWriter.*;
+
+/**
+ * Reads a snapshot file by mapping it into memory
+ * <p>
+ * Every block is mapped on its own and the checksums of the blocks are verified in parallel when
+ * the snapshot is opened. A snapshot is only ever read whole: a missing END block or a corrupt
+ * block fails the read, since the log segments it replaces may be gone.
+ */
+public final class SnapshotReader {
+
+    private final Path path;
+    private final long segment;
+    private final List<Block> blocks;
+
+    /**
+     * @param count the number of entries in the block
+     */
+    public record Block(BlockType type, int count, ByteBuffer payload) {
+    }
+
+    private SnapshotReader(Path path, long segment, List<Block> blocks) {
+        this.path = path;
+        this.segment = segment;
+        this.blocks = blocks;
+    }
+
+    static SnapshotReader open(Path path) throws IOException {
+        var blocks = new ArrayList<Block>();
+        var checksums = new ArrayList<Integer>();
+        long segment;
+
+        try (var channel = FileChannel.open(path, READ)) {
+            var header = read(channel, 0, HEADER_SIZE);
+
+            if (header.getInt() != MAGIC || header.getInt() != FORMAT) {
+                throw new IOException(path + " is not a snapshot");
+            }
+
+            segment = header.getLong();
+
+            var position = (long) HEADER_SIZE;
+
+            while (true) {
+                if (position + BLOCK_HEADER_SIZE > channel.size()) {
+                    throw new IOException(path + " is incomplete");
+                }
+
+                var frame = read(channel, position, BLOCK_HEADER_SIZE);
+                var type = BlockType.from(frame.getInt());
+                var count = frame.getInt();
+                var length = frame.getInt();
+                var checksum = frame.getInt();
+
+                position += BLOCK_HEADER_SIZE;
+
+                if (type == BlockType.END) {
+                    break;
+                }
+
+                if (length < 0 || position + length > channel.size()) {
+                    throw new IOException(path + " is incomplete");
+                }
+
+                blocks.add(new Block(type, count, channel.map(FileChannel.MapMode.READ_ONLY, position, length)));
+                checksums.add(checksum);
+                position += length;
+            }
+        }
+
+        var corrupt = IntStream.range(0, blocks.size())
+                               .parallel()
+                               .anyMatch(i -> checksum(blocks.get(i).payload) != checksums.get(i));
+
+        if (corrupt) {
+            throw new IOException(path + " is corrupt");
+        }
+
+        return new SnapshotReader(path, segment, List.copyOf(blocks));
+    }
+
+    public Path path() {
+        return path;
+    }
+
+    /**
+     * @return the number of the first log segment that is not included in the snapshot
+     */
+    public long segment() {
+        return segment;
+    }
+
+    /**
+     * @return the blocks of the type in file order
+     */
+    public List<Block> blocks(BlockType type) {
+        var matching = new ArrayList<Block>();
+        for (var block : blocks) {
+            if (block.type == type) {
+                matching.add(new Block(type, block.count, block.payload.duplicate()));
+            }
+        }
+        return matching;
+    }
+
+    /**
+     * Replays the log records of the snapshot in the order they were written
+     */
+    public void replay(Recovery recovery) {
+        for (var block : blocks(BlockType.RECORDS)) {
+            var payload = block.payload;
+            for (int i = 0; i < block.count; i++) {
+                var type = RecordType.from(payload.get());
+                var length = payload.getInt();
+                recovery.replay(type, payload.slice(payload.position(), length));
+                payload.position(payload.position() + length);
+            }
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int size) throws IOException {
+        var buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        return buffer.flip();
+    }
+
+    private static int checksum(ByteBuffer payload) {
+        var crc = new CRC32C();
+        crc.update(payload.duplicate());
+        return (int) crc.getValue();
+    }
+
+}
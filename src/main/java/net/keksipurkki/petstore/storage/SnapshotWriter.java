@@ -0,0 +1,103 @@
+package net.keksipurkki.petstore.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+import static java.util.Objects.isNull;
+
+/**
+ * Writes a snapshot file
+ * <p>
+ * A snapshot starts with a header holding a magic number, the format version and the number of
+ * the first log segment to replay on top of it. The header is followed by blocks framed as
+ * `[type][entry count][length][crc32c][payload]` and terminated by an END block. Entries never
+ * span blocks, and blocks are cut at about 4 MiB so that a reader can map and process them in
+ * parallel.
+ */
+public final class SnapshotWriter {
+
+    static final int MAGIC = 0x50534E50;
+    static final int FORMAT = 1;
+    static final int HEADER_SIZE = 16;
+    static final int BLOCK_HEADER_SIZE = 16;
+    static final int BLOCK_SIZE = 4 * 1024 * 1024;
+
+    private final DataOutputStream out;
+
+    private BlockType type;
+    private RecordWriter block;
+    private int count;
+
+    SnapshotWriter(FileChannel channel, long segment) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 256 * 1024));
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT);
+        out.writeLong(segment);
+    }
+
+    /**
+     * Appends an entry to the current block of the type, starting a new block if needed
+     */
+    public void write(BlockType type, Consumer<RecordWriter> entry) {
+        if (type != this.type || block.size() >= BLOCK_SIZE) {
+            flush();
+            this.type = type;
+            this.block = new RecordWriter(BLOCK_SIZE + BLOCK_SIZE / 8);
+        }
+
+        entry.accept(block);
+        count++;
+    }
+
+    /**
+     * Appends a log record, see SnapshotReader.replay
+     */
+    public void record(RecordType type, Consumer<RecordWriter> payload) {
+        var record = new RecordWriter();
+        payload.accept(record);
+        var bytes = record.toByteArray();
+        write(BlockType.RECORDS, out -> out.writeByte(type.code()).writeInt(bytes.length).writeBytes(bytes));
+    }
+
+    void finish() {
+        flush();
+        writeBlock(BlockType.END, 0, new byte[0]);
+        try {
+            out.flush();
+        } catch (IOException cause) {
+            throw new UncheckedIOException(cause);
+        }
+    }
+
+    private void flush() {
+        if (isNull(type)) {
+            return;
+        }
+        writeBlock(type, count, block.toByteArray());
+        type = null;
+        block = null;
+        count = 0;
+    }
+
+    private void writeBlock(BlockType type, int count, byte[] payload) {
+        var crc = new CRC32C();
+        crc.update(payload);
+
+        try {
+            out.writeInt(type.code());
+            out.writeInt(count);
+            out.writeInt(payload.length);
+            out.writeInt((int) crc.getValue());
+            out.write(payload);
+        } catch (IOException cause) {
+            throw new UncheckedIOException(cause);
+        }
+    }
+
+}
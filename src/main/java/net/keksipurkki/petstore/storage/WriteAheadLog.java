@@ -0,0 +1,433 @@
+package net.keksipurkki.petstore.storage;
+
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+import static java.nio.file.StandardOpenOption.*;
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * An append-only log of binary records with group commit
+ * <p>
+ * A record is framed as `[length][crc32c][type][payload]`, where the length counts the payload
+ * bytes and the checksum covers the type and the payload. Appending copies the record into an
+ * in-memory batch and assigns it the next log sequence number. A single flusher thread writes the
+ * batch and forces it to disk, while appenders fill the other batch, so every record that arrives
+ * during a force shares the next one. Waiters are completed on the Vert.x context they came from,
+ * one task per context and batch.
+ * <p>
+ * Opening a log replays it and truncates it at the first torn or corrupt record, which is what a
+ * crash in the middle of a write leaves behind. If writing fails, every pending and later sync
+ * fails, since nothing appended after the failure can be made durable anymore.
+ * <p>
+ * The log can be rotated to a new segment file. Records appended before the rotation are flushed
+ * to the old segment, which is then closed, and sequence numbers carry on across segments.
+ */
+final class WriteAheadLog implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    static final int HEADER_SIZE = 9;
+    static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+    private static final int MAX_BATCH_SIZE = 1024 * 1024;
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rw-------");
+
+    private final Durability durability;
+    private final long maxDelayNanos;
+    private final Thread flusher;
+
+    // Guarded by `this`
+    private Path path;
+    private FileChannel channel;
+    private ByteBuffer tail;
+    private FileChannel tailChannel;
+    private long tailSequence;
+    private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+    private ByteBuffer flushing = ByteBuffer.allocate(64 * 1024);
+    private final Deque<Waiter> waiters = new ArrayDeque<>();
+    private long appended;
+    private long durable;
+    private long firstPendingNanos;
+    private IOException failure;
+    private boolean closed;
+
+    private record Waiter(long sequence, Context context, Promise<Void> promise) {
+    }
+
+    private WriteAheadLog(Path path, FileChannel channel, Durability durability, long maxDelayMillis) {
+        this.path = path;
+        this.channel = channel;
+        this.durability = durability;
+        this.maxDelayNanos = durability == Durability.REQUEST ? 0 : TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.flusher = new Thread(this::flush, "petstore-wal-flusher");
+        this.flusher.setDaemon(true);
+    }
+
+    /**
+     * Opens the log at the path, replaying its records in order before anything can be appended
+     */
+    static WriteAheadLog open(Path path, Durability durability, long maxDelayMillis, Recovery recovery) throws IOException {
+        var channel = create(path, CREATE, READ, WRITE);
+
+        try {
+            var end = replay(path, channel, recovery);
+            if (end < channel.size()) {
+                logger.warn("Truncating {} at {} of {} bytes after a torn or corrupt record", path, end, channel.size());
+                channel.truncate(end);
+                channel.force(true);
+            }
+            channel.position(end);
+        } catch (IOException | RuntimeException cause) {
+            channel.close();
+            throw cause;
+        }
+
+        var log = new WriteAheadLog(path, channel, durability, maxDelayMillis);
+        log.flusher.start();
+        logger.info("Opened {} with {} durability", path, durability);
+        return log;
+    }
+
+    /**
+     * Opens a file of the journal. Files it creates are readable by their owner only, since the
+     * records hold personal data
+     */
+    static FileChannel create(Path path, OpenOption... options) throws IOException {
+        if (!path.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            return FileChannel.open(path, options);
+        }
+
+        return FileChannel.open(path, Set.of(options), PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+    }
+
+    /**
+     * Reads the records of a log without opening it for writing
+     *
+     * @return the position after the last intact record
+     */
+    static long read(Path path, Recovery recovery) throws IOException {
+        try (var channel = FileChannel.open(path, READ)) {
+            return replay(path, channel, recovery);
+        }
+    }
+
+    /**
+     * @return the sequence number of the last appended record
+     */
+    synchronized long appended() {
+        return appended;
+    }
+
+    /**
+     * Continues the log in a new segment file, returning once the old segment is on disk and closed
+     */
+    void rotate(Path next) throws IOException {
+        var channel = create(next, CREATE_NEW, WRITE);
+
+        synchronized (this) {
+            if (closed || nonNull(failure)) {
+                channel.close();
+                throw new IOException("Log " + path + " cannot be rotated", failure);
+            }
+
+            tail = pending;
+            tailChannel = this.channel;
+            tailSequence = appended;
+
+            this.path = next;
+            this.channel = channel;
+            this.pending = ByteBuffer.allocate(flushing.capacity());
+            notifyAll();
+
+            try {
+                while (nonNull(tail) && isNull(failure)) {
+                    wait();
+                }
+            } catch (InterruptedException cause) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while rotating " + path, cause);
+            }
+
+            if (nonNull(failure)) {
+                throw new IOException("Log " + path + " cannot be rotated", failure);
+            }
+        }
+    }
+
+    /**
+     * @return the sequence number of the record
+     */
+    synchronized long append(RecordType type, byte[] payload) {
+        if (closed) {
+            throw new IllegalStateException("Log " + path + " is closed");
+        }
+
+        // Nothing can be made durable after a failure, so there is no point in buffering
+        if (nonNull(failure)) {
+            return appended;
+        }
+
+        if (payload.length > MAX_RECORD_SIZE) {
+            throw new IllegalArgumentException("Record of " + payload.length + " bytes is too large");
+        }
+
+        var size = HEADER_SIZE + payload.length;
+
+        if (pending.remaining() < size) {
+            pending = grow(pending, size);
+        }
+
+        var wasEmpty = pending.position() == 0;
+
+        pending.putInt(payload.length)
+               .putInt(checksum(type, payload))
+               .put((byte) type.code())
+               .put(payload);
+
+        if (wasEmpty) {
+            firstPendingNanos = System.nanoTime();
+        }
+
+        // In batch mode the flusher sleeps until the batch is old or large enough
+        if (wasEmpty || durability == Durability.REQUEST || pending.position() >= MAX_BATCH_SIZE) {
+            notifyAll();
+        }
+
+        return ++appended;
+    }
+
+    /**
+     * @return a future completed once every record appended before this call is on disk, or right
+     * away in async mode unless the log has failed
+     */
+    Future<Void> sync() {
+        var promise = Promise.<Void>promise();
+
+        synchronized (this) {
+            if (nonNull(failure)) {
+                return Future.failedFuture(failure);
+            }
+            if (durable >= appended || durability == Durability.ASYNC) {
+                return Future.succeededFuture();
+            }
+            waiters.add(new Waiter(appended, Vertx.currentContext(), promise));
+        }
+
+        return promise.future();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+
+        try {
+            flusher.join();
+        } catch (InterruptedException cause) {
+            Thread.currentThread().interrupt();
+        }
+
+        channel.close();
+    }
+
+    private void flush() {
+        while (true) {
+            ByteBuffer batch;
+            FileChannel target;
+            boolean sealed;
+            long sequence;
+
+            synchronized (this) {
+                try {
+                    while (isNull(tail) && !ready()) {
+                        if (closed && pending.position() == 0) {
+                            return;
+                        }
+                        if (pending.position() == 0) {
+                            wait();
+                        } else {
+                            TimeUnit.NANOSECONDS.timedWait(this, firstPendingNanos + maxDelayNanos - System.nanoTime());
+                        }
+                    }
+                } catch (InterruptedException cause) {
+                    return;
+                }
+
+                // The rest of a rotated segment goes first
+                sealed = nonNull(tail);
+
+                if (sealed) {
+                    batch = tail;
+                    target = tailChannel;
+                    sequence = tailSequence;
+                } else {
+                    batch = pending;
+                    pending = flushing;
+                    flushing = batch;
+                    target = channel;
+                    sequence = appended;
+                }
+            }
+
+            try {
+                batch.flip();
+                while (batch.hasRemaining()) {
+                    target.write(batch);
+                }
+                target.force(false);
+                batch.clear();
+
+                if (sealed) {
+                    target.close();
+                    synchronized (this) {
+                        tail = null;
+                        tailChannel = null;
+                        notifyAll();
+                    }
+                }
+
+                completed(sequence, null);
+            } catch (IOException cause) {
+                logger.error("Writing to {} failed", path, cause);
+                completed(sequence, cause);
+                return;
+            }
+        }
+    }
+
+    // A batch is flushed once it is old enough, large enough, or when closing
+    private boolean ready() {
+        if (pending.position() == 0) {
+            return false;
+        }
+        return closed || pending.position() >= MAX_BATCH_SIZE || System.nanoTime() - firstPendingNanos >= maxDelayNanos;
+    }
+
+    private void completed(long sequence, IOException cause) {
+        var completed = new LinkedHashMap<Context, List<Promise<Void>>>();
+        var direct = new ArrayList<Promise<Void>>();
+
+        synchronized (this) {
+            if (isNull(cause)) {
+                durable = sequence;
+            } else {
+                failure = cause;
+                sequence = Long.MAX_VALUE;
+                notifyAll();
+            }
+
+            while (!waiters.isEmpty() && waiters.peek().sequence <= sequence) {
+                var waiter = waiters.poll();
+                if (isNull(waiter.context)) {
+                    direct.add(waiter.promise);
+                } else {
+                    completed.computeIfAbsent(waiter.context, c -> new ArrayList<>()).add(waiter.promise);
+                }
+            }
+        }
+
+        direct.forEach(promise -> complete(promise, cause));
+        completed.forEach((context, promises) -> context.runOnContext(v -> promises.forEach(promise -> complete(promise, cause))));
+    }
+
+    private static void complete(Promise<Void> promise, IOException cause) {
+        if (isNull(cause)) {
+            promise.complete();
+        } else {
+            promise.fail(cause);
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int needed) {
+        var capacity = buffer.capacity();
+        while (capacity - buffer.position() < needed) {
+            capacity = capacity << 1;
+        }
+        var grown = ByteBuffer.allocate(capacity);
+        return grown.put(buffer.flip());
+    }
+
+    private static int checksum(RecordType type, byte[] payload) {
+        var crc = new CRC32C();
+        crc.update(type.code());
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    // @return the position after the last intact record
+    private static long replay(Path path, FileChannel channel, Recovery recovery) throws IOException {
+        var in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(0)), 64 * 1024));
+        var end = 0L;
+        var records = 0L;
+
+        while (true) {
+            byte[] payload;
+            RecordType type;
+
+            try {
+                var length = in.readInt();
+                var checksum = in.readInt();
+                var code = in.readByte();
+
+                if (length < 0 || length > MAX_RECORD_SIZE) {
+                    break;
+                }
+
+                payload = new byte[length];
+                in.readFully(payload);
+                type = RecordType.from(code);
+
+                if (checksum(type, payload) != checksum) {
+                    break;
+                }
+            } catch (EOFException | IllegalArgumentException cause) {
+                break;
+            }
+
+            replay(recovery, type, ByteBuffer.wrap(payload).asReadOnlyBuffer());
+            end += HEADER_SIZE + payload.length;
+            records++;
+        }
+
+        logger.info("Replayed {} records from {}", records, path);
+        return end;
+    }
+
+    // The records of a batch are replayed one by one, in the order they were appended
+    private static void replay(Recovery recovery, RecordType type, ByteBuffer payload) {
+        if (type != RecordType.BATCH) {
+            recovery.replay(type, payload);
+            return;
+        }
+
+        while (payload.hasRemaining()) {
+            var record = RecordType.from(payload.get());
+            var length = payload.getInt();
+            recovery.replay(record, payload.slice(payload.position(), length));
+            payload.position(payload.position() + length);
+        }
+    }
+
+}
@@ -1,13 +1,21 @@
 package net.keksipurkki.petstore.store;
 
+import net.keksipurkki.petstore.support.IdAllocator;
+
 import java.time.ZonedDateTime;
-import java.util.concurrent.ThreadLocalRandom;
 
 public record Order(int orderId, int petId, int quantity, ZonedDateTime shipDate, String status) {
 
+    private static final IdAllocator ids = new IdAllocator(1024);
+
     public static Order from(NewOrder order) {
-        var orderId = ThreadLocalRandom.current().nextInt() & Integer.MAX_VALUE;
+        var orderId = ids.next();
         return new Order(orderId, order.petId(), order.quantity(), ZonedDateTime.now(), "placed");
     }
 
+    // Restored orders keep their ids
+    static void restored(int orderId) {
+        ids.advancePast(orderId);
+    }
+
 }
@@ -0,0 +1,20 @@
+package net.keksipurkki.petstore.store;
+
+import net.keksipurkki.petstore.api.ApiException;
+
+public class OrderException extends ApiException {
+
+    public OrderException(String message) {
+        super(message);
+    }
+
+    @Override
+    public int getStatusCode() {
+        return 400;
+    }
+
+    @Override
+    public String getDetail() {
+        return getMessage();
+    }
+}
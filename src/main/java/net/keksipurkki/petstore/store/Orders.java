@@ -2,6 +2,7 @@ package net.keksipurkki.petstore.store;
 
 import io.vertx.core.Future;
 import io.vertx.core.Vertx;
+import net.keksipurkki.petstore.backend.Backends;
 import net.keksipurkki.petstore.pet.Status;
 
 import java.util.Map;
@@ -18,7 +19,7 @@ public interface Orders {
     Future<Optional<Order>> delete(int orderId);
 
     static Orders create(Vertx vertx) {
-        return new OrdersImpl(vertx);
+        return Backends.current().orders(vertx);
     }
 
 }
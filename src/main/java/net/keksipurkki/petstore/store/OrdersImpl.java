@@ -2,21 +2,89 @@ package net.keksipurkki.petstore.store;
 
 import io.vertx.core.Future;
 import io.vertx.core.Vertx;
+import net.keksipurkki.petstore.feed.Change;
+import net.keksipurkki.petstore.feed.ChangeFeed;
+import net.keksipurkki.petstore.pet.Pet;
 import net.keksipurkki.petstore.pet.PetStore;
 import net.keksipurkki.petstore.pet.Status;
+import net.keksipurkki.petstore.storage.Checkpoint;
+import net.keksipurkki.petstore.storage.Journal;
+import net.keksipurkki.petstore.storage.RecordReader;
+import net.keksipurkki.petstore.storage.RecordType;
+import net.keksipurkki.petstore.storage.RecordWriter;
+import net.keksipurkki.petstore.storage.Recovery;
+import net.keksipurkki.petstore.support.ConcurrentIntMap;
+import net.keksipurkki.petstore.support.Versioned;
 
+import java.nio.ByteBuffer;
+import java.time.ZonedDateTime;
 import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.util.Objects.nonNull;
 
 public class OrdersImpl implements Orders {
+    private static final ConcurrentIntMap<Order> orders = new ConcurrentIntMap<>();
+
+    // The order that reserved each pet. A pet is reserved and released under the lock of its entry
+    private static final ConcurrentIntMap<Integer> reservations = new ConcurrentIntMap<>();
     private final Vertx vertx;
-    private final Map<Integer, Order> orders = new ConcurrentHashMap<>();
 
     public OrdersImpl(Vertx vertx) {
         this.vertx = vertx;
     }
 
+    public static void clear() {
+        orders.clear();
+        reservations.clear();
+    }
+
+    /**
+     * Restores the orders from the journal. Must run before the store is used
+     */
+    public static Recovery recovery() {
+        return (type, payload) -> {
+            var in = new RecordReader(payload);
+            switch (type) {
+                case ORDER -> {
+                    var order = new Order(in.readInt(), in.readInt(), in.readInt(), ZonedDateTime.parse(in.readString()), in.readString());
+                    orders.put(order.orderId(), order);
+                    // A pet is only reserved when it is not, so the last order placed for it holds it
+                    reservations.put(order.petId(), order.orderId());
+                    Order.restored(order.orderId());
+                }
+                case ORDER_DELETED -> {
+                    var order = orders.remove(in.readInt());
+                    if (nonNull(order)) {
+                        reservations.computeIfPresent(order.petId(), (petId, holder) -> holder == order.orderId() ? null : holder);
+                    }
+                }
+                default -> {
+                }
+            }
+        };
+    }
+
+    /**
+     * Writes the orders as log records. Orders changed meanwhile are replayed from the log. The
+     * orders that hold reservations are written last, so that they hold them again when replayed
+     */
+    public static Checkpoint checkpoint() {
+        return snapshot -> {
+            orders.forEach((orderId, order) -> {
+                if (!holds(order)) {
+                    snapshot.record(RecordType.ORDER, out -> write(out, order));
+                }
+            });
+            orders.forEach((orderId, order) -> {
+                if (holds(order)) {
+                    snapshot.record(RecordType.ORDER, out -> write(out, order));
+                }
+            });
+        };
+    }
+
     @Override
     public Future<Map<Status, Integer>> getInventory() {
         return Future.succeededFuture(PetStore.counts());
@@ -24,9 +92,40 @@ public class OrdersImpl implements Orders {
 
     @Override
     public Future<Order> place(NewOrder newOrder) {
+        var petId = newOrder.petId();
         var order = Order.from(newOrder);
-        orders.put(order.orderId(), order);
-        return Future.succeededFuture(order);
+        var reserved = new boolean[1];
+
+        try {
+            // Journaling under the lock of the entry keeps the log and the feed in the order the map was changed
+            orders.compute(order.orderId(), (orderId, existing) -> Journal.atomically(() -> {
+                // The reservation is the linearization point: exactly one order per pet gets past it.
+                // It is journaled with the order, so that a crash cannot leave the pet pending without one
+                var pet = reserve(order);
+                reserved[0] = pet.isPresent();
+
+                if (!reserved[0]) {
+                    return existing;
+                }
+
+                Journal.append(RecordType.ORDER, out -> write(out, order));
+                ChangeFeed.append(vertx, Change.Type.PET, petId, pet.get());
+                ChangeFeed.append(vertx, Change.Type.ORDER, orderId, order);
+                return order;
+            }));
+        } catch (RuntimeException cause) {
+            // The order was not placed, so neither is its reservation
+            if (reserved[0]) {
+                release(order).ifPresent(pet -> ChangeFeed.append(vertx, Change.Type.PET, petId, pet));
+            }
+            return Future.failedFuture(cause);
+        }
+
+        if (!reserved[0]) {
+            return Future.failedFuture(new OrderException("Pet " + petId + " is not available"));
+        }
+
+        return Journal.sync().map(order);
     }
 
     @Override
@@ -37,7 +136,56 @@ public class OrdersImpl implements Orders {
 
     @Override
     public Future<Optional<Order>> delete(int orderId) {
-        var o = Optional.ofNullable(orders.remove(orderId));
-        return Future.succeededFuture(o);
+        var deleted = new Order[1];
+
+        // The release is journaled with the deletion, so that a crash cannot leave the pet pending without an order
+        orders.computeIfPresent(orderId, (id, existing) -> Journal.atomically(() -> {
+            Journal.append(RecordType.ORDER_DELETED, out -> out.writeInt(id));
+            ChangeFeed.append(vertx, Change.Type.ORDER_DELETED, id, existing);
+            release(existing).ifPresent(pet -> ChangeFeed.append(vertx, Change.Type.PET, existing.petId(), pet));
+            deleted[0] = existing;
+            return null;
+        }));
+
+        return Journal.sync().map(Optional.ofNullable(deleted[0]));
+    }
+
+    private static Optional<Versioned<Pet>> reserve(Order order) {
+        var reserved = new AtomicReference<Versioned<Pet>>();
+
+        reservations.compute(order.petId(), (petId, holder) -> {
+            PetStore.reserve(petId).ifPresent(reserved::set);
+            return nonNull(reserved.get()) ? order.orderId() : holder;
+        });
+
+        return Optional.ofNullable(reserved.get());
+    }
+
+    // The pet may have been made available and reserved by another order since, which must keep it
+    private static Optional<Versioned<Pet>> release(Order order) {
+        var released = new AtomicReference<Versioned<Pet>>();
+
+        reservations.computeIfPresent(order.petId(), (petId, holder) -> {
+            if (holder != order.orderId()) {
+                return holder;
+            }
+            PetStore.release(petId).ifPresent(released::set);
+            return null;
+        });
+
+        return Optional.ofNullable(released.get());
+    }
+
+    private static boolean holds(Order order) {
+        var holder = reservations.get(order.petId());
+        return nonNull(holder) && holder == order.orderId();
+    }
+
+    private static void write(RecordWriter out, Order order) {
+        out.writeInt(order.orderId())
+           .writeInt(order.petId())
+           .writeInt(order.quantity())
+           .writeString(order.shipDate().toString())
+           .writeString(order.status());
     }
 }
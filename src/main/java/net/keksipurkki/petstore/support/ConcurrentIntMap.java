@@ -0,0 +1,334 @@
+package net.keksipurkki.petstore.support;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A concurrent hash map keyed by primitive `int`
+ * <p>
+ * Open addressing with linear probing over parallel `int[]` / `Object[]` arrays, so an entry costs
+ * a key slot and a value reference instead of a node object plus a boxed `Integer`. The table is
+ * split into lock-striped segments: writers lock a single segment, readers never lock.
+ * <p>
+ * Removed entries leave a tombstone behind so that probe sequences stay intact for lock-free
+ * readers. Tombstones are dropped when the segment is rehashed.
+ * <p>
+ * Null values are not supported. Iteration is weakly consistent.
+ */
+public final class ConcurrentIntMap<V> {
+
+    private static final VarHandle VALUES = MethodHandles.arrayElementVarHandle(Object[].class);
+    private static final Object TOMBSTONE = new Object();
+    private static final int DEFAULT_SEGMENTS = 64;
+    private static final int MIN_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private final Segment[] segments;
+    private final int segmentShift;
+
+    public ConcurrentIntMap() {
+        this(DEFAULT_SEGMENTS);
+    }
+
+    public ConcurrentIntMap(int concurrencyLevel) {
+        var count = 1;
+        while (count < concurrencyLevel) {
+            count = count << 1;
+        }
+        this.segments = new Segment[count];
+        this.segmentShift = 32 - Integer.numberOfTrailingZeros(count);
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    @FunctionalInterface
+    public interface Remapping<V> {
+        V apply(int key, V value);
+    }
+
+    @FunctionalInterface
+    public interface EntryConsumer<V> {
+        void accept(int key, V value);
+    }
+
+    public V get(int key) {
+        var hash = hash(key);
+        return cast(segmentFor(hash).get(key, hash));
+    }
+
+    public boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    public V put(int key, V value) {
+        requireNonNull(value);
+        return compute(key, (k, v) -> value, true);
+    }
+
+    public V putIfAbsent(int key, V value) {
+        requireNonNull(value);
+        var previous = new Object[1];
+        compute(key, (k, v) -> {
+            previous[0] = v;
+            return v == null ? value : v;
+        });
+        return cast(previous[0]);
+    }
+
+    public V remove(int key) {
+        return compute(key, (k, v) -> null, true);
+    }
+
+    /**
+     * Atomically computes a new value for the key. A `null` result removes the entry
+     *
+     * @return the new value
+     */
+    public V compute(int key, Remapping<V> remapping) {
+        return compute(key, remapping, false);
+    }
+
+    /**
+     * Like `compute` but the remapping function is only invoked if an entry exists
+     *
+     * @return the new value
+     */
+    public V computeIfPresent(int key, Remapping<V> remapping) {
+        return compute(key, (k, v) -> v == null ? null : remapping.apply(k, v));
+    }
+
+    public int size() {
+        var size = 0;
+        for (var segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public void clear() {
+        for (var segment : segments) {
+            segment.clear();
+        }
+    }
+
+    public void forEach(EntryConsumer<? super V> consumer) {
+        for (var segment : segments) {
+            var table = segment.table;
+            for (int i = 0; i < table.keys.length; i++) {
+                var value = VALUES.getAcquire(table.values, i);
+                if (value != null && value != TOMBSTONE) {
+                    consumer.accept(table.keys[i], cast(value));
+                }
+            }
+        }
+    }
+
+    /**
+     * A weakly consistent view of the values of the map
+     */
+    public Collection<V> values() {
+        return new AbstractCollection<>() {
+            @Override
+            public Iterator<V> iterator() {
+                return new ValueIterator();
+            }
+
+            @Override
+            public int size() {
+                return ConcurrentIntMap.this.size();
+            }
+        };
+    }
+
+    private V compute(int key, Remapping<V> remapping, boolean returnPrevious) {
+        var hash = hash(key);
+        return cast(segmentFor(hash).compute(key, hash, remapping, returnPrevious));
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[segmentShift == 32 ? 0 : hash >>> segmentShift];
+    }
+
+    // Fibonacci hashing spreads dense keys evenly over segments and slots
+    private static int hash(int key) {
+        var h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> V cast(Object value) {
+        return value == TOMBSTONE ? null : (V) value;
+    }
+
+    private static final class Table {
+        final int[] keys;
+        final Object[] values;
+        final int mask;
+
+        Table(int capacity) {
+            this.keys = new int[capacity];
+            this.values = new Object[capacity];
+            this.mask = capacity - 1;
+        }
+    }
+
+    private static final class Segment {
+
+        volatile Table table = new Table(MIN_CAPACITY);
+        volatile int size;
+        int used; // live entries and tombstones
+
+        Object get(int key, int hash) {
+            var table = this.table;
+            var keys = table.keys;
+            var values = table.values;
+
+            for (int i = hash & table.mask; ; i = (i + 1) & table.mask) {
+                // A value is published after its key, so a non-null value implies a visible key
+                var value = VALUES.getAcquire(values, i);
+
+                if (value == null) {
+                    return null;
+                }
+
+                if (keys[i] == key) {
+                    return value == TOMBSTONE ? null : value;
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized <V> Object compute(int key, int hash, Remapping<V> remapping, boolean returnPrevious) {
+            var table = this.table;
+            var i = hash & table.mask;
+
+            while (true) {
+                var value = table.values[i];
+                if (value == null || table.keys[i] == key) {
+                    break;
+                }
+                i = (i + 1) & table.mask;
+            }
+
+            var previous = table.values[i];
+            var existing = previous == null || previous == TOMBSTONE ? null : (V) previous;
+            var updated = remapping.apply(key, existing);
+
+            if (updated == existing) {
+                return returnPrevious ? existing : updated;
+            }
+
+            if (updated == null) {
+                VALUES.setRelease(table.values, i, TOMBSTONE);
+                size = size - 1;
+            } else if (existing != null) {
+                VALUES.setRelease(table.values, i, updated);
+            } else {
+                if (previous == null) {
+                    table.keys[i] = key;
+                    used = used + 1;
+                }
+                VALUES.setRelease(table.values, i, updated);
+                size = size + 1;
+                if (used > table.keys.length * LOAD_FACTOR) {
+                    rehash();
+                }
+            }
+
+            return returnPrevious ? existing : updated;
+        }
+
+        synchronized void clear() {
+            table = new Table(MIN_CAPACITY);
+            size = 0;
+            used = 0;
+        }
+
+        private void rehash() {
+            var old = this.table;
+            var capacity = old.keys.length;
+
+            while (size > capacity * LOAD_FACTOR / 2) {
+                capacity = capacity << 1;
+            }
+
+            var table = new Table(Math.max(capacity, MIN_CAPACITY));
+
+            for (int j = 0; j < old.keys.length; j++) {
+                var value = old.values[j];
+                if (value == null || value == TOMBSTONE) {
+                    continue;
+                }
+                var key = old.keys[j];
+                var i = hash(key) & table.mask;
+                while (table.values[i] != null) {
+                    i = (i + 1) & table.mask;
+                }
+                table.keys[i] = key;
+                table.values[i] = value;
+            }
+
+            used = size;
+            this.table = table; // volatile write publishes the filled table
+        }
+
+    }
+
+    private final class ValueIterator implements Iterator<V> {
+
+        private int segment = -1;
+        private int slot;
+        private Table table;
+        private Object next;
+
+        ValueIterator() {
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public V next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            var value = ConcurrentIntMap.<V>cast(next);
+            advance();
+            return value;
+        }
+
+        private void advance() {
+            next = null;
+            while (true) {
+                if (table == null || slot >= table.keys.length) {
+                    if (++segment >= segments.length) {
+                        return;
+                    }
+                    table = segments[segment].table;
+                    slot = 0;
+                    continue;
+                }
+                var value = VALUES.getAcquire(table.values, slot++);
+                if (value != null && value != TOMBSTONE) {
+                    next = value;
+                    return;
+                }
+            }
+        }
+    }
+
+}
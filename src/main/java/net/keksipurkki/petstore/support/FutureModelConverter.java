@@ -15,7 +15,8 @@ import java.util.Optional;
  * Patch OpenAPI specification generator to play nice with Vert.x Futures
  * <p>
  * Whenever an API operation produces a Future<T>, the converter
- * extracts T and maps it to a schema under '#/components/schemas/T'
+ * extracts T and maps it to a schema under '#/components/schemas/T'.
+ * A Versioned<T> maps to T as well, its version is sent as the ETag
  */
 public class FutureModelConverter implements ModelConverter {
 
@@ -31,6 +32,11 @@ public class FutureModelConverter implements ModelConverter {
         }
 
         var valueType = _type.findTypeParameters(_type.getRawClass())[0];
+
+        if (Versioned.class.isAssignableFrom(valueType.getRawClass())) {
+            valueType = valueType.findTypeParameters(valueType.getRawClass())[0];
+        }
+
         return new AnnotatedType().type(valueType).resolveAsRef(true);
     }
 
@@ -0,0 +1,112 @@
+package net.keksipurkki.petstore.support;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerResponse;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import static java.util.Objects.nonNull;
+
+/**
+ * A StreamingBody compressed with gzip while it is being written
+ * <p>
+ * Every chunk of the body is deflated as it is pulled, so compressing adds the deflater state to
+ * the memory held per request and nothing that grows with the body. The fastest compression
+ * level is used, since bulk bodies are bound by the CPU of the server rather than the network.
+ *
+ * @see "https://datatracker.ietf.org/doc/html/rfc1952"
+ */
+final class GzipBody implements StreamingBody {
+
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final int OUTPUT_SIZE = 16 * 1024;
+
+    private final StreamingBody body;
+
+    // Native memory, so it is ended as soon as the body is written or abandoned
+    private Deflater deflater;
+
+    GzipBody(StreamingBody body) {
+        this.body = body;
+    }
+
+    @Override
+    public String contentType() {
+        return body.contentType();
+    }
+
+    @Override
+    public Iterator<Buffer> chunks() {
+        var chunks = body.chunks();
+        var deflater = new Deflater(Deflater.BEST_SPEED, true);
+        this.deflater = deflater;
+        var crc = new CRC32();
+        var output = new byte[OUTPUT_SIZE];
+
+        return new Iterator<>() {
+
+            private boolean started;
+            private boolean finished;
+
+            @Override
+            public boolean hasNext() {
+                return !finished;
+            }
+
+            @Override
+            public Buffer next() {
+                if (finished) {
+                    throw new NoSuchElementException();
+                }
+
+                var compressed = Buffer.buffer();
+
+                if (!started) {
+                    started = true;
+                    compressed.appendBytes(HEADER);
+                }
+
+                if (chunks.hasNext()) {
+                    var bytes = chunks.next().getBytes();
+                    crc.update(bytes);
+                    deflater.setInput(bytes);
+                    while (!deflater.needsInput()) {
+                        compressed.appendBytes(output, 0, deflater.deflate(output));
+                    }
+                    return compressed;
+                }
+
+                deflater.finish();
+                while (!deflater.finished()) {
+                    compressed.appendBytes(output, 0, deflater.deflate(output));
+                }
+
+                // The trailer is little endian
+                compressed.appendIntLE((int) crc.getValue());
+                compressed.appendIntLE((int) deflater.getBytesRead());
+
+                deflater.end();
+                finished = true;
+                return compressed;
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        if (nonNull(deflater)) {
+            deflater.end();
+        }
+        body.close();
+    }
+
+    @Override
+    public void pipeTo(HttpServerResponse response) {
+        response.putHeader("content-encoding", "gzip").putHeader("vary", "accept-encoding");
+        StreamingBody.super.pipeTo(response);
+    }
+
+}
@@ -0,0 +1,58 @@
+package net.keksipurkki.petstore.support;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocates unique, dense, non-negative `int` identifiers
+ * <p>
+ * Each thread — in practice each event loop — leases a block of consecutive ids from a shared
+ * atomic sequence and hands them out without further synchronization. Ids never collide and are
+ * monotonic per thread. Gaps are limited to the unused tails of leased blocks, which keeps the id
+ * space dense enough for array and segment indexed storage.
+ */
+public final class IdAllocator {
+
+    private static final long FIRST_ID = 1;
+
+    private final AtomicLong sequence = new AtomicLong(FIRST_ID);
+    private final ThreadLocal<Lease> leases = ThreadLocal.withInitial(Lease::new);
+    private final int blockSize;
+
+    public IdAllocator(int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Block size must be positive");
+        }
+        this.blockSize = blockSize;
+    }
+
+    public int next() {
+        var lease = leases.get();
+
+        if (lease.next == lease.end) {
+            var start = sequence.getAndAdd(blockSize);
+
+            if (start + blockSize - 1 > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Identifier space exhausted");
+            }
+
+            lease.next = start;
+            lease.end = start + blockSize;
+        }
+
+        return (int) lease.next++;
+    }
+
+    /**
+     * Makes sure that ids up to and including the given one are never allocated again. Leases
+     * taken before the call are not affected
+     */
+    public void advancePast(int id) {
+        sequence.accumulateAndGet((long) id + 1, Math::max);
+    }
+
+    private static final class Lease {
+        private long next;
+        private long end;
+    }
+
+}
@@ -9,6 +9,8 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Set;
 
+import static java.util.Objects.isNull;
+
 public class InvalidJsonException extends ApiException {
     private final Set<ConstraintViolation<Object>> violations;
 
@@ -45,7 +47,7 @@ public class InvalidJsonException extends ApiException {
                 v.add(new JsonObject()
                     .put("reason", reason)
                     .put("property", property.toString())
-                    .put("value", invalid.toString())
+                    .put("value", isNull(invalid) ? null : invalid.toString())
                 );
             }
             json.put("violations", v);
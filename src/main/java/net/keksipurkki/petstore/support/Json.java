@@ -7,6 +7,7 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import jakarta.validation.ConstraintViolation;
@@ -14,10 +15,13 @@ import jakarta.validation.Validation;
 import jakarta.validation.Validator;
 import net.keksipurkki.petstore.api.UnexpectedApiException;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import static java.util.Objects.isNull;
+
 public final class Json {
     private Json() {
     }
@@ -63,6 +67,20 @@ public final class Json {
         return validate(result, target);
     }
 
+    public static <T> T parse(Buffer json, Class<T> target) {
+        try {
+            var result = om.readValue(json.getBytes(), target);
+            if (isNull(result)) {
+                throw new InvalidJsonException("Expected " + target.getSimpleName() + ", got null", Set.of());
+            }
+            return validate(result, target);
+        } catch (JsonProcessingException cause) {
+            throw new InvalidJsonException("Malformed JSON: " + cause.getOriginalMessage(), cause);
+        } catch (IOException cause) {
+            throw new InvalidJsonException("Malformed JSON", cause);
+        }
+    }
+
     private static <T> T validate(T input, Class<T> target) {
         Set<ConstraintViolation<Object>> violations = validator.validate(input);
         if (violations.isEmpty()) {
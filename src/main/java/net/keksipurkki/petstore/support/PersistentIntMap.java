@@ -0,0 +1,485 @@
+package net.keksipurkki.petstore.support;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * An immutable map keyed by non-negative `int`
+ * <p>
+ * A hash array mapped trie that uses the key itself as the hash. Every node has a 32 bit bitmap
+ * of the occupied slots and a compact array with one entry per set bit, so a lookup is at most
+ * seven array reads and dense keys waste no slots. The height of the trie grows with the largest
+ * key, so small keys stay shallow.
+ * <p>
+ * Updates copy the path from the root to the changed slot and share everything else with the
+ * previous version, which makes old versions cheap to keep around as snapshots. Iteration is in
+ * ascending key order.
+ */
+public final class PersistentIntMap<V> implements Iterable<V> {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    private static final int MAX_SHIFT = 30;
+    private static final int MAX_DEPTH = MAX_SHIFT / BITS + 1;
+
+    private static final int PARALLEL_THRESHOLD = 64 * 1024;
+
+    private static final PersistentIntMap<?> EMPTY = new PersistentIntMap<>(null, 0, 0);
+
+    private final Node root;
+    private final int shift;
+    private final int size;
+
+    private PersistentIntMap(Node root, int shift, int size) {
+        this.root = root;
+        this.shift = shift;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <V> PersistentIntMap<V> empty() {
+        return (PersistentIntMap<V>) EMPTY;
+    }
+
+    /**
+     * Builds a map in one pass over keys in strictly ascending order. The subtries under the root
+     * of a large map are built in parallel
+     *
+     * @param values the value of the key at each index
+     */
+    public static <V> PersistentIntMap<V> ofSorted(int[] keys, int size, IntFunction<? extends V> values) {
+        if (size == 0) {
+            return empty();
+        }
+
+        for (int i = 0; i < size; i++) {
+            if (keys[i] < 0 || (i > 0 && keys[i] <= keys[i - 1])) {
+                throw new IllegalArgumentException("Keys must be non-negative and strictly ascending");
+            }
+        }
+
+        var shift = shiftFor(keys[size - 1]);
+
+        if (size < PARALLEL_THRESHOLD || shift == 0) {
+            return new PersistentIntMap<>(build(keys, values, 0, size, shift), shift, size);
+        }
+
+        // The bounds of the runs of keys sharing a root slot
+        var bounds = IntStream.rangeClosed(0, size)
+                              .filter(i -> i == 0 || i == size || digit(keys[i], shift) != digit(keys[i - 1], shift))
+                              .toArray();
+
+        var slots = IntStream.range(0, bounds.length - 1)
+                             .parallel()
+                             .mapToObj(i -> build(keys, values, bounds[i], bounds[i + 1], shift - BITS))
+                             .toArray();
+
+        var bitmap = 0;
+        for (int i = 0; i < bounds.length - 1; i++) {
+            bitmap |= 1 << digit(keys[bounds[i]], shift);
+        }
+
+        return new PersistentIntMap<>(new Node(bitmap, slots), shift, size);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        if (isNull(root) || !covers(shift, key)) {
+            return null;
+        }
+
+        var node = root;
+
+        for (int s = shift; ; s -= BITS) {
+            var bit = 1 << ((key >>> s) & MASK);
+
+            if ((node.bitmap & bit) == 0) {
+                return null;
+            }
+
+            var slot = node.slots[node.index(bit)];
+
+            if (s == 0) {
+                return (V) slot;
+            }
+
+            node = (Node) slot;
+        }
+    }
+
+    public boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @return a map with the key bound to the value, or this map if the key is bound to the same value already
+     */
+    public PersistentIntMap<V> put(int key, V value) {
+        requireNonNull(value);
+
+        if (key < 0) {
+            throw new IllegalArgumentException("Negative key " + key);
+        }
+
+        var root = this.root;
+        var shift = this.shift;
+
+        if (isNull(root)) {
+            shift = shiftFor(key);
+            return new PersistentIntMap<>(path(shift, key, value), shift, 1);
+        }
+
+        // Existing keys are all below the coverage of the old root, so they go to slot 0 of a new root
+        while (!covers(shift, key)) {
+            root = new Node(1, new Object[]{root});
+            shift += BITS;
+        }
+
+        var previous = get(key);
+
+        if (previous == value) {
+            return this;
+        }
+
+        return new PersistentIntMap<>(put(root, shift, key, value), shift, isNull(previous) ? size + 1 : size);
+    }
+
+    /**
+     * Binds keys in strictly ascending order in one pass, which copies each node on their paths
+     * once instead of once per key
+     *
+     * @param values the value of the key at each index
+     */
+    public PersistentIntMap<V> putAll(int[] keys, int size, IntFunction<? extends V> values) {
+        if (isNull(root)) {
+            return ofSorted(keys, size, values);
+        }
+
+        if (size == 0) {
+            return this;
+        }
+
+        for (int i = 0; i < size; i++) {
+            if (keys[i] < 0 || (i > 0 && keys[i] <= keys[i - 1])) {
+                throw new IllegalArgumentException("Keys must be non-negative and strictly ascending");
+            }
+        }
+
+        var root = this.root;
+        var shift = this.shift;
+
+        while (!covers(shift, keys[size - 1])) {
+            root = new Node(1, new Object[]{root});
+            shift += BITS;
+        }
+
+        var added = new int[1];
+        root = merge(root, shift, keys, values, 0, size, added);
+        return new PersistentIntMap<>(root, shift, this.size + added[0]);
+    }
+
+    /**
+     * @return a map without the key, or this map if the key is not bound
+     */
+    public PersistentIntMap<V> remove(int key) {
+        if (!containsKey(key)) {
+            return this;
+        }
+
+        var root = remove(this.root, shift, key);
+        var shift = this.shift;
+
+        // Keep the trie as shallow as its largest key allows
+        while (hasOnlyFirstSlot(root) && shift > 0) {
+            root = (Node) root.slots[0];
+            shift -= BITS;
+        }
+
+        return isNull(root) ? empty() : new PersistentIntMap<>(root, shift, size - 1);
+    }
+
+    @Override
+    public Iterator<V> iterator() {
+        return values(0);
+    }
+
+    /**
+     * @return the values of the keys greater than or equal to `from` in ascending key order
+     */
+    public Iterator<V> values(int from) {
+        var cursor = new Cursor(from);
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return cursor.hasNext();
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public V next() {
+                return (V) cursor.next().value;
+            }
+        };
+    }
+
+    /**
+     * @return the keys in ascending order
+     */
+    public PrimitiveIterator.OfInt keys() {
+        var cursor = new Cursor(0);
+        return new PrimitiveIterator.OfInt() {
+            @Override
+            public boolean hasNext() {
+                return cursor.hasNext();
+            }
+
+            @Override
+            public int nextInt() {
+                return cursor.next().key;
+            }
+        };
+    }
+
+    private static boolean covers(int shift, int key) {
+        return shift >= MAX_SHIFT ? key >= 0 : (key >>> (shift + BITS)) == 0;
+    }
+
+    private static boolean hasOnlyFirstSlot(Node node) {
+        return node != null && node.bitmap == 1;
+    }
+
+    // The shift of the lowest root that covers the key
+    private static int shiftFor(int key) {
+        var shift = 0;
+        while (!covers(shift, key)) {
+            shift += BITS;
+        }
+        return shift;
+    }
+
+    private static int digit(int key, int shift) {
+        return (key >>> shift) & MASK;
+    }
+
+    private static Node build(int[] keys, IntFunction<?> values, int from, int to, int shift) {
+        var bitmap = 0;
+        for (int i = from; i < to; i++) {
+            bitmap |= 1 << digit(keys[i], shift);
+        }
+
+        var slots = new Object[Integer.bitCount(bitmap)];
+
+        for (int i = from, slot = 0; i < to; slot++) {
+            var digit = digit(keys[i], shift);
+            var end = i + 1;
+            while (end < to && digit(keys[end], shift) == digit) {
+                end++;
+            }
+            slots[slot] = shift == 0 ? requireNonNull(values.apply(i)) : build(keys, values, i, end, shift - BITS);
+            i = end;
+        }
+
+        return new Node(bitmap, slots);
+    }
+
+    // Counts the keys that were not bound before in added[0]
+    private static Node merge(Node node, int shift, int[] keys, IntFunction<?> values, int from, int to, int[] added) {
+        var bitmap = node.bitmap;
+        for (int i = from; i < to; i++) {
+            bitmap |= 1 << digit(keys[i], shift);
+        }
+
+        var slots = new Object[Integer.bitCount(bitmap)];
+
+        for (int i = from, slot = 0, rest = bitmap; rest != 0; rest &= rest - 1, slot++) {
+            var bit = rest & -rest;
+            var digit = Integer.numberOfTrailingZeros(bit);
+            var existing = (node.bitmap & bit) == 0 ? null : node.slots[node.index(bit)];
+            var end = i;
+            while (end < to && digit(keys[end], shift) == digit) {
+                end++;
+            }
+
+            if (end == i) {
+                slots[slot] = existing;
+            } else if (shift == 0) {
+                slots[slot] = requireNonNull(values.apply(i));
+                added[0] += isNull(existing) ? 1 : 0;
+            } else if (isNull(existing)) {
+                slots[slot] = build(keys, values, i, end, shift - BITS);
+                added[0] += end - i;
+            } else {
+                slots[slot] = merge((Node) existing, shift - BITS, keys, values, i, end, added);
+            }
+
+            i = end;
+        }
+
+        return new Node(bitmap, slots);
+    }
+
+    private static Node path(int shift, int key, Object value) {
+        var bit = 1 << ((key >>> shift) & MASK);
+        var slot = shift == 0 ? value : path(shift - BITS, key, value);
+        return new Node(bit, new Object[]{slot});
+    }
+
+    private static Node put(Node node, int shift, int key, Object value) {
+        var bit = 1 << ((key >>> shift) & MASK);
+        var index = node.index(bit);
+
+        if ((node.bitmap & bit) == 0) {
+            var slot = shift == 0 ? value : path(shift - BITS, key, value);
+            return node.insert(bit, index, slot);
+        }
+
+        var slot = shift == 0 ? value : put((Node) node.slots[index], shift - BITS, key, value);
+        return node.replace(index, slot);
+    }
+
+    private static Node remove(Node node, int shift, int key) {
+        var bit = 1 << ((key >>> shift) & MASK);
+        var index = node.index(bit);
+        var slot = shift == 0 ? null : remove((Node) node.slots[index], shift - BITS, key);
+
+        if (isNull(slot)) {
+            return node.bitmap == bit ? null : node.delete(bit, index);
+        }
+
+        return node.replace(index, slot);
+    }
+
+    private static final class Node {
+        final int bitmap;
+        final Object[] slots;
+
+        Node(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+
+        int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        Node insert(int bit, int index, Object slot) {
+            var slots = new Object[this.slots.length + 1];
+            System.arraycopy(this.slots, 0, slots, 0, index);
+            slots[index] = slot;
+            System.arraycopy(this.slots, index, slots, index + 1, this.slots.length - index);
+            return new Node(bitmap | bit, slots);
+        }
+
+        Node replace(int index, Object slot) {
+            var slots = this.slots.clone();
+            slots[index] = slot;
+            return new Node(bitmap, slots);
+        }
+
+        Node delete(int bit, int index) {
+            var slots = new Object[this.slots.length - 1];
+            System.arraycopy(this.slots, 0, slots, 0, index);
+            System.arraycopy(this.slots, index + 1, slots, index, slots.length - index);
+            return new Node(bitmap & ~bit, slots);
+        }
+    }
+
+    private record Entry(int key, Object value) {
+    }
+
+    // Depth first walk over the occupied slots. digits[d] is the slot of the current path at depth d
+    private final class Cursor {
+
+        private final Node[] nodes = new Node[MAX_DEPTH];
+        private final int[] digits = new int[MAX_DEPTH];
+        private final int leaf = shift / BITS;
+
+        private int key;
+        private Object value;
+        private boolean found;
+
+        Cursor(int from) {
+            if (isNull(root) || (from > 0 && !covers(shift, from))) {
+                return;
+            }
+            nodes[0] = root;
+            seek(0, digit(Math.max(from, 0), 0), Math.max(from, 0), true);
+        }
+
+        boolean hasNext() {
+            return found;
+        }
+
+        Entry next() {
+            if (!found) {
+                throw new NoSuchElementException();
+            }
+            var current = new Entry(key, value);
+            seek(leaf, digits[leaf] + 1, 0, false);
+            return current;
+        }
+
+        // Finds the first occupied slot at or after the position, bounded below by `from` while on its path
+        private void seek(int depth, int position, int from, boolean bounded) {
+            found = false;
+
+            while (true) {
+                var node = nodes[depth];
+                var rest = position > MASK ? 0 : node.bitmap & (-1 << position);
+
+                if (rest == 0) {
+                    if (depth == 0) {
+                        return;
+                    }
+                    depth--;
+                    position = digits[depth] + 1;
+                    bounded = false;
+                    continue;
+                }
+
+                var digit = Integer.numberOfTrailingZeros(rest);
+                bounded = bounded && digit == position;
+                digits[depth] = digit;
+
+                var slot = node.slots[node.index(1 << digit)];
+
+                if (depth == leaf) {
+                    key = key();
+                    value = slot;
+                    found = true;
+                    return;
+                }
+
+                nodes[++depth] = (Node) slot;
+                position = bounded ? digit(from, depth) : 0;
+            }
+        }
+
+        private int digit(int key, int depth) {
+            return (key >>> (shift - depth * BITS)) & MASK;
+        }
+
+        private int key() {
+            var key = 0;
+            for (int d = 0; d <= leaf; d++) {
+                key |= digits[d] << (shift - d * BITS);
+            }
+            return key;
+        }
+    }
+
+}
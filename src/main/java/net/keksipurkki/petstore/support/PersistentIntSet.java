@@ -0,0 +1,195 @@
+package net.keksipurkki.petstore.support;
+
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+import static java.util.Objects.isNull;
+
+/**
+ * An immutable set of non-negative `int`
+ * <p>
+ * The members are packed into 32 bit words kept in a PersistentIntMap keyed by the member divided
+ * by 32, so a set of nearby members costs a word per 32 of them instead of a trie slot each. Words
+ * with a single bit set are shared between all sets, which keeps sparse sets from allocating a
+ * word per member.
+ */
+public final class PersistentIntSet {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    private static final Integer[] SINGLE_BITS = new Integer[1 << BITS];
+    private static final PersistentIntSet EMPTY = new PersistentIntSet(PersistentIntMap.empty(), 0);
+
+    static {
+        for (int i = 0; i < SINGLE_BITS.length; i++) {
+            SINGLE_BITS[i] = 1 << i;
+        }
+    }
+
+    private final PersistentIntMap<Integer> words;
+    private final int size;
+
+    private PersistentIntSet(PersistentIntMap<Integer> words, int size) {
+        this.words = words;
+        this.size = size;
+    }
+
+    public static PersistentIntSet empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Builds a set from members in strictly ascending order, see PersistentIntMap.ofSorted
+     */
+    public static PersistentIntSet ofSorted(int[] members, int size) {
+        var keys = new int[size];
+        var words = new int[size];
+        var count = 0;
+
+        for (int i = 0; i < size; i++) {
+            if (members[i] < 0 || (i > 0 && members[i] <= members[i - 1])) {
+                throw new IllegalArgumentException("Members must be non-negative and strictly ascending");
+            }
+
+            var key = members[i] >>> BITS;
+
+            if (count == 0 || keys[count - 1] != key) {
+                keys[count++] = key;
+            }
+
+            words[count - 1] |= 1 << (members[i] & MASK);
+        }
+
+        return new PersistentIntSet(PersistentIntMap.ofSorted(keys, count, i -> word(words[i])), size);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean contains(int member) {
+        var word = member < 0 ? null : words.get(member >>> BITS);
+        return !isNull(word) && (word & bit(member)) != 0;
+    }
+
+    /**
+     * @return a set with the member, or this set if it is a member already
+     */
+    public PersistentIntSet add(int member) {
+        if (member < 0) {
+            throw new IllegalArgumentException("Negative member " + member);
+        }
+
+        if (contains(member)) {
+            return this;
+        }
+
+        var key = member >>> BITS;
+        var word = words.get(key);
+        var updated = (isNull(word) ? 0 : word) | bit(member);
+
+        return new PersistentIntSet(words.put(key, word(updated)), size + 1);
+    }
+
+    /**
+     * Adds members in strictly ascending order in one pass, see PersistentIntMap.putAll
+     *
+     * @return a set with the members, or this set if they are all members already
+     */
+    public PersistentIntSet addAll(int[] members, int size) {
+        var keys = new int[size];
+        var words = new int[size];
+        var count = 0;
+        var added = 0;
+
+        for (int i = 0; i < size; i++) {
+            if (members[i] < 0 || (i > 0 && members[i] <= members[i - 1])) {
+                throw new IllegalArgumentException("Members must be non-negative and strictly ascending");
+            }
+
+            var key = members[i] >>> BITS;
+
+            if (count == 0 || keys[count - 1] != key) {
+                var word = this.words.get(key);
+                keys[count] = key;
+                words[count++] = isNull(word) ? 0 : word;
+            }
+
+            if ((words[count - 1] & bit(members[i])) == 0) {
+                words[count - 1] |= bit(members[i]);
+                added++;
+            }
+        }
+
+        if (added == 0) {
+            return this;
+        }
+
+        return new PersistentIntSet(this.words.putAll(keys, count, i -> word(words[i])), this.size + added);
+    }
+
+    /**
+     * @return a set without the member, or this set if it is not a member
+     */
+    public PersistentIntSet remove(int member) {
+        if (!contains(member)) {
+            return this;
+        }
+
+        var key = member >>> BITS;
+        var updated = words.get(key) & ~bit(member);
+
+        if (size == 1) {
+            return EMPTY;
+        }
+
+        return new PersistentIntSet(updated == 0 ? words.remove(key) : words.put(key, word(updated)), size - 1);
+    }
+
+    /**
+     * @return the members in ascending order
+     */
+    public PrimitiveIterator.OfInt members() {
+        var keys = words.keys();
+        var values = words.iterator();
+
+        return new PrimitiveIterator.OfInt() {
+            private int base;
+            private int word;
+
+            @Override
+            public boolean hasNext() {
+                return word != 0 || keys.hasNext();
+            }
+
+            @Override
+            public int nextInt() {
+                if (word == 0) {
+                    if (!keys.hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    base = keys.nextInt() << BITS;
+                    word = values.next();
+                }
+
+                var member = base | Integer.numberOfTrailingZeros(word);
+                word &= word - 1;
+                return member;
+            }
+        };
+    }
+
+    private static int bit(int member) {
+        return 1 << (member & MASK);
+    }
+
+    private static Integer word(int bits) {
+        return Integer.bitCount(bits) == 1 ? SINGLE_BITS[Integer.numberOfTrailingZeros(bits)] : Integer.valueOf(bits);
+    }
+
+}
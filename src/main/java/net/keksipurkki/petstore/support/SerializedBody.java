@@ -0,0 +1,16 @@
+package net.keksipurkki.petstore.support;
+
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * A response body that has been serialized ahead of time
+ * <p>
+ * The buffer is written as is, so a body that is shared by many responses is serialized once.
+ */
+public interface SerializedBody {
+
+    String contentType();
+
+    Buffer body();
+
+}
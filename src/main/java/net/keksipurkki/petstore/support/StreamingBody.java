@@ -0,0 +1,104 @@
+package net.keksipurkki.petstore.support;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerResponse;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Objects.nonNull;
+
+/**
+ * A response body that is serialized while it is being written
+ * <p>
+ * The body is pulled chunk by chunk and written only as fast as the connection drains, so the
+ * memory held per request does not depend on the size of the body and the first bytes go out
+ * before the whole body has been produced. A client that drains as fast as the body is produced
+ * would keep the event loop to itself, so the body is produced in turns of about TURN_NANOS. The
+ * event loop runs dozens of queued tasks back to back before it polls the other connections again,
+ * so the turns have to be short for the other connections to wait milliseconds rather than seconds.
+ */
+public interface StreamingBody {
+
+    int BATCH_SIZE = 16 * 1024;
+    long TURN_NANOS = TimeUnit.MICROSECONDS.toNanos(500);
+
+    String contentType();
+
+    Iterator<Buffer> chunks();
+
+    /**
+     * Releases what the chunks hold. Called once the body is written, and when writing it is cut
+     * short because the connection closed or producing a chunk failed. May be called more than once
+     */
+    default void close() {
+    }
+
+    default void pipeTo(HttpServerResponse response) {
+        response.setChunked(true).putHeader("content-type", contentType());
+        // The connection may close while the body waits for it to drain, and then nothing pumps again
+        response.closeHandler(v -> close());
+        pump(this, response, chunks());
+    }
+
+    /**
+     * @return the body compressed with gzip, see GzipBody
+     */
+    static StreamingBody gzip(StreamingBody body) {
+        return new GzipBody(body);
+    }
+
+    private static void pump(StreamingBody body, HttpServerResponse response, Iterator<Buffer> chunks) {
+        try {
+
+            var batch = Buffer.buffer(BATCH_SIZE);
+            var deadline = System.nanoTime() + TURN_NANOS;
+
+            while (chunks.hasNext()) {
+
+                if (response.closed()) {
+                    body.close();
+                    return;
+                }
+
+                batch.appendBuffer(chunks.next());
+
+                var late = System.nanoTime() - deadline > 0;
+
+                if (batch.length() < BATCH_SIZE && !late) {
+                    continue;
+                }
+
+                if (batch.length() > 0) {
+                    response.write(batch);
+                    batch = Buffer.buffer(BATCH_SIZE);
+                }
+
+                // Resuming within the write event of the connection would starve the others
+                if (response.writeQueueFull()) {
+                    response.drainHandler(v -> Vertx.currentContext().runOnContext(w -> pump(body, response, chunks)));
+                    return;
+                }
+
+                var context = Vertx.currentContext();
+
+                if (late && nonNull(context)) {
+                    context.runOnContext(v -> pump(body, response, chunks));
+                    return;
+                }
+            }
+
+            body.close();
+            response.end(batch);
+
+        } catch (RuntimeException cause) {
+            // The status line has been sent already. All we can do is to cut the response short
+            LoggerFactory.getLogger(StreamingBody.class).error("Streaming response failed", cause);
+            body.close();
+            response.reset();
+        }
+    }
+
+}
@@ -0,0 +1,23 @@
+package net.keksipurkki.petstore.support;
+
+import net.keksipurkki.petstore.api.ApiException;
+
+/**
+ * A conditional write found the entity in another version than the client expected
+ */
+public class VersionMismatchException extends ApiException {
+
+    public VersionMismatchException(String message) {
+        super(message);
+    }
+
+    @Override
+    public int getStatusCode() {
+        return 412;
+    }
+
+    @Override
+    public String getDetail() {
+        return getMessage();
+    }
+}
@@ -0,0 +1,78 @@
+package net.keksipurkki.petstore.support;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+import java.util.function.LongPredicate;
+
+import static java.util.Objects.isNull;
+
+/**
+ * An entity together with the version of it
+ * <p>
+ * Stores number the versions of their entities from a sequence that never goes back while the
+ * process runs, so a version identifies one state of one entity. The version is sent to clients as
+ * a strong entity tag, see etag. Tags also carry an epoch that is drawn when the process starts:
+ * versions are not kept across restarts, and a tag of an earlier process must not match an entity
+ * that the current process numbered differently.
+ *
+ * @see "https://datatracker.ietf.org/doc/html/rfc9110#section-8.8.3"
+ */
+public record Versioned<T>(T value, long version) {
+
+    /**
+     * Drawn when the process starts
+     */
+    public static final String EPOCH = Long.toString(ThreadLocalRandom.current().nextLong() >>> 1, 36);
+
+    public String etag() {
+        return etag(version);
+    }
+
+    /**
+     * @return whether one of the entity tags of an If-None-Match header matches this version.
+     * If-None-Match compares tags weakly
+     */
+    public boolean matches(String ifNoneMatch) {
+        return matches(ifNoneMatch, etag(), true);
+    }
+
+    public <U> Versioned<U> map(Function<T, U> mapper) {
+        return new Versioned<>(mapper.apply(value), version);
+    }
+
+    /**
+     * @return a test of the current version of an entity against the entity tags of an If-Match
+     * header, or null if there is no header. If-Match compares tags strongly
+     */
+    public static LongPredicate precondition(String ifMatch) {
+        if (isNull(ifMatch)) {
+            return null;
+        }
+        return version -> matches(ifMatch, etag(version), false);
+    }
+
+    private static String etag(long version) {
+        return "\"" + EPOCH + "-" + Long.toString(version, 36) + "\"";
+    }
+
+    private static boolean matches(String header, String etag, boolean weak) {
+        for (var tag : header.split(",")) {
+            var candidate = tag.trim();
+
+            if (candidate.equals("*")) {
+                return true;
+            }
+
+            if (weak && candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+
+            if (candidate.equals(etag)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+}
@@ -0,0 +1,80 @@
+package net.keksipurkki.petstore.user;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+
+import static java.util.Objects.isNull;
+
+/**
+ * Salted PBKDF2-HMAC-SHA256 hashes of the passwords of the users
+ * <p>
+ * A hash is kept as `pbkdf2-sha256$[iterations]$[salt]$[hash]` in base64, so a hash stays
+ * verifiable when the number of iterations is changed. The iterations are set with the environment
+ * variable PETSTORE_PASSWORD_ITERATIONS.
+ */
+final class Passwords {
+
+    public static final String ITERATIONS_VARIABLE = "PETSTORE_PASSWORD_ITERATIONS";
+
+    private static final String SCHEME = "pbkdf2-sha256";
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int DEFAULT_ITERATIONS = 600_000;
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_BITS = 256;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private static volatile int iterations = DEFAULT_ITERATIONS;
+
+    private Passwords() {
+    }
+
+    static void configure(Map<String, String> environment) {
+        var value = environment.get(ITERATIONS_VARIABLE);
+        iterations = isNull(value) ? DEFAULT_ITERATIONS : Integer.parseInt(value);
+    }
+
+    static boolean isHash(String value) {
+        return value.startsWith(SCHEME + "$");
+    }
+
+    static String hash(String password) {
+        var salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+
+        var rounds = iterations;
+        var encoder = Base64.getEncoder();
+
+        return String.join("$", SCHEME, Integer.toString(rounds), encoder.encodeToString(salt), encoder.encodeToString(derive(password, salt, rounds)));
+    }
+
+    static boolean matches(String password, String hash) {
+        var parts = hash.split("\\$");
+
+        if (parts.length != 4 || !SCHEME.equals(parts[0])) {
+            return false;
+        }
+
+        var decoder = Base64.getDecoder();
+        var expected = decoder.decode(parts[3]);
+
+        return MessageDigest.isEqual(expected, derive(password, decoder.decode(parts[2]), Integer.parseInt(parts[1])));
+    }
+
+    private static byte[] derive(String password, byte[] salt, int rounds) {
+        var spec = new PBEKeySpec(password.toCharArray(), salt, rounds, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException cause) {
+            throw new IllegalStateException(ALGORITHM + " is not available", cause);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+}
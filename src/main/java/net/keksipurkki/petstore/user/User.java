@@ -3,10 +3,6 @@ package net.keksipurkki.petstore.user;
 import io.swagger.v3.oas.annotations.media.Schema;
 import jakarta.validation.constraints.NotNull;
 
-import java.security.MessageDigest;
-
-import static java.nio.charset.StandardCharsets.UTF_8;
-
 @Schema(description = "User data")
 public record User(
 
@@ -19,8 +15,15 @@ public record User(
     String phone
 ) {
 
+    /**
+     * Tests the password against the hash the user is stored with. Slow by design, see Users
+     */
     public boolean verifyPassword(String password) {
-        return MessageDigest.isEqual(password.getBytes(UTF_8), this.password.getBytes(UTF_8));
+        return Passwords.matches(password, this.password);
+    }
+
+    public User withPassword(String password) {
+        return new User(id, username, firstName, lastName, email, password, phone);
     }
 
     public User redactCredentials() {
@@ -2,9 +2,12 @@ package net.keksipurkki.petstore.user;
 
 import io.vertx.core.Future;
 import io.vertx.core.Vertx;
+import net.keksipurkki.petstore.backend.Backends;
+import net.keksipurkki.petstore.support.Versioned;
 
 import java.util.List;
 import java.util.Optional;
+import java.util.function.LongPredicate;
 
 public interface Users {
 
@@ -12,14 +15,31 @@ public interface Users {
 
     Future<Optional<User>> findByUsername(String username);
 
+    Future<Optional<Versioned<User>>> findVersionedByUsername(String username);
+
     Future<User> update(String username, User update);
 
+    /**
+     * @param precondition tested with the current version of the user, null to update unconditionally
+     */
+    Future<Versioned<User>> update(String username, User update, LongPredicate precondition);
+
     Future<Void> delete(User user);
 
+    /**
+     * @param precondition tested with the current version of the user, null to delete unconditionally
+     */
+    Future<Void> delete(String username, LongPredicate precondition);
+
+    /**
+     * Tests the password off the event loop, since the users are stored with slow hashes of theirs
+     */
+    Future<Boolean> verifyPassword(User user, String password);
+
     boolean areUnique(List<User> users);
 
     static Users create(Vertx vertx) {
-        return new UsersImpl(vertx);
+        return Backends.current().users(vertx);
     }
 
 }
@@ -2,16 +2,33 @@ package net.keksipurkki.petstore.user;
 
 import io.vertx.core.Future;
 import io.vertx.core.Vertx;
+import net.keksipurkki.petstore.storage.Checkpoint;
+import net.keksipurkki.petstore.storage.Journal;
+import net.keksipurkki.petstore.storage.RecordReader;
+import net.keksipurkki.petstore.storage.RecordType;
+import net.keksipurkki.petstore.storage.RecordWriter;
+import net.keksipurkki.petstore.storage.Recovery;
+import net.keksipurkki.petstore.support.VersionMismatchException;
+import net.keksipurkki.petstore.support.Versioned;
 
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongPredicate;
 import java.util.stream.Collectors;
 
+import static java.util.Objects.nonNull;
+
 public final class UsersImpl implements Users {
 
-    private static final Map<String, User> users = new ConcurrentHashMap<>();
+    public static final String PASSWORD_ITERATIONS_VARIABLE = Passwords.ITERATIONS_VARIABLE;
+
+    private static final Map<String, Versioned<User>> users = new ConcurrentHashMap<>();
+
+    // Shared by all users, so that a user created again does not get the version of its predecessor
+    private static final AtomicLong versions = new AtomicLong();
     private final Vertx vertx;
 
     public UsersImpl(Vertx vertx) {
@@ -23,30 +40,101 @@ public final class UsersImpl implements Users {
         users.clear();
     }
 
-    private static User newUser(User data) {
-        users.put(data.username(), data);
-        return data;
+    /**
+     * Empties the store and sets how the passwords are hashed, see Passwords
+     */
+    public static void open(Map<String, String> environment) {
+        Passwords.configure(environment);
+        clear();
     }
 
-    private static Optional<User> existingUser(String username) {
-        var user = users.get(username);
-        return Optional.ofNullable(user);
+    /**
+     * Restores the users from the journal. Must run before the store is used. Passwords journaled in
+     * plain text by earlier versions are hashed as they are restored
+     */
+    public static Recovery recovery() {
+        return (type, payload) -> {
+            var in = new RecordReader(payload);
+            switch (type) {
+                case USER -> users.put(in.readString(), versioned(restored(new User(in.readInt(), in.readString(), in.readString(), in.readString(), in.readString(), in.readString(), in.readString()))));
+                case USER_DELETED -> users.remove(in.readString());
+                default -> {
+                }
+            }
+        };
+    }
+
+    /**
+     * Writes the users as log records. Users changed meanwhile are replayed from the log
+     */
+    public static Checkpoint checkpoint() {
+        return snapshot -> users.forEach((username, user) -> snapshot.record(RecordType.USER, out -> write(out, username, user.value())));
+    }
+
+    // Journaling inside compute keeps the log in the order the map was changed
+    private static Versioned<User> stored(String username, User user) {
+        Journal.append(RecordType.USER, out -> write(out, username, user));
+        return versioned(user);
     }
 
-    private static User updatedUser(String username, User update) {
-        var existing = existingUser(username);
+    private static User restored(User user) {
+        return Passwords.isHash(user.password()) ? user : user.withPassword(Passwords.hash(user.password()));
+    }
+
+    private static Versioned<User> versioned(User user) {
+        return new Versioned<>(user, versions.incrementAndGet());
+    }
 
-        if (existing.isEmpty()) {
-            throw new UserException("No user exists with username " + username);
+    private static void expect(String username, Versioned<User> existing, LongPredicate precondition) {
+        if (nonNull(precondition) && (existing == null || !precondition.test(existing.version()))) {
+            throw new VersionMismatchException("User " + username + " is not in the expected version");
         }
+    }
 
-        users.put(username, update);
-        return update;
+    private static void write(RecordWriter out, String username, User user) {
+        out.writeString(username)
+           .writeInt(user.id())
+           .writeString(user.username())
+           .writeString(user.firstName())
+           .writeString(user.lastName())
+           .writeString(user.email())
+           .writeString(user.password())
+           .writeString(user.phone());
+    }
 
+    private static User newUser(User data) {
+        // The password is hashed between the existence check and here, so the check is made again
+        return users.compute(data.username(), (username, existing) -> {
+            if (existing != null) {
+                throw new UserException("Username " + username + " already exists");
+            }
+            return stored(username, data);
+        }).value();
     }
 
-    private static Optional<User> deletedUser(String username) {
-        return Optional.ofNullable(users.remove(username));
+    private static Optional<Versioned<User>> existingUser(String username) {
+        var user = users.get(username);
+        return Optional.ofNullable(user);
+    }
+
+    private static Versioned<User> updatedUser(String username, User update, LongPredicate precondition) {
+        return users.compute(username, (key, existing) -> {
+            expect(key, existing, precondition);
+            if (existing == null) {
+                throw new UserException("No user exists with username " + username);
+            }
+            return stored(key, update);
+        });
+    }
+
+    private static void deletedUser(String username, LongPredicate precondition) {
+        users.compute(username, (key, existing) -> {
+            expect(key, existing, precondition);
+            if (existing != null) {
+                Journal.append(RecordType.USER_DELETED, out -> out.writeString(key));
+            }
+            return null;
+        });
     }
 
     /* Async Vert.x powered API */
@@ -57,24 +145,55 @@ public final class UsersImpl implements Users {
             if (opt.isPresent()) {
                 throw new UserException("Username " + data.username() + " already exists");
             }
-            return Future.succeededFuture(newUser(data));
+            return hashed(data);
+        }).flatMap(hashed -> {
+            var user = newUser(hashed);
+            return Journal.sync().map(user);
         });
     }
 
     @Override
     public Future<Optional<User>> findByUsername(String username) {
+        return Future.succeededFuture(existingUser(username).map(Versioned::value));
+    }
+
+    @Override
+    public Future<Optional<Versioned<User>>> findVersionedByUsername(String username) {
         return Future.succeededFuture(existingUser(username));
     }
 
     @Override
     public Future<User> update(String username, User update) {
-        return Future.succeededFuture(updatedUser(username, update));
+        return update(username, update, null).map(Versioned::value);
+    }
+
+    @Override
+    public Future<Versioned<User>> update(String username, User update, LongPredicate precondition) {
+        return hashed(update).flatMap(hashed -> {
+            var user = updatedUser(username, hashed, precondition);
+            return Journal.sync().map(user);
+        });
     }
 
     @Override
     public Future<Void> delete(User user) {
-        return Future.succeededFuture(deletedUser(user.username()))
-                     .map(v -> null);
+        return delete(user.username(), null);
+    }
+
+    @Override
+    public Future<Void> delete(String username, LongPredicate precondition) {
+        deletedUser(username, precondition);
+        return Journal.sync();
+    }
+
+    @Override
+    public Future<Boolean> verifyPassword(User user, String password) {
+        return vertx.executeBlocking(promise -> promise.complete(user.verifyPassword(password)), false);
+    }
+
+    // Only hashes are stored, so that the journal holds no passwords
+    private Future<User> hashed(User user) {
+        return vertx.executeBlocking(promise -> promise.complete(user.withPassword(Passwords.hash(user.password()))), false);
     }
 
     @Override
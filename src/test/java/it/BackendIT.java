@@ -0,0 +1,277 @@
+package it;
+
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import net.keksipurkki.petstore.backend.Backend;
+import net.keksipurkki.petstore.backend.Backends;
+import net.keksipurkki.petstore.pet.NewPet;
+import net.keksipurkki.petstore.pet.Pet;
+import net.keksipurkki.petstore.pet.Pets;
+import net.keksipurkki.petstore.pet.Status;
+import net.keksipurkki.petstore.storage.Journal;
+import net.keksipurkki.petstore.store.NewOrder;
+import net.keksipurkki.petstore.store.Orders;
+import net.keksipurkki.petstore.user.User;
+import net.keksipurkki.petstore.user.Users;
+import net.keksipurkki.petstore.user.UsersImpl;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static it.Tests.await;
+
+/**
+ * Conformance and performance suite that every Backend has to pass
+ */
+@Timeout(
+    value = 60,
+    unit = TimeUnit.SECONDS
+)
+public class BackendIT {
+
+    private static final Logger logger = LoggerFactory.getLogger(BackendIT.class);
+
+    private static final int THREADS = 8;
+    private static final int OPERATIONS = 20_000;
+
+    private final static Vertx vertx = Vertx.vertx();
+
+    private Path directory;
+    private Backend backend;
+    private Pets pets;
+    private Orders orders;
+    private Users users;
+
+    @AfterEach
+    public void close() throws IOException {
+        Backends.close();
+
+        if (Objects.nonNull(directory)) {
+            try (var files = Files.walk(directory)) {
+                for (var file : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"memory", "off-heap", "file"})
+    public void addPet_getById_petFound(String name) throws IOException {
+        open(name);
+
+        var pet = await(pets.add(new NewPet("snoopy", "dogs")));
+
+        Assertions.assertEquals(Optional.of(pet), await(pets.getById(pet.id())));
+        Assertions.assertEquals(Status.AVAILABLE, pet.status());
+        Assertions.assertEquals("dogs", pet.category().name());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"memory", "off-heap", "file"})
+    public void updatePet_findBy_indexesFollow(String name) throws IOException {
+        open(name);
+
+        var pet = await(pets.add(new NewPet("snoopy", "dogs")));
+        var update = new Pet(pet.id(), pet.category(), "snoopy", List.of(URI.create("https://example.com/snoopy.png")), List.of("beagle"), Status.SOLD);
+        var updated = await(pets.update(update));
+
+        Assertions.assertEquals(List.of(updated), await(pets.findByTags(List.of("beagle"))));
+        Assertions.assertEquals(List.of(updated), await(pets.findByStatus(Status.SOLD)));
+        Assertions.assertEquals(List.of(updated), await(pets.findByCategory("dogs")));
+        Assertions.assertEquals(List.of(), await(pets.findByStatus(Status.AVAILABLE)));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"memory", "off-heap", "file"})
+    public void deletePet_getById_notFound(String name) throws IOException {
+        open(name);
+
+        var pet = await(pets.add(new NewPet("snoopy", "dogs")));
+
+        Assertions.assertEquals(Optional.of(pet), await(pets.delete(pet.id())));
+        Assertions.assertEquals(Optional.empty(), await(pets.getById(pet.id())));
+        Assertions.assertEquals(Optional.empty(), await(pets.delete(pet.id())));
+        Assertions.assertEquals(List.of(), await(pets.findByCategory("dogs")));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"memory", "off-heap", "file"})
+    public void placeOrder_twice_secondRejected(String name) throws IOException {
+        open(name);
+
+        var pet = await(pets.add(new NewPet("snoopy", "dogs")));
+        var order = await(orders.place(new NewOrder(pet.id(), 1)));
+
+        Assertions.assertEquals(Optional.of(order), await(orders.getById(order.orderId())));
+        Assertions.assertEquals(Status.PENDING, await(pets.getById(pet.id())).orElseThrow().status());
+        Assertions.assertTrue(orders.place(new NewOrder(pet.id(), 1)).failed());
+        Assertions.assertEquals(1, await(orders.getInventory()).get(Status.PENDING));
+
+        await(orders.delete(order.orderId()));
+
+        Assertions.assertEquals(Optional.empty(), await(orders.getById(order.orderId())));
+        Assertions.assertEquals(Status.AVAILABLE, await(pets.getById(pet.id())).orElseThrow().status());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"memory", "off-heap", "file"})
+    public void createUpdateDeleteUser_findByUsername_latestState(String name) throws IOException {
+        open(name);
+
+        var carol = user("carol", "Danvers");
+        await(users.create(carol));
+        Assertions.assertEquals(Optional.of(carol.redactCredentials()), await(users.findByUsername("carol")).map(User::redactCredentials));
+
+        var married = user("carol", "Rambeau");
+        await(users.update("carol", married));
+        Assertions.assertEquals(Optional.of(married.redactCredentials()), await(users.findByUsername("carol")).map(User::redactCredentials));
+
+        await(users.delete(married));
+        Assertions.assertEquals(Optional.empty(), await(users.findByUsername("carol")));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"memory", "off-heap", "file"})
+    public void createUser_concurrentSameUsername_firstKept(String name) throws IOException {
+        open(name);
+
+        var first = user("carol", "Danvers").withPassword("first");
+        var second = user("carol", "Danvers").withPassword("second");
+
+        var created = List.of(users.create(first), users.create(second));
+        CompositeFuture.join(created.get(0), created.get(1)).toCompletionStage().toCompletableFuture().handle((v, cause) -> v).join();
+
+        Assertions.assertEquals(1, created.stream().filter(Future::succeeded).count());
+
+        var winner = created.get(0).succeeded() ? first : second;
+        Assertions.assertTrue(await(users.findByUsername("carol")).orElseThrow().verifyPassword(winner.password()));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"memory", "off-heap", "file"})
+    public void reopen_durableBackend_dataSurvives(String name) throws IOException {
+        open(name);
+        Assumptions.assumeTrue(backend.isDurable());
+
+        var snoopy = await(pets.add(new NewPet("snoopy", "dogs")));
+        var order = await(orders.place(new NewOrder(snoopy.id(), 1)));
+        Journal.snapshot();
+        var garfield = await(pets.add(new NewPet("garfield", "cats")));
+        await(users.create(user("carol", "Danvers")));
+
+        Backends.close();
+        reopen(name);
+
+        Assertions.assertEquals(Status.PENDING, await(pets.getById(snoopy.id())).orElseThrow().status());
+        Assertions.assertEquals(Optional.of(garfield), await(pets.getById(garfield.id())));
+        Assertions.assertEquals(Optional.of(order), await(orders.getById(order.orderId())));
+        Assertions.assertTrue(await(users.findByUsername("carol")).isPresent());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"memory", "off-heap", "file"})
+    public void mixedWorkload_concurrentClients_reportThroughput(String name) throws Exception {
+        open(name);
+
+        var seed = new ArrayList<Integer>();
+        for (int i = 0; i < 1000; i++) {
+            seed.add(await(pets.add(new NewPet("pet" + i, "category" + i % 10))).id());
+        }
+
+        var executor = Executors.newFixedThreadPool(THREADS);
+        var latencies = new long[OPERATIONS];
+        var start = System.nanoTime();
+
+        try {
+            var clients = new ArrayList<java.util.concurrent.Future<?>>();
+            for (int t = 0; t < THREADS; t++) {
+                var client = t;
+                clients.add(executor.submit(() -> {
+                    for (int i = client; i < OPERATIONS; i += THREADS) {
+                        var begin = System.nanoTime();
+                        operation(i, seed);
+                        latencies[i] = System.nanoTime() - begin;
+                    }
+                }));
+            }
+            for (var client : clients) {
+                client.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        var elapsed = System.nanoTime() - start;
+        Arrays.sort(latencies);
+
+        logger.info(
+            "{} backend: {} ops/s, p50 {} us, p99 {} us",
+            name,
+            OPERATIONS * TimeUnit.SECONDS.toNanos(1) / elapsed,
+            TimeUnit.NANOSECONDS.toMicros(latencies[OPERATIONS / 2]),
+            TimeUnit.NANOSECONDS.toMicros(latencies[OPERATIONS * 99 / 100])
+        );
+
+        Assertions.assertEquals(seed.size() + OPERATIONS / 10, await(pets.findByStatus(Status.AVAILABLE)).size()
+            + await(pets.findByStatus(Status.PENDING)).size()
+            + await(pets.findByStatus(Status.SOLD)).size());
+    }
+
+    // Reads are 80% of the mix, writes touch pets, orders and users
+    private void operation(int i, List<Integer> seed) {
+        var random = ThreadLocalRandom.current();
+        var petId = seed.get(random.nextInt(seed.size()));
+
+        switch (i % 10) {
+            case 0 -> await(pets.add(new NewPet("pet" + i, "category" + i % 10)));
+            case 1 -> orders.place(new NewOrder(petId, 1))
+                            .flatMap(order -> orders.delete(order.orderId()))
+                            .toCompletionStage()
+                            .exceptionally(cause -> Optional.empty())
+                            .toCompletableFuture()
+                            .join();
+            case 2 -> await(users.create(user("user" + i, "Doe")));
+            case 3, 4, 5, 6, 7 -> await(pets.getById(petId));
+            case 8 -> await(orders.getInventory());
+            default -> await(users.findByUsername("user" + (i - 7)));
+        }
+    }
+
+    private void open(String name) throws IOException {
+        directory = Files.createTempDirectory("petstore");
+        reopen(name);
+    }
+
+    private void reopen(String name) {
+        backend = Backends.open(Map.of(
+            Backends.BACKEND_VARIABLE, name,
+            Journal.DIRECTORY_VARIABLE, directory.toString(),
+            Journal.SNAPSHOT_INTERVAL_VARIABLE, "0",
+            UsersImpl.PASSWORD_ITERATIONS_VARIABLE, "1000"
+        ));
+        pets = Pets.create(vertx);
+        orders = Orders.create(vertx);
+        users = Users.create(vertx);
+    }
+
+    private static User user(String username, String lastName) {
+        return new User(1, username, "Carol", lastName, "email@email.com", "password", null);
+    }
+
+}
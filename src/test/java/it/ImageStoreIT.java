@@ -0,0 +1,214 @@
+package it;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.OpenOptions;
+import lombok.SneakyThrows;
+import net.keksipurkki.petstore.image.ImageFile;
+import net.keksipurkki.petstore.image.ImageName;
+import net.keksipurkki.petstore.image.ImageStore;
+import net.keksipurkki.petstore.image.StoredImage;
+import org.junit.jupiter.api.*;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static it.Tests.await;
+
+@Timeout(
+    value = 30,
+    unit = TimeUnit.SECONDS
+)
+public class ImageStoreIT {
+
+    private static final String SEGMENT_BYTES = "PETSTORE_IMAGE_SEGMENT_BYTES";
+
+    private final static Vertx vertx = Vertx.vertx();
+
+    private Path directory;
+
+    @BeforeEach
+    public void open() throws IOException {
+        directory = Files.createTempDirectory("petstore-images");
+    }
+
+    @AfterEach
+    public void close() throws IOException {
+        try (var files = Files.walk(directory)) {
+            for (var file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @AfterAll
+    public static void tearDown() {
+        await(vertx.close());
+    }
+
+    @Test
+    public void segments_sameImageTwice_storedOnce() {
+        var store = segments(Map.of());
+        var bytes = image(0xff0000);
+
+        var first = put(store, bytes);
+        var second = put(store, bytes);
+
+        Assertions.assertEquals(first, second);
+
+        var file = find(store, first.name());
+
+        // The second find may be served from the cache, which loads the image meanwhile
+        Assertions.assertEquals(file.withContent(null), find(store, second.name()).withContent(null));
+        Assertions.assertTrue(file.path().endsWith(".dat"));
+        Assertions.assertArrayEquals(bytes, read(store, file));
+    }
+
+    @Test
+    public void segments_reopened_imagesFound() {
+        var store = segments(Map.of(SEGMENT_BYTES, "1"));
+        var first = image(0xff0000);
+        var second = image(0x00ff00);
+        var thumbnail = image(0x0000ff);
+
+        var firstName = put(store, first).name();
+        var secondName = put(store, second).name();
+        await(store.putThumbnail(secondName.thumbnail(160), Buffer.buffer(thumbnail)));
+
+        var reopened = segments(Map.of(SEGMENT_BYTES, "1"));
+
+        Assertions.assertArrayEquals(first, read(reopened, find(reopened, firstName)));
+        Assertions.assertArrayEquals(second, read(reopened, find(reopened, secondName)));
+        Assertions.assertArrayEquals(thumbnail, read(reopened, find(reopened, secondName.thumbnail(160))));
+    }
+
+    @Test
+    public void segments_compacted_unusedImagesDropped() {
+        var store = segments(Map.of());
+        var used = image(0xff0000);
+        var unused = image(0x00ff00);
+
+        var usedName = put(store, used).name();
+        var unusedName = put(store, unused).name();
+        var before = find(store, usedName);
+
+        // Images stored lately are kept by the store that stored them
+        var reopened = segments(Map.of(SEGMENT_BYTES, "1"));
+        await(reopened.putThumbnail(usedName.thumbnail(160), Buffer.buffer(image(0x0000ff))));
+
+        var reclaimed = await(reopened.compact(name -> name.hash().equals(usedName.hash())));
+        var after = find(reopened, usedName);
+
+        Assertions.assertTrue(reclaimed > 0);
+        Assertions.assertNotEquals(before.path(), after.path());
+        Assertions.assertArrayEquals(used, read(reopened, after));
+        Assertions.assertTrue(await(reopened.find(unusedName)).isEmpty());
+        Assertions.assertTrue(await(reopened.find(usedName.thumbnail(160))).isPresent());
+    }
+
+    @Test
+    @SneakyThrows
+    public void cache_oneOffImages_popularImageKept() {
+        var store = segments(Map.of("PETSTORE_IMAGE_CACHE_BYTES", "65536"));
+        var popular = put(store, image(0xff0000)).name();
+
+        for (int i = 0; i < 10; i++) {
+            cached(store, popular);
+        }
+
+        for (int i = 0; i < 100; i++) {
+            var name = put(store, noise(i)).name();
+            await(store.find(name));
+            await(store.find(name));
+        }
+
+        var statistics = store.cacheStatistics().orElseThrow();
+
+        Assertions.assertNotNull(find(store, popular).content());
+        Assertions.assertTrue(statistics.size() <= statistics.capacity());
+        Assertions.assertTrue(statistics.evictions() + statistics.rejections() > 0);
+    }
+
+    private ImageStore segments(Map<String, String> environment) {
+        var variables = new HashMap<>(environment);
+        variables.put("PETSTORE_IMAGE_DIR", directory.toString());
+        variables.put(ImageStore.STORE_VARIABLE, "segments");
+        variables.put("PETSTORE_IMAGE_GARBAGE_RATIO", "0.1");
+        return ImageStore.create(vertx, variables);
+    }
+
+    @SneakyThrows
+    private StoredImage put(ImageStore store, byte[] bytes) {
+        var file = Files.createTempFile(directory, "upload", ".png");
+        Files.write(file, bytes);
+
+        var stream = await(vertx.fileSystem().open(file.toString(), new OpenOptions().setRead(true)));
+        return await(store.put(stream));
+    }
+
+    private ImageFile find(ImageStore store, ImageName name) {
+        return Objects.requireNonNull(await(store.find(name))).orElseThrow();
+    }
+
+    // Finds the image until it has been loaded into the cache
+    @SneakyThrows
+    private ImageFile cached(ImageStore store, ImageName name) {
+        for (int i = 0; i < 100; i++) {
+            var file = find(store, name);
+            if (file.content() != null) {
+                return file;
+            }
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        return Assertions.fail("Image " + name + " was not cached");
+    }
+
+    @SneakyThrows
+    private byte[] read(ImageStore store, ImageFile file) {
+        var buffer = store.read(file);
+        var bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    // About 2 KiB as a PNG
+    @SneakyThrows
+    private byte[] noise(long seed) {
+        var random = new Random(seed);
+        var image = new BufferedImage(24, 24, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < 24; x++) {
+            for (int y = 0; y < 24; y++) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+
+        var out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+
+    @SneakyThrows
+    private byte[] image(int rgb) {
+        var image = new BufferedImage(8, 8, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < 8; x++) {
+            for (int y = 0; y < 8; y++) {
+                image.setRGB(x, y, rgb);
+            }
+        }
+
+        var out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+
+}
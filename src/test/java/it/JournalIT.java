@@ -0,0 +1,184 @@
+package it;
+
+import io.vertx.core.Vertx;
+import net.keksipurkki.petstore.pet.NewPet;
+import net.keksipurkki.petstore.pet.Pets;
+import net.keksipurkki.petstore.pet.PetStore;
+import net.keksipurkki.petstore.storage.*;
+import net.keksipurkki.petstore.store.NewOrder;
+import net.keksipurkki.petstore.store.Orders;
+import net.keksipurkki.petstore.store.OrdersImpl;
+import net.keksipurkki.petstore.user.User;
+import net.keksipurkki.petstore.user.Users;
+import net.keksipurkki.petstore.user.UsersImpl;
+import org.junit.jupiter.api.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static it.Tests.await;
+
+@Timeout(
+    value = 30,
+    unit = TimeUnit.SECONDS
+)
+public class JournalIT {
+
+    private static final User CAROL = new User(
+        2,
+        "Carol",
+        "Carol",
+        "Danvers",
+        "email@email.com",
+        "password",
+        null
+    );
+
+    private static final Checkpoint CHECKPOINT = Checkpoint.of(PetStore.checkpoint(), OrdersImpl.checkpoint(), UsersImpl.checkpoint());
+
+    private final static Vertx vertx = Vertx.vertx();
+    private final Pets pets = Pets.create(vertx);
+    private final Orders orders = Orders.create(vertx);
+    private final Users users = Users.create(vertx);
+
+    private Path directory;
+
+    @BeforeEach
+    public void open() throws IOException {
+        directory = Files.createTempDirectory("petstore");
+        Journal.open(directory, Durability.REQUEST, 5, types(new ArrayList<>()), CHECKPOINT);
+    }
+
+    @AfterEach
+    public void close() throws IOException {
+        Journal.close();
+        UsersImpl.clear();
+        try (var files = Files.list(directory)) {
+            for (var file : files.toList()) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void placeAndCancelOrder_readJournal_recordsInOrder() {
+        var pet = await(pets.add(new NewPet("snoopy", "dogs")));
+        var order = await(orders.place(new NewOrder(pet.id(), 1)));
+        await(orders.delete(order.orderId()));
+
+        var types = new ArrayList<RecordType>();
+        Journal.read(directory, types(types));
+
+        Assertions.assertEquals(List.of(
+            RecordType.PET,
+            RecordType.PET,
+            RecordType.ORDER,
+            RecordType.ORDER_DELETED,
+            RecordType.PET
+        ), types);
+    }
+
+    @Test
+    public void placeOrder_tornRecord_reservationDroppedWithOrder() throws IOException {
+        var pet = await(pets.add(new NewPet("snoopy", "dogs")));
+        await(orders.place(new NewOrder(pet.id(), 1)));
+        Journal.close();
+
+        var log = directory.resolve("journal-1.log");
+        try (var channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 1);
+        }
+
+        var types = new ArrayList<RecordType>();
+        Journal.open(directory, Durability.REQUEST, 5, types(types), CHECKPOINT);
+
+        Assertions.assertEquals(List.of(RecordType.PET), types);
+    }
+
+    @Test
+    public void createUser_replayJournal_userRestored() {
+        await(users.create(CAROL));
+        UsersImpl.clear();
+
+        Journal.read(directory, UsersImpl.recovery());
+
+        var user = await(users.findByUsername(CAROL.username())).orElseThrow();
+        Assertions.assertEquals(CAROL.redactCredentials(), user.redactCredentials());
+        Assertions.assertTrue(user.verifyPassword(CAROL.password()));
+    }
+
+    @Test
+    public void createUser_readJournal_passwordHashed() throws IOException {
+        await(users.create(CAROL));
+
+        var log = directory.resolve("journal-1.log");
+        var contents = new String(Files.readAllBytes(log), StandardCharsets.ISO_8859_1);
+
+        Assertions.assertTrue(contents.contains(CAROL.email()));
+        Assertions.assertFalse(contents.contains(CAROL.password()));
+        Assertions.assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(log));
+    }
+
+    @Test
+    public void snapshot_replayJournal_restoredFromSnapshot() throws IOException {
+        await(users.create(CAROL));
+        await(pets.add(new NewPet("snoopy", "dogs")));
+
+        var snapshot = Journal.snapshot();
+        var pets = PetStore.getInventory().size();
+
+        try (var files = Files.list(directory)) {
+            var names = files.map(file -> file.getFileName().toString()).sorted().toList();
+            Assertions.assertEquals(List.of("journal-2.log", snapshot.getFileName().toString()), names);
+        }
+
+        UsersImpl.clear();
+
+        var restored = new AtomicInteger();
+        Journal.read(directory, Recovery.of(UsersImpl.recovery(), new Recovery() {
+            @Override
+            public void replay(RecordType type, ByteBuffer payload) {
+            }
+
+            @Override
+            public void restore(SnapshotReader snapshot) {
+                snapshot.blocks(BlockType.PETS).forEach(block -> restored.addAndGet(block.count()));
+            }
+        }));
+
+        Assertions.assertEquals(CAROL.redactCredentials(), await(users.findByUsername(CAROL.username())).orElseThrow().redactCredentials());
+        Assertions.assertEquals(pets, restored.get());
+    }
+
+    @Test
+    public void tornRecord_reopenJournal_truncated() throws IOException {
+        await(users.create(CAROL));
+        Journal.close();
+
+        var log = directory.resolve("journal-1.log");
+        var size = Files.size(log);
+        Files.write(log, new byte[]{0, 0, 1, 0, 42}, StandardOpenOption.APPEND);
+
+        var types = new ArrayList<RecordType>();
+        Journal.open(directory, Durability.REQUEST, 5, types(types), CHECKPOINT);
+
+        Assertions.assertEquals(List.of(RecordType.USER), types);
+        Assertions.assertEquals(size, Files.size(log));
+    }
+
+    private static Recovery types(List<RecordType> types) {
+        return (type, payload) -> types.add(type);
+    }
+
+}
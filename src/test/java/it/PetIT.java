@@ -3,25 +3,46 @@ package it;
 import io.restassured.RestAssured;
 import io.restassured.builder.MultiPartSpecBuilder;
 import io.restassured.builder.RequestSpecBuilder;
+import io.restassured.config.DecoderConfig;
 import io.restassured.filter.log.RequestLoggingFilter;
 import io.restassured.filter.log.ResponseLoggingFilter;
+import io.restassured.response.Response;
 import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import lombok.SneakyThrows;
 import net.keksipurkki.petstore.api.Api;
 import net.keksipurkki.petstore.http.HttpVerticle;
+import net.keksipurkki.petstore.pet.CategoryRegistry;
 import net.keksipurkki.petstore.pet.NewPet;
 import net.keksipurkki.petstore.pet.Pet;
+import net.keksipurkki.petstore.pet.PetImport;
 import net.keksipurkki.petstore.pet.Status;
 import net.keksipurkki.petstore.security.JwtPrincipal;
 import net.keksipurkki.petstore.support.Json;
 import org.junit.jupiter.api.*;
 
+import javax.imageio.ImageIO;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPInputStream;
 
 import static it.Tests.await;
 import static it.Tests.randomPort;
@@ -196,6 +217,141 @@ public class PetIT {
         Assertions.assertEquals(200, resp.statusCode());
     }
 
+    @Test
+    @SneakyThrows
+    public void uploadImage_sameImageTwice_storedUnderItsHash() {
+        var first = pet();
+        var second = pet();
+
+        Assertions.assertEquals(200, upload(first.id(), Files.readAllBytes(dogImage().toPath())).statusCode());
+        Assertions.assertEquals(200, upload(first.id(), Files.readAllBytes(dogImage().toPath())).statusCode());
+        Assertions.assertEquals(200, upload(second.id(), Files.readAllBytes(dogImage().toPath())).statusCode());
+
+        var hash = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(dogImage().toPath())));
+
+        var firstUrls = photoUrls(first.id());
+        var secondUrls = photoUrls(second.id());
+
+        Assertions.assertEquals(3, firstUrls.size());
+        Assertions.assertEquals(firstUrls, secondUrls);
+        Assertions.assertTrue(firstUrls.get(0).endsWith("/" + hash + ".png"));
+    }
+
+    @Test
+    @SneakyThrows
+    public void uploadImage_thumbnails_servedScaledDown() {
+        var pet = pet();
+
+        upload(pet.id(), Files.readAllBytes(dogImage().toPath()));
+
+        var urls = photoUrls(pet.id());
+        var client = HttpClient.newHttpClient();
+
+        Assertions.assertEquals(3, urls.size());
+
+        for (var size : List.of(160, 640)) {
+            var url = urls.stream().filter(u -> u.endsWith("-" + size + ".png")).findFirst().orElseThrow();
+            var uri = URI.create("http://localhost:" + RestAssured.port + URI.create(url).getPath());
+
+            var resp = client.send(HttpRequest.newBuilder(uri).build(), HttpResponse.BodyHandlers.ofByteArray());
+
+            Assertions.assertEquals(200, resp.statusCode());
+            Assertions.assertEquals(Optional.of("image/png"), resp.headers().firstValue("content-type"));
+
+            var image = ImageIO.read(new ByteArrayInputStream(resp.body()));
+            Assertions.assertTrue(Math.max(image.getWidth(), image.getHeight()) <= size);
+        }
+    }
+
+    @Test
+    public void uploadImage_notAnImage_badRequest() {
+        var pet = pet();
+
+        var resp = upload(pet.id(), "Not an image".getBytes(StandardCharsets.UTF_8));
+
+        Assertions.assertEquals(400, resp.statusCode());
+        Assertions.assertTrue(photoUrls(pet.id()).isEmpty());
+    }
+
+    @Test
+    @SneakyThrows
+    public void staticImage_uploaded_servedWithCachingAndRanges() {
+        var pet = pet();
+        var bytes = Files.readAllBytes(dogImage().toPath());
+
+        upload(pet.id(), bytes);
+
+        var path = URI.create(photoUrls(pet.id()).get(0)).getPath();
+        var uri = URI.create("http://localhost:" + RestAssured.port + path);
+        var client = HttpClient.newHttpClient();
+
+        var full = client.send(HttpRequest.newBuilder(uri).build(), HttpResponse.BodyHandlers.ofByteArray());
+
+        Assertions.assertEquals(200, full.statusCode());
+        Assertions.assertArrayEquals(bytes, full.body());
+        Assertions.assertEquals(Optional.of("image/png"), full.headers().firstValue("content-type"));
+        Assertions.assertTrue(full.headers().firstValue("cache-control").orElseThrow().contains("immutable"));
+
+        var etag = full.headers().firstValue("etag").orElseThrow();
+
+        var notModified = client.send(HttpRequest.newBuilder(uri).header("if-none-match", etag).build(), HttpResponse.BodyHandlers.ofByteArray());
+        Assertions.assertEquals(304, notModified.statusCode());
+
+        var partial = client.send(HttpRequest.newBuilder(uri).header("range", "bytes=10-19").build(), HttpResponse.BodyHandlers.ofByteArray());
+        Assertions.assertEquals(206, partial.statusCode());
+        Assertions.assertEquals(Optional.of("bytes 10-19/" + bytes.length), partial.headers().firstValue("content-range"));
+        Assertions.assertArrayEquals(Arrays.copyOfRange(bytes, 10, 20), partial.body());
+
+        var suffix = client.send(HttpRequest.newBuilder(uri).header("range", "bytes=-5").build(), HttpResponse.BodyHandlers.ofByteArray());
+        Assertions.assertEquals(206, suffix.statusCode());
+        Assertions.assertArrayEquals(Arrays.copyOfRange(bytes, bytes.length - 5, bytes.length), suffix.body());
+
+        var unsatisfiable = client.send(HttpRequest.newBuilder(uri).header("range", "bytes=" + bytes.length + "-").build(), HttpResponse.BodyHandlers.ofByteArray());
+        Assertions.assertEquals(416, unsatisfiable.statusCode());
+
+        var head = client.send(HttpRequest.newBuilder(uri).method("HEAD", HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.discarding());
+        Assertions.assertEquals(200, head.statusCode());
+        Assertions.assertEquals(Optional.of(Integer.toString(bytes.length)), head.headers().firstValue("content-length"));
+
+        var missing = client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + RestAssured.port + HttpVerticle.STATIC_PATH + "/" + "0".repeat(64) + ".png")).build(), HttpResponse.BodyHandlers.discarding());
+        Assertions.assertEquals(404, missing.statusCode());
+    }
+
+    @Test
+    @SneakyThrows
+    public void staticImage_requestedAgain_servedFromCache() {
+        var pet = pet();
+        var bytes = Files.readAllBytes(dogImage().toPath());
+
+        upload(pet.id(), bytes);
+
+        var uri = URI.create("http://localhost:" + RestAssured.port + URI.create(photoUrls(pet.id()).get(0)).getPath());
+        var client = HttpClient.newHttpClient();
+        var hits = imageCache().getLong("hits");
+
+        // The first request misses the cache and loads the image into it in the background
+        for (int i = 0; i < 100 && imageCache().getLong("hits") == hits; i++) {
+            var resp = client.send(HttpRequest.newBuilder(uri).build(), HttpResponse.BodyHandlers.ofByteArray());
+            Assertions.assertArrayEquals(bytes, resp.body());
+            TimeUnit.MILLISECONDS.sleep(20);
+        }
+
+        Assertions.assertTrue(imageCache().getLong("hits") > hits);
+
+        var full = client.send(HttpRequest.newBuilder(uri).build(), HttpResponse.BodyHandlers.ofByteArray());
+        Assertions.assertEquals(200, full.statusCode());
+        Assertions.assertArrayEquals(bytes, full.body());
+        Assertions.assertEquals(Optional.of(Integer.toString(bytes.length)), full.headers().firstValue("content-length"));
+
+        var partial = client.send(HttpRequest.newBuilder(uri).header("range", "bytes=10-19").build(), HttpResponse.BodyHandlers.ofByteArray());
+        Assertions.assertEquals(206, partial.statusCode());
+        Assertions.assertArrayEquals(Arrays.copyOfRange(bytes, 10, 20), partial.body());
+
+        var cache = imageCache();
+        Assertions.assertTrue(cache.getLong("size") >= bytes.length);
+        Assertions.assertTrue(cache.getDouble("hitRate") > 0);
+    }
+
     @Test
     public void updatePet_noChanges_ok() {
         var pet = pet();
@@ -215,6 +371,24 @@ public class PetIT {
 
     }
 
+    @Test
+    public void updatePet_idMismatch_badRequest() {
+        var pet = pet();
+        var unknown = 999_999_999;
+
+        var json = new JsonObject(Json.stringify(pet));
+        json.put("id", unknown);
+
+        var resp = RestAssured
+            .given()
+            .contentType("application/json")
+            .body(json.toString())
+            .put("/pet/{petId}", pet.id());
+
+        Assertions.assertEquals(400, resp.statusCode());
+        Assertions.assertEquals(404, RestAssured.given().get("/pet/{petId}", unknown).statusCode());
+    }
+
     @Test
     public void updatePet_changeName_ok() {
         var pet = pet();
@@ -280,6 +454,622 @@ public class PetIT {
 
     }
 
+    @Test
+    public void getPetById_ifNoneMatch_notModifiedUntilChanged() {
+        var pet = pet();
+
+        var etag = RestAssured
+            .given()
+            .get("/pet/{petId}", pet.id())
+            .header("etag");
+
+        Assertions.assertNotNull(etag);
+
+        var notModified = RestAssured
+            .given()
+            .header("if-none-match", etag)
+            .get("/pet/{petId}", pet.id());
+
+        Assertions.assertEquals(304, notModified.statusCode());
+        Assertions.assertEquals(etag, notModified.header("etag"));
+        Assertions.assertEquals("", notModified.asString());
+
+        var json = new JsonObject(Json.stringify(pet));
+        json.put("name", "EXPECTED");
+
+        var updated = RestAssured
+            .given()
+            .contentType("application/json")
+            .body(json.toString())
+            .put("/pet/{petId}", pet.id());
+
+        Assertions.assertEquals(200, updated.statusCode());
+        Assertions.assertNotEquals(etag, updated.header("etag"));
+
+        var modified = RestAssured
+            .given()
+            .header("if-none-match", etag)
+            .get("/pet/{petId}", pet.id());
+
+        Assertions.assertEquals(200, modified.statusCode());
+        Assertions.assertEquals(updated.header("etag"), modified.header("etag"));
+        Assertions.assertEquals("EXPECTED", new JsonObject(modified.asString()).getString("name"));
+    }
+
+    @Test
+    public void updatePet_staleIfMatch_preconditionFailed() {
+        var pet = pet();
+
+        var etag = RestAssured
+            .given()
+            .get("/pet/{petId}", pet.id())
+            .header("etag");
+
+        var json = new JsonObject(Json.stringify(pet));
+
+        var first = RestAssured
+            .given()
+            .contentType("application/json")
+            .header("if-match", etag)
+            .body(json.put("name", "FIRST").toString())
+            .put("/pet/{petId}", pet.id());
+
+        Assertions.assertEquals(200, first.statusCode());
+
+        var second = RestAssured
+            .given()
+            .contentType("application/json")
+            .header("if-match", etag)
+            .body(json.put("name", "SECOND").toString())
+            .put("/pet/{petId}", pet.id());
+
+        Assertions.assertEquals(412, second.statusCode());
+
+        var resp = RestAssured
+            .given()
+            .get("/pet/{petId}", pet.id());
+
+        Assertions.assertEquals("FIRST", new JsonObject(resp.asString()).getString("name"));
+    }
+
+    @Test
+    public void deletePet_staleIfMatch_preconditionFailed() {
+        var pet = pet();
+
+        var etag = RestAssured
+            .given()
+            .get("/pet/{petId}", pet.id())
+            .header("etag");
+
+        var json = new JsonObject(Json.stringify(pet)).put("name", "EXPECTED");
+
+        RestAssured
+            .given()
+            .contentType("application/json")
+            .body(json.toString())
+            .put("/pet/{petId}", pet.id());
+
+        var stale = RestAssured
+            .given()
+            .header("if-match", etag)
+            .delete("/pet/{petId}", pet.id());
+
+        Assertions.assertEquals(412, stale.statusCode());
+
+        var current = RestAssured
+            .given()
+            .get("/pet/{petId}", pet.id());
+
+        var deleted = RestAssured
+            .given()
+            .header("if-match", current.header("etag"))
+            .delete("/pet/{petId}", pet.id());
+
+        Assertions.assertEquals(200, deleted.statusCode());
+    }
+
+    @Test
+    public void findByStatus_newPet_isListed() {
+        var pet = pet();
+
+        var resp = RestAssured
+            .given()
+            .accept("application/json")
+            .queryParam("status", "AVAILABLE")
+            .get("/pet/findByStatus");
+
+        Assertions.assertEquals(200, resp.statusCode());
+
+        var ids = new JsonArray(resp.asString()).stream()
+            .map(json -> ((JsonObject) json).getInteger("id"))
+            .toList();
+
+        Assertions.assertTrue(ids.contains(pet.id()));
+    }
+
+    @Test
+    public void findByTags_tagsChange_indexFollows() {
+        var pet = pet();
+        var tag = UUID.randomUUID().toString();
+
+        {
+
+            var json = new JsonObject(Json.stringify(pet));
+            json.put("tags", new JsonArray().add(tag));
+
+            var resp = RestAssured
+                .given()
+                .contentType("application/json")
+                .body(json.toString())
+                .put("/pet/{petId}", pet.id());
+
+            Assertions.assertEquals(200, resp.statusCode());
+
+        }
+
+        {
+
+            var resp = RestAssured
+                .given()
+                .accept("application/json")
+                .queryParam("tags", tag, "some-other-tag")
+                .get("/pet/findByTags");
+
+            Assertions.assertEquals(200, resp.statusCode());
+
+            var pets = new JsonArray(resp.asString());
+
+            Assertions.assertEquals(1, pets.size());
+            Assertions.assertEquals(pet.id(), pets.getJsonObject(0).getInteger("id"));
+
+        }
+
+        {
+
+            var resp = RestAssured
+                .given()
+                .contentType("application/json")
+                .body(Json.stringify(pet))
+                .put("/pet/{petId}", pet.id());
+
+            Assertions.assertEquals(200, resp.statusCode());
+
+        }
+
+        {
+
+            var resp = RestAssured
+                .given()
+                .accept("application/json")
+                .queryParam("tags", tag)
+                .get("/pet/findByTags");
+
+            Assertions.assertEquals(200, resp.statusCode());
+            Assertions.assertTrue(new JsonArray(resp.asString()).isEmpty());
+
+        }
+
+    }
+
+    @Test
+    public void findByCategory_deletedPet_isNotListed() {
+        var pet = pet();
+
+        {
+
+            var resp = RestAssured
+                .given()
+                .accept("application/json")
+                .delete("/pet/{petId}", pet.id());
+
+            Assertions.assertEquals(200, resp.statusCode());
+
+        }
+
+        {
+
+            var resp = RestAssured
+                .given()
+                .accept("application/json")
+                .queryParam("category", NEW_PET.category())
+                .get("/pet/findByCategory");
+
+            Assertions.assertEquals(200, resp.statusCode());
+
+            var ids = new JsonArray(resp.asString()).stream()
+                .map(json -> ((JsonObject) json).getInteger("id"))
+                .toList();
+
+            Assertions.assertFalse(ids.contains(pet.id()));
+
+        }
+
+    }
+
+    @Test
+    public void findByStatus_invalidStatus_badRequest() {
+
+        var resp = RestAssured
+            .given()
+            .accept("application/json")
+            .queryParam("status", "LOST")
+            .get("/pet/findByStatus");
+
+        Assertions.assertEquals(400, resp.statusCode());
+
+    }
+
+    @Test
+    public void addPet_uniqueCategory_evictedWithLastPet() {
+
+        var category = UUID.randomUUID().toString();
+        var before = CategoryRegistry.size();
+
+        var resp = RestAssured
+            .given()
+            .header("content-type", "application/json")
+            .body(Json.stringify(new NewPet("lonely", category), true))
+            .post("/pet");
+
+        Assertions.assertEquals(200, resp.statusCode());
+
+        var pet = Json.parse(new JsonObject(resp.asString()), Pet.class);
+
+        Assertions.assertEquals(before + 1, CategoryRegistry.size());
+        Assertions.assertEquals(pet.category(), CategoryRegistry.get(pet.category().id()).orElseThrow());
+
+        {
+
+            var diagnostics = RestAssured
+                .given()
+                .basePath(HttpVerticle.DIAGNOSTICS_PATH)
+                .get();
+
+            Assertions.assertEquals(200, diagnostics.statusCode());
+
+            var json = new JsonObject(diagnostics.asString());
+            Assertions.assertEquals(before + 1, json.getJsonObject("categories").getInteger("size"));
+
+        }
+
+        RestAssured.given().delete("/pet/{petId}", pet.id());
+
+        Assertions.assertEquals(before, CategoryRegistry.size());
+        Assertions.assertTrue(CategoryRegistry.get(pet.category().id()).isEmpty());
+
+    }
+
+    @Test
+    public void listPets_smallPages_everyPetListedOnce() {
+        var created = IntStream.range(0, 5).mapToObj(i -> pet().id()).toList();
+
+        var seen = new ArrayList<Integer>();
+        String cursor = null;
+
+        do {
+
+            var request = RestAssured
+                .given()
+                .accept("application/json")
+                .queryParam("limit", 2);
+
+            if (cursor != null) {
+                request.queryParam("cursor", cursor);
+            }
+
+            var resp = request.get("/pet");
+
+            Assertions.assertEquals(200, resp.statusCode());
+            Assertions.assertEquals("chunked", resp.header("transfer-encoding"));
+
+            var page = new JsonObject(resp.asString());
+            var pets = page.getJsonArray("pets");
+
+            Assertions.assertTrue(pets.size() <= 2);
+
+            pets.stream()
+                .map(json -> ((JsonObject) json).getInteger("id"))
+                .forEach(seen::add);
+
+            cursor = page.getString("next");
+
+        } while (cursor != null);
+
+        Assertions.assertTrue(seen.containsAll(created));
+        Assertions.assertEquals(seen.stream().sorted().distinct().toList(), seen);
+
+    }
+
+    @Test
+    public void listPets_invalidCursor_badRequest() {
+
+        var resp = RestAssured
+            .given()
+            .accept("application/json")
+            .queryParam("cursor", "not a cursor")
+            .get("/pet");
+
+        Assertions.assertEquals(400, resp.statusCode());
+
+    }
+
+    @Test
+    public void searchPets_prefixAndTypo_rankedMatches() {
+        var word = ThreadLocalRandom.current().ints(10, 'a', 'z' + 1)
+            .collect(StringBuilder::new, StringBuilder::appendCodePoint, StringBuilder::append)
+            .toString();
+
+        var exact = pet(word);
+        var partial = pet(word.substring(0, 6) + "123");
+
+        Assertions.assertEquals(List.of(exact.id(), partial.id()), search(word.substring(0, 6)));
+        Assertions.assertEquals(List.of(exact.id()), search(word));
+        Assertions.assertEquals(List.of(exact.id()), search(word.substring(0, 9) + "9"));
+
+        var resp = RestAssured
+            .given()
+            .accept("application/json")
+            .delete("/pet/{petId}", exact.id());
+
+        Assertions.assertEquals(200, resp.statusCode());
+        Assertions.assertEquals(List.of(), search(word));
+    }
+
+    @Test
+    public void searchPets_tooShortQuery_badRequest() {
+
+        var resp = RestAssured
+            .given()
+            .accept("application/json")
+            .queryParam("q", "a")
+            .get("/pet/search");
+
+        Assertions.assertEquals(400, resp.statusCode());
+
+    }
+
+    @Test
+    public void importPets_ndjson_validLinesAddedInvalidOnesReported() {
+
+        var category = UUID.randomUUID().toString();
+        var body = new StringBuilder();
+        var lines = 2 * PetImport.BATCH_SIZE + 10;
+
+        for (int i = 1; i <= lines; i++) {
+            switch (i) {
+                case 7 -> body.append("{\"name\": \"broken\"\n");
+                case 1500 -> body.append("{\"name\": \"nameless\"}\n");
+                case 2000 -> body.append("\r\n");
+                default -> body.append(Json.stringify(new NewPet("imported" + i, category))).append(i % 2 == 0 ? "\r\n" : "\n");
+            }
+        }
+
+        var resp = RestAssured
+            .given()
+            .header("content-type", PetImport.MEDIA_TYPE)
+            .body(body.toString().stripTrailing().getBytes(StandardCharsets.UTF_8))
+            .post("/pet/import");
+
+        Assertions.assertEquals(200, resp.statusCode());
+
+        var report = new JsonObject(resp.asString());
+        var failures = report.getJsonArray("failures");
+
+        Assertions.assertEquals(lines - 3, report.getLong("imported"));
+        Assertions.assertEquals(2, report.getLong("failed"));
+        Assertions.assertEquals(7, failures.getJsonObject(0).getLong("line"));
+        Assertions.assertEquals(1500, failures.getJsonObject(1).getLong("line"));
+        Assertions.assertEquals(400, failures.getJsonObject(1).getJsonObject("problem").getInteger("status"));
+
+        var imported = RestAssured
+            .given()
+            .accept("application/json")
+            .queryParam("category", category)
+            .get("/pet/findByCategory");
+
+        Assertions.assertEquals(lines - 3, new JsonArray(imported.asString()).size());
+
+    }
+
+    @Test
+    public void importPets_json_unsupportedMediaType() {
+
+        var resp = RestAssured
+            .given()
+            .header("content-type", "application/json")
+            .body(Json.stringify(NEW_PET, true))
+            .post("/pet/import");
+
+        Assertions.assertEquals(415, resp.statusCode());
+
+    }
+
+    @Test
+    public void importPets_lineTooLong_badRequest() {
+
+        var resp = RestAssured
+            .given()
+            .header("content-type", PetImport.MEDIA_TYPE)
+            .body(Json.stringify(new NewPet("x".repeat(PetImport.MAX_LINE_LENGTH), "dogs")).getBytes(StandardCharsets.UTF_8))
+            .post("/pet/import");
+
+        Assertions.assertEquals(400, resp.statusCode());
+
+    }
+
+    @Test
+    public void exportPets_identity_everyPetOnItsOwnLine() {
+
+        var pet = pet();
+
+        var resp = RestAssured
+            .given()
+            .config(RestAssured.config().decoderConfig(DecoderConfig.decoderConfig().noContentDecoders()))
+            .get("/pet/export");
+
+        Assertions.assertEquals(200, resp.statusCode());
+        Assertions.assertEquals(PetImport.MEDIA_TYPE, resp.contentType());
+        Assertions.assertNull(resp.header("content-encoding"));
+        Assertions.assertEquals("accept-encoding", resp.header("vary"));
+
+        var ids = resp.asString().lines().map(line -> new JsonObject(line).getInteger("id")).toList();
+
+        Assertions.assertTrue(ids.contains(pet.id()));
+        Assertions.assertEquals(ids.stream().sorted().toList(), ids);
+
+    }
+
+    @Test
+    @SneakyThrows
+    public void exportPets_gzip_compressedBody() {
+
+        var pet = pet();
+
+        var request = HttpRequest.newBuilder(URI.create("http://localhost:" + RestAssured.port + HttpVerticle.CONTEXT_PATH + "/pet/export"))
+            .header("accept-encoding", "br;q=1.0, gzip;q=0.5")
+            .build();
+
+        var resp = HttpClient.newHttpClient().send(request, HttpResponse.BodyHandlers.ofInputStream());
+
+        Assertions.assertEquals(200, resp.statusCode());
+        Assertions.assertEquals(Optional.of("gzip"), resp.headers().firstValue("content-encoding"));
+        Assertions.assertEquals(Optional.of("accept-encoding"), resp.headers().firstValue("vary"));
+
+        try (var body = new GZIPInputStream(resp.body())) {
+            var lines = new String(body.readAllBytes(), StandardCharsets.UTF_8).lines().toList();
+            Assertions.assertTrue(lines.stream().anyMatch(line -> new JsonObject(line).getInteger("id") == pet.id()));
+        }
+
+    }
+
+    @Test
+    public void getPetChanges_sinceVersion_changedAndDeletedPets() {
+
+        var unchanged = pet();
+        var since = changes(null).getString("version");
+
+        var added = pet();
+        var updated = pet();
+        var deleted = pet();
+
+        var json = new JsonObject(Json.stringify(updated)).put("name", "UPDATED");
+
+        RestAssured
+            .given()
+            .contentType("application/json")
+            .body(json.toString())
+            .put("/pet/{petId}", updated.id());
+
+        RestAssured
+            .given()
+            .delete("/pet/{petId}", deleted.id());
+
+        var changes = changes(since);
+
+        var pets = changes.getJsonArray("pets").stream()
+            .map(pet -> (JsonObject) pet)
+            .toList();
+
+        var ids = pets.stream().map(pet -> pet.getInteger("id")).toList();
+
+        Assertions.assertFalse(ids.contains(unchanged.id()));
+        Assertions.assertFalse(ids.contains(deleted.id()));
+        Assertions.assertTrue(ids.indexOf(added.id()) < ids.indexOf(updated.id()));
+        Assertions.assertTrue(pets.stream().anyMatch(pet -> pet.getString("name").equals("UPDATED")));
+        Assertions.assertTrue(changes.getJsonArray("deleted").contains(deleted.id()));
+
+        var next = changes(changes.getString("version"));
+        Assertions.assertFalse(next.getJsonArray("pets").stream()
+            .anyMatch(pet -> ((JsonObject) pet).getInteger("id") == updated.id()));
+
+    }
+
+    @Test
+    public void getPetChanges_invalidVersion_badRequest() {
+
+        var resp = RestAssured
+            .given()
+            .queryParam("since", "not a version")
+            .get("/pet/changes");
+
+        Assertions.assertEquals(400, resp.statusCode());
+
+    }
+
+    @Test
+    public void getPetChanges_versionOfEarlierRun_gone() {
+
+        var resp = RestAssured
+            .given()
+            .queryParam("since", "earlier-1")
+            .get("/pet/changes");
+
+        Assertions.assertEquals(410, resp.statusCode());
+
+    }
+
+    private JsonObject changes(String since) {
+
+        var request = RestAssured.given();
+
+        if (since != null) {
+            request.queryParam("since", since);
+        }
+
+        var resp = request.get("/pet/changes");
+
+        Assertions.assertEquals(200, resp.statusCode());
+
+        return new JsonObject(resp.asString());
+    }
+
+    private List<Integer> search(String query) {
+
+        var resp = RestAssured
+            .given()
+            .accept("application/json")
+            .queryParam("q", query)
+            .get("/pet/search");
+
+        Assertions.assertEquals(200, resp.statusCode());
+
+        return new JsonArray(resp.asString()).stream()
+            .map(json -> ((JsonObject) json).getInteger("id"))
+            .toList();
+    }
+
+    private Response upload(int petId, byte[] image) {
+        var fileUpload = new MultiPartSpecBuilder(image)
+            .fileName("upload")
+            .mimeType("application/octet-stream")
+            .controlName("file")
+            .build();
+
+        return RestAssured
+            .given()
+            .multiPart(fileUpload)
+            .post("/pet/{petId}/uploadImage", petId);
+    }
+
+    private List<String> photoUrls(int petId) {
+        var resp = RestAssured
+            .given()
+            .get("/pet/{petId}", petId);
+
+        return new JsonObject(resp.asString()).getJsonArray("photoUrls").stream()
+            .map(Object::toString)
+            .toList();
+    }
+
+    private JsonObject imageCache() {
+        var diagnostics = RestAssured
+            .given()
+            .basePath(HttpVerticle.DIAGNOSTICS_PATH)
+            .get();
+
+        return new JsonObject(diagnostics.asString()).getJsonObject("imageCache");
+    }
+
     @SneakyThrows
     private File dogImage() {
         var resource = PetIT.class.getResource("/snoopy.png");
@@ -288,11 +1078,15 @@ public class PetIT {
     }
 
     private Pet pet() {
+        return pet(NEW_PET.name());
+    }
+
+    private Pet pet(String name) {
 
         var resp = RestAssured
             .given()
             .header("content-type", "application/json")
-            .body(Json.stringify(NEW_PET, true))
+            .body(Json.stringify(new NewPet(name, NEW_PET.category()), true))
             .post("/pet");
 
         Assertions.assertEquals(200, resp.statusCode());
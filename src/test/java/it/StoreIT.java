@@ -4,26 +4,41 @@ import io.restassured.RestAssured;
 import io.restassured.builder.RequestSpecBuilder;
 import io.restassured.filter.log.RequestLoggingFilter;
 import io.restassured.filter.log.ResponseLoggingFilter;
-import io.vertx.core.Future;
-import io.vertx.core.Vertx;
+import io.vertx.core.*;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.RequestOptions;
+import io.vertx.core.http.WebSocket;
+import io.vertx.core.http.WebSocketConnectOptions;
 import io.vertx.core.json.JsonObject;
+import io.vertx.core.parsetools.RecordParser;
 import net.keksipurkki.petstore.api.Api;
+import net.keksipurkki.petstore.feed.Change;
+import net.keksipurkki.petstore.feed.ChangeFeed;
 import net.keksipurkki.petstore.http.HttpVerticle;
+import net.keksipurkki.petstore.http.InventoryEvents;
 import net.keksipurkki.petstore.pet.NewPet;
 import net.keksipurkki.petstore.pet.Pet;
 import net.keksipurkki.petstore.pet.PetStore;
 import net.keksipurkki.petstore.pet.Pets;
+import net.keksipurkki.petstore.pet.Status;
 import net.keksipurkki.petstore.security.JwtPrincipal;
 import net.keksipurkki.petstore.store.NewOrder;
 import net.keksipurkki.petstore.store.Order;
 import net.keksipurkki.petstore.store.Orders;
+import net.keksipurkki.petstore.support.Futures;
 import net.keksipurkki.petstore.support.Json;
 import net.keksipurkki.petstore.user.Users;
 import org.junit.jupiter.api.*;
 
+import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 
 import static it.Tests.await;
 import static it.Tests.randomPort;
@@ -36,13 +51,15 @@ public class StoreIT {
 
     private final static Vertx vertx = Vertx.vertx();
     private static Pet snoopy;
+    private static Pets pets;
+    private static Api api;
 
     @BeforeAll
     @DisplayName("Server starts")
     public static void randomPort_deployServer_serverPortEquals() {
 
         var port = randomPort();
-        var api = await(createApi());
+        api = await(createApi());
         var server = new HttpVerticle();
         server.withApi(api);
 
@@ -116,7 +133,8 @@ public class StoreIT {
     @DisplayName("Get order by id — Not Found")
     public void getOrderById_someRandomOrderId_notFound() {
 
-        var random = ThreadLocalRandom.current().nextInt(11, 101);
+        // Order ids are allocated densely from 1 upwards
+        var random = ThreadLocalRandom.current().nextInt(1_000_000_000, Integer.MAX_VALUE);
 
         var resp = RestAssured
             .given()
@@ -275,12 +293,391 @@ public class StoreIT {
 
     }
 
+    @Test
+    @DisplayName("Get inventory — counts unchanged — same serialized body")
+    public void getInventory_countsUnchanged_bodyIsReused() {
+
+        var first = PetStore.counts();
+        Assertions.assertSame(first, PetStore.counts());
+
+        var before = new JsonObject(RestAssured.given().accept("application/json").get("/store/inventory").asString());
+
+        newOrder();
+
+        Assertions.assertNotSame(first, PetStore.counts());
+
+        var after = new JsonObject(RestAssured.given().accept("application/json").get("/store/inventory").asString());
+
+        Assertions.assertEquals(before.getInteger("AVAILABLE") + 1, after.getInteger("AVAILABLE"));
+
+    }
+
+    @Test
+    @DisplayName("Place a new order — pet already reserved — Bad Request")
+    public void placeOrder_reservedPet_badRequest() {
+
+        var order = newOrder();
+
+        {
+
+            var resp = RestAssured
+                .given()
+                .header("content-type", "application/json")
+                .body(Json.stringify(order, true))
+                .post("/store/order");
+
+            Assertions.assertEquals(200, resp.statusCode());
+
+        }
+
+        {
+
+            var resp = RestAssured
+                .given()
+                .header("content-type", "application/json")
+                .body(Json.stringify(order, true))
+                .post("/store/order");
+
+            Assertions.assertEquals(400, resp.statusCode());
+
+        }
+
+    }
+
+    @Test
+    @DisplayName("Delete order — reservation is released")
+    public void deleteOrder_reservedPet_petIsAvailableAgain() {
+
+        var order = newOrder();
+        var resp = RestAssured
+            .given()
+            .header("content-type", "application/json")
+            .body(Json.stringify(order, true))
+            .post("/store/order");
+
+        Assertions.assertEquals(200, resp.statusCode());
+        Assertions.assertEquals(Status.PENDING, await(pets.getById(order.petId())).orElseThrow().status());
+
+        var orderId = new JsonObject(resp.asString()).getInteger("orderId");
+        RestAssured.given().delete("/store/order/{orderId}", orderId);
+
+        Assertions.assertEquals(Status.AVAILABLE, await(pets.getById(order.petId())).orElseThrow().status());
+
+    }
+
+    @Test
+    @DisplayName("Delete order — pet reserved again by another order — reservation is kept")
+    public void deleteOrder_staleOrder_otherReservationKept() {
+
+        var order = newOrder();
+        var stale = RestAssured
+            .given()
+            .header("content-type", "application/json")
+            .body(Json.stringify(order, true))
+            .post("/store/order");
+
+        Assertions.assertEquals(200, stale.statusCode());
+
+        var pet = await(pets.getById(order.petId())).orElseThrow();
+        await(pets.update(pet.withStatus(Status.AVAILABLE)));
+
+        var current = RestAssured
+            .given()
+            .header("content-type", "application/json")
+            .body(Json.stringify(order, true))
+            .post("/store/order");
+
+        Assertions.assertEquals(200, current.statusCode());
+
+        RestAssured.given().delete("/store/order/{orderId}", new JsonObject(stale.asString()).getInteger("orderId"));
+        Assertions.assertEquals(Status.PENDING, await(pets.getById(order.petId())).orElseThrow().status());
+
+        RestAssured.given().delete("/store/order/{orderId}", new JsonObject(current.asString()).getInteger("orderId"));
+        Assertions.assertEquals(Status.AVAILABLE, await(pets.getById(order.petId())).orElseThrow().status());
+
+    }
+
+    @Test
+    @DisplayName("Place order — one hot pet from all event loops — exactly one order wins")
+    public void placeOrder_contendedPet_exactlyOnceReservation() {
+
+        var rounds = 500;
+        var instances = VertxOptions.DEFAULT_EVENT_LOOP_POOL_SIZE;
+
+        var hotPets = IntStream.range(0, rounds)
+            .mapToObj(i -> await(pets.add(new NewPet("hot" + i, "dogs"))))
+            .toList();
+
+        var winners = new ConcurrentHashMap<Integer, AtomicInteger>();
+        var attempts = new AtomicInteger();
+
+        var start = System.nanoTime();
+
+        await(vertx.deployVerticle(() -> new AbstractVerticle() {
+            @Override
+            public void start(Promise<Void> promise) {
+                hotPets.stream()
+                    .map(pet -> api.placeOrder(new NewOrder(pet.id(), 1)).transform(ar -> {
+                        attempts.incrementAndGet();
+                        if (ar.succeeded()) {
+                            winners.computeIfAbsent(pet.id(), k -> new AtomicInteger()).incrementAndGet();
+                        }
+                        return Future.succeededFuture();
+                    }))
+                    .collect(Futures.collector())
+                    .<Void>mapEmpty()
+                    .onComplete(promise);
+            }
+        }, new DeploymentOptions().setInstances(instances)));
+
+        var elapsed = System.nanoTime() - start;
+
+        System.out.printf("%d contended orders from %d event loops in %d ms (%.0f orders/s)%n",
+            attempts.get(), instances, TimeUnit.NANOSECONDS.toMillis(elapsed), attempts.get() * 1e9 / elapsed);
+
+        Assertions.assertEquals(rounds * instances, attempts.get());
+        Assertions.assertEquals(rounds, winners.size());
+
+        for (var pet : hotPets) {
+            Assertions.assertEquals(1, winners.get(pet.id()).get());
+            Assertions.assertEquals(Status.PENDING, await(pets.getById(pet.id())).orElseThrow().status());
+        }
+
+    }
+
+    @Test
+    @DisplayName("Get inventory — pets change status concurrently — totals stay consistent")
+    public void getInventory_concurrentTransitions_totalIsConstant() {
+
+        var movers = IntStream.range(0, 100)
+            .mapToObj(i -> await(pets.add(new NewPet("mover" + i, "dogs"))))
+            .toList();
+
+        var total = PetStore.counts().values().stream().mapToInt(Integer::intValue).sum();
+
+        var writer = Executors.newSingleThreadExecutor();
+        var done = writer.submit(() -> {
+            for (int round = 0; round < 1000; round++) {
+                for (var pet : movers) {
+                    PetStore.reserve(pet.id());
+                    PetStore.release(pet.id());
+                }
+            }
+        });
+
+        while (!done.isDone()) {
+            var counts = PetStore.counts();
+            Assertions.assertEquals(total, counts.values().stream().mapToInt(Integer::intValue).sum());
+            Assertions.assertEquals(total, PetStore.getInventory().size());
+        }
+
+        writer.shutdown();
+        Assertions.assertDoesNotThrow(() -> done.get());
+
+    }
+
+    @Test
+    @DisplayName("Change feed — live subscriber sees pet and order changes")
+    public void changeFeed_placeOrder_petAndOrderChangesStreamed() throws InterruptedException {
+
+        var changes = new LinkedBlockingQueue<JsonObject>();
+        var socket = await(changeFeed(null, changes));
+
+        var order = newOrder();
+
+        var resp = RestAssured
+            .given()
+            .header("content-type", "application/json")
+            .body(Json.stringify(order, true))
+            .post("/store/order");
+
+        Assertions.assertEquals(200, resp.statusCode());
+
+        var orderId = new JsonObject(resp.asString()).getInteger("orderId");
+
+        var added = changes.poll(5, TimeUnit.SECONDS);
+        var reserved = changes.poll(5, TimeUnit.SECONDS);
+        var placed = changes.poll(5, TimeUnit.SECONDS);
+
+        Assertions.assertNotNull(added);
+        Assertions.assertNotNull(reserved);
+        Assertions.assertNotNull(placed);
+
+        Assertions.assertEquals("PET", added.getString("type"));
+        Assertions.assertEquals(order.petId(), added.getInteger("id"));
+        Assertions.assertEquals("AVAILABLE", added.getJsonObject("data").getString("status"));
+        Assertions.assertEquals("PET", reserved.getString("type"));
+        Assertions.assertEquals(order.petId(), reserved.getInteger("id"));
+        Assertions.assertEquals("PENDING", reserved.getJsonObject("data").getString("status"));
+        Assertions.assertEquals("ORDER", placed.getString("type"));
+        Assertions.assertEquals(orderId, placed.getInteger("id"));
+        Assertions.assertEquals(added.getLong("sequence") + 1, reserved.getLong("sequence"));
+        Assertions.assertEquals(reserved.getLong("sequence") + 1, placed.getLong("sequence"));
+
+        var deletion = RestAssured.given().delete("/store/order/{orderId}", orderId);
+
+        Assertions.assertEquals(200, deletion.statusCode());
+
+        var deleted = changes.poll(5, TimeUnit.SECONDS);
+        var released = changes.poll(5, TimeUnit.SECONDS);
+
+        Assertions.assertNotNull(deleted);
+        Assertions.assertNotNull(released);
+
+        Assertions.assertEquals("ORDER_DELETED", deleted.getString("type"));
+        Assertions.assertEquals("PET", released.getString("type"));
+        Assertions.assertEquals("AVAILABLE", released.getJsonObject("data").getString("status"));
+
+        await(socket.close());
+
+    }
+
+    @Test
+    @DisplayName("Change feed — subscriber resumes from an earlier change")
+    public void changeFeed_resumeFromOffset_earlierChangesReplayed() throws InterruptedException {
+
+        var from = ChangeFeed.head();
+        var pet = await(pets.add(new NewPet("replayed", "dogs")));
+        await(pets.delete(pet.id()));
+
+        var changes = new LinkedBlockingQueue<JsonObject>();
+        var socket = await(changeFeed(from, changes));
+
+        var added = changes.poll(5, TimeUnit.SECONDS);
+        var deleted = changes.poll(5, TimeUnit.SECONDS);
+
+        Assertions.assertNotNull(added);
+        Assertions.assertNotNull(deleted);
+
+        Assertions.assertEquals(from, added.getLong("sequence"));
+        Assertions.assertEquals("PET", added.getString("type"));
+        Assertions.assertEquals("PET_DELETED", deleted.getString("type"));
+        Assertions.assertEquals(pet.id(), deleted.getInteger("id"));
+        Assertions.assertEquals("replayed", deleted.getJsonObject("data").getString("name"));
+
+        await(socket.close());
+
+    }
+
+    @Test
+    @DisplayName("Change feed — pet versions appended out of order — older version dropped")
+    public void changeFeed_staleVersion_dropped() throws InterruptedException {
+
+        var from = ChangeFeed.head();
+        var pet = await(pets.add(new NewPet("raced", "dogs")));
+
+        // Two writers install their versions in order but get to the feed the other way round
+        var reserved = PetStore.update(pet.withStatus(Status.PENDING));
+        var sold = PetStore.update(pet.withStatus(Status.SOLD));
+        ChangeFeed.append(vertx, Change.Type.PET, pet.id(), sold);
+        ChangeFeed.append(vertx, Change.Type.PET, pet.id(), reserved);
+
+        await(pets.delete(pet.id()));
+
+        var changes = new LinkedBlockingQueue<JsonObject>();
+        var socket = await(changeFeed(from, changes));
+
+        var added = changes.poll(5, TimeUnit.SECONDS);
+        var updated = changes.poll(5, TimeUnit.SECONDS);
+        var deleted = changes.poll(5, TimeUnit.SECONDS);
+
+        Assertions.assertNotNull(added);
+        Assertions.assertNotNull(updated);
+        Assertions.assertNotNull(deleted);
+
+        Assertions.assertEquals("PET", updated.getString("type"));
+        Assertions.assertEquals("SOLD", updated.getJsonObject("data").getString("status"));
+        Assertions.assertEquals(updated.getLong("sequence") + 1, deleted.getLong("sequence"));
+        Assertions.assertEquals("PET_DELETED", deleted.getString("type"));
+
+        await(socket.close());
+
+    }
+
+    @Test
+    @DisplayName("Change feed — offset ahead of the feed — bad request")
+    public void changeFeed_futureOffset_badRequest() {
+
+        var resp = RestAssured
+            .given()
+            .header("connection", "Upgrade")
+            .header("upgrade", "websocket")
+            .queryParam("from", ChangeFeed.head() + 1000)
+            .get(HttpVerticle.CHANGE_FEED_PATH);
+
+        Assertions.assertEquals(400, resp.statusCode());
+
+    }
+
+    @Test
+    @DisplayName("Inventory events — burst of changes — coalesced into few events")
+    public void inventoryEvents_burstOfChanges_coalesced() throws InterruptedException {
+
+        var events = new LinkedBlockingQueue<JsonObject>();
+        var client = vertx.createHttpClient();
+
+        var options = new RequestOptions()
+            .setHost("localhost")
+            .setPort(RestAssured.port)
+            .setURI(HttpVerticle.CONTEXT_PATH + HttpVerticle.INVENTORY_EVENTS_PATH);
+
+        // The first event arrives with the response, so the handler is set on the event loop
+        var response = await(client.request(options).flatMap(HttpClientRequest::send).onSuccess(resp -> {
+            resp.handler(RecordParser.newDelimited("\n\n", event -> {
+                var data = event.toString().lines().filter(line -> line.startsWith("data: ")).findFirst().orElseThrow();
+                events.add(new JsonObject(data.substring("data: ".length())));
+            }));
+        }));
+
+        Assertions.assertEquals(200, response.statusCode());
+        Assertions.assertEquals(InventoryEvents.MEDIA_TYPE, response.getHeader("content-type"));
+
+        var initial = events.poll(5, TimeUnit.SECONDS);
+        Assertions.assertNotNull(initial);
+
+        var burst = 50;
+        for (int i = 0; i < burst; i++) {
+            await(pets.add(new NewPet("burst" + i, "dogs")));
+        }
+
+        var available = initial.getInteger(Status.AVAILABLE.name()) + burst;
+        var received = 0;
+
+        while (true) {
+            var event = events.poll(5, TimeUnit.SECONDS);
+            Assertions.assertNotNull(event);
+            received++;
+            if (event.getInteger(Status.AVAILABLE.name()) == available) {
+                break;
+            }
+        }
+
+        Assertions.assertTrue(received < burst / 10, "Expected the changes to be coalesced, got " + received + " events");
+
+        await(client.close());
+
+    }
+
+    private static Future<WebSocket> changeFeed(Long from, Queue<JsonObject> changes) {
+        var options = new WebSocketConnectOptions()
+            .setHost("localhost")
+            .setPort(RestAssured.port)
+            .setURI(HttpVerticle.CONTEXT_PATH + HttpVerticle.CHANGE_FEED_PATH + (from == null ? "" : "?from=" + from))
+            .addHeader("authorization", "Bearer " + JwtPrincipal.from("test_user").getToken());
+
+        return vertx.createHttpClient()
+            .webSocket(options)
+            .onSuccess(socket -> socket.textMessageHandler(text -> changes.add(new JsonObject(text))));
+    }
+
+    // Every order reserves its pet, so each order needs a fresh one
     static NewOrder newOrder() {
-        return new NewOrder(snoopy.id(), 1);
+        var pet = await(pets.add(new NewPet("snoopy", "dogs")));
+        return new NewOrder(pet.id(), 1);
     }
 
     static Future<Api> createApi() {
-        var pets = Pets.create(vertx);
+        pets = Pets.create(vertx);
         var pet = pets.add(new NewPet("snoopy", "dogs"));
         var api = Api.create(vertx);
 
@@ -309,4 +309,67 @@ public class UserIT {
 
     }
 
+    @Test
+    @DisplayName("Conditional update — sad path — the user changed in between")
+    public void updateUser_staleIfMatch_preconditionFailed() {
+        var user = ALICE;
+
+        RestAssured
+            .given()
+            .header("content-type", "application/json")
+            .body(Json.stringify(user, true))
+            .post("/user");
+
+        var token = new JsonObject(RestAssured
+            .given()
+            .queryParam("username", user.username())
+            .queryParam("password", user.password())
+            .get("/user/login/")
+            .asString()).getString("token");
+
+        var etag = RestAssured
+            .given()
+            .get("/user/{username}", user.username())
+            .header("etag");
+
+        assertThat(etag, is(not(nullValue())));
+
+        var update = new User(
+            0,
+            user.username(),
+            user.firstName(),
+            "Bronson",
+            user.email(),
+            user.password(),
+            null
+        );
+
+        var first = RestAssured
+            .given()
+            .contentType("application/json")
+            .header("authorization", "Bearer " + token)
+            .header("if-match", etag)
+            .body(Json.stringify(update, true))
+            .put("/user/{username}", user.username());
+
+        assertThat(first.statusCode(), equalTo(200));
+        assertThat(first.header("etag"), is(not(equalTo(etag))));
+
+        var second = RestAssured
+            .given()
+            .contentType("application/json")
+            .header("authorization", "Bearer " + token)
+            .header("if-match", etag)
+            .delete("/user/{username}", user.username());
+
+        assertThat(second.statusCode(), equalTo(412));
+
+        var notModified = RestAssured
+            .given()
+            .header("if-none-match", first.header("etag"))
+            .get("/user/{username}", user.username());
+
+        assertThat(notModified.statusCode(), equalTo(304));
+    }
+
 }